@@ -0,0 +1,70 @@
+package cz.zcu.connectors.kerberos.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cz.zcu.connectors.kerberos.KerberosAsyncConnector;
+
+/**
+ * Concurrent principal lookups on one connector instance.
+ *
+ * Each invocation runs the given number of lookups at once by the
+ * asynchronous operations (see {@link KerberosAsyncConnector}), and waits for
+ * all of them. The concurrent lookups use the additional kadmin handles of
+ * the thread-safe mode. The benefit is visible with the simulated latency of
+ * the fake kadm5 library (FAKE_KADM5_LATENCY).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.identityconnectors.common.logging.class=org.identityconnectors.common.logging.impl.NoOpLogger")
+public class ConcurrencyBenchmark {
+	@State(Scope.Benchmark)
+	public static class Async {
+		/**
+		 * Number of the concurrent lookups.
+		 */
+		@Param({ "1", "4", "16" })
+		public int concurrency;
+
+		KerberosAsyncConnector async;
+		private final Random random = new Random(42);
+
+		@Setup(Level.Trial)
+		public void setUp(RealmState realm) {
+			async = new KerberosAsyncConnector(realm.connector);
+		}
+
+		synchronized Uid nextUid(RealmState realm) {
+			return new Uid(realm.names[random.nextInt(realm.names.length)]);
+		}
+	}
+
+	@Benchmark
+	public void concurrentGet(RealmState realm, Async async, Blackhole blackhole) {
+		List<CompletableFuture<ConnectorObject>> futures = new ArrayList<CompletableFuture<ConnectorObject>>(async.concurrency);
+
+		for (int i = 0; i < async.concurrency; i++) futures.add(async.async.getAsync(async.nextUid(realm), null));
+		for (CompletableFuture<ConnectorObject> future : futures) blackhole.consume(future.join());
+	}
+}
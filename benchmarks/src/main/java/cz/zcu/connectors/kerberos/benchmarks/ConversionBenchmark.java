@@ -0,0 +1,47 @@
+package cz.zcu.connectors.kerberos.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.zcu.connectors.kerberos.KerberosPrincipal;
+
+/**
+ * Conversion of the principal to the connector object (no native calls).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.identityconnectors.common.logging.class=org.identityconnectors.common.logging.impl.NoOpLogger")
+public class ConversionBenchmark {
+	@State(Scope.Benchmark)
+	public static class Principal {
+		// principal with all the fields set (times in seconds)
+		final KerberosPrincipal principal = new KerberosPrincipal("bench0000000@EXAMPLE.COM",
+				2000000000L, 1900000000L, 1500000000L, "admin@EXAMPLE.COM",
+				1500000000L, 0x80, "default", 36000L, 604800L,
+				1600000000L, 1600000100L);
+		final int nameMask = KerberosPrincipal.getReturnMask(new String[] { Name.NAME });
+	}
+
+	@Benchmark
+	public ConnectorObject allAttributes(Principal state) {
+		return state.principal.toConnectorObject();
+	}
+
+	@Benchmark
+	public ConnectorObject nameOnly(Principal state) {
+		return state.principal.toConnectorObject(state.nameMask);
+	}
+}
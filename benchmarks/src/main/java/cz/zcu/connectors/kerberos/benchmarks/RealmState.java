@@ -0,0 +1,102 @@
+package cz.zcu.connectors.kerberos.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import cz.zcu.connectors.kerberos.KerberosConfiguration;
+import cz.zcu.connectors.kerberos.KerberosConnector;
+import cz.zcu.connectors.kerberos.KerberosOperation;
+
+/**
+ * Connector with the realm of the given size, shared by the benchmark threads.
+ *
+ * The principals bench0000000@REALM, ... are created by the batch operations
+ * before the trial and deleted after it. The connector is in the thread-safe
+ * mode (see {@link KerberosConfiguration#getThreadSafe()}).
+ *
+ * The login can be changed by the system properties kerberos.realm,
+ * kerberos.principal, and kerberos.password (default is the admin of the fake
+ * kadm5 test data).
+ */
+@State(Scope.Benchmark)
+public class RealmState {
+	static final String PREFIX = "bench";
+
+	/**
+	 * Number of the benchmark principals.
+	 */
+	@Param({ "1000", "10000" })
+	public int realmSize;
+
+	public KerberosConnector connector;
+
+	private static final KerberosOperation.Handler IGNORE = new KerberosOperation.Handler() {
+		public boolean handle(KerberosOperation operation) {
+			return true;
+		}
+	};
+
+	/**
+	 * Names of the benchmark principals.
+	 */
+	public String[] names;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		connector = connect();
+		names = new String[realmSize];
+		for (int i = 0; i < realmSize; i++) names[i] = String.format("%s%07d@%s", PREFIX, i, getRealm());
+
+		List<KerberosOperation> ops = new ArrayList<KerberosOperation>();
+		for (String name : names) {
+			Set<Attribute> attrs = new HashSet<Attribute>();
+			attrs.add(new Name(name));
+			ops.add(KerberosOperation.create(attrs));
+		}
+		// principals left by an interrupted run fail with "already exists"
+		connector.batch(ops.iterator(), 4, IGNORE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		List<KerberosOperation> ops = new ArrayList<KerberosOperation>();
+		for (String name : names) ops.add(KerberosOperation.delete(new Uid(name)));
+		connector.batch(ops.iterator(), 4, IGNORE);
+		connector.dispose();
+	}
+
+	static String getRealm() {
+		return System.getProperty("kerberos.realm", "EXAMPLE.COM");
+	}
+
+	/**
+	 * Create the connector in the thread-safe mode.
+	 */
+	static KerberosConnector connect() {
+		KerberosConfiguration config = new KerberosConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+
+		config.setRealm(getRealm());
+		config.setPrincipal(System.getProperty("kerberos.principal", "admin@" + getRealm()));
+		config.setPassword(new GuardedString(System.getProperty("kerberos.password", "password").toCharArray()));
+		config.setThreadSafe(true);
+		config.validate();
+		connector.init(config);
+		connector.warmUp();
+
+		return connector;
+	}
+}
@@ -0,0 +1,102 @@
+package cz.zcu.connectors.kerberos.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cz.zcu.connectors.kerberos.KerberosPrincipal;
+import cz.zcu.connectors.kerberos.KerberosQuery;
+
+/**
+ * Searches: all principals, one page, and one principal by name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.identityconnectors.common.logging.class=org.identityconnectors.common.logging.impl.NoOpLogger")
+public class SearchBenchmark {
+	private static final OperationOptions ALL_ATTRIBUTES = new OperationOptionsBuilder().build();
+
+	/**
+	 * Random principals of the benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private final Random random = new Random(42);
+
+		String nextName(RealmState realm) {
+			return realm.names[random.nextInt(realm.names.length)];
+		}
+	}
+
+	/**
+	 * Pages of the benchmark thread, they go round the realm.
+	 */
+	@State(Scope.Thread)
+	public static class Pages {
+		@Param({ "10", "100", "1000" })
+		public int pageSize;
+
+		private int page = 0;
+
+		/**
+		 * Offset of the next page (from 1).
+		 */
+		int nextOffset(RealmState realm) {
+			int pages = Math.max(1, realm.names.length / pageSize);
+			return (page++ % pages) * pageSize + 1;
+		}
+	}
+
+	/**
+	 * Handler passing the principals to the black hole.
+	 */
+	private static ResultsHandler sink(final Blackhole blackhole) {
+		return new ResultsHandler() {
+			public boolean handle(ConnectorObject connectorObject) {
+				blackhole.consume(connectorObject);
+				return true;
+			}
+		};
+	}
+
+	@Benchmark
+	public void fullSearch(RealmState realm, Blackhole blackhole) {
+		realm.connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, null, sink(blackhole), ALL_ATTRIBUTES);
+	}
+
+	/**
+	 * One page of all principals (the listed names are kept in the search
+	 * cache for the next pages).
+	 */
+	@Benchmark
+	public void pagedSearch(RealmState realm, Pages pages, Blackhole blackhole) {
+		OperationOptions options = new OperationOptionsBuilder()
+				.setPageSize(pages.pageSize)
+				.setPagedResultsOffset(pages.nextOffset(realm))
+				.build();
+
+		realm.connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(RealmState.PREFIX + "*", null), sink(blackhole), options);
+	}
+
+	@Benchmark
+	public void get(RealmState realm, Cursor cursor, Blackhole blackhole) {
+		realm.connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(cursor.nextName(realm), null), sink(blackhole), ALL_ATTRIBUTES);
+	}
+}
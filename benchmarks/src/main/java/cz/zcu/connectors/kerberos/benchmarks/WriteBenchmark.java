@@ -0,0 +1,82 @@
+package cz.zcu.connectors.kerberos.benchmarks;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.zcu.connectors.kerberos.KerberosPrincipal;
+
+/**
+ * Principal changes: create and delete cycle, and flag updates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.identityconnectors.common.logging.class=org.identityconnectors.common.logging.impl.NoOpLogger")
+public class WriteBenchmark {
+	private static final AtomicInteger threads = new AtomicInteger();
+
+	/**
+	 * Principals of the benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		private final int thread = threads.incrementAndGet();
+		private final Random random = new Random(thread);
+		private boolean enable = false;
+
+		/**
+		 * New principal name (deleted in the same invocation).
+		 */
+		String newName() {
+			return String.format("%s-w%d-%d@%s", RealmState.PREFIX, thread, random.nextInt(Integer.MAX_VALUE), RealmState.getRealm());
+		}
+
+		Uid nextUid(RealmState realm) {
+			return new Uid(realm.names[random.nextInt(realm.names.length)]);
+		}
+
+		/**
+		 * Changed flags: enable/disable and required preauthentication.
+		 */
+		Set<Attribute> nextFlags() {
+			Set<Attribute> attrs = new HashSet<Attribute>();
+
+			enable = !enable;
+			attrs.add(AttributeBuilder.buildEnabled(enable));
+			attrs.add(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PREAUTH, enable));
+			return attrs;
+		}
+	}
+
+	@Benchmark
+	public void createDelete(RealmState realm, Writer writer) {
+		Set<Attribute> attrs = Collections.<Attribute>singleton(new Name(writer.newName()));
+		Uid uid = realm.connector.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+		realm.connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+	}
+
+	@Benchmark
+	public Uid updateFlags(RealmState realm, Writer writer) {
+		return realm.connector.update(KerberosPrincipal.OBJECT_CLASS, writer.nextUid(realm), writer.nextFlags(), null);
+	}
+}
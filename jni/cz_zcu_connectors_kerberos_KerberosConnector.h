@@ -18,66 +18,122 @@ JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1i
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
  * Method:    krb5_destroy
- * Signature: ()V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1destroy
-  (JNIEnv *, jobject);
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_open
+ * Signature: (Lcz/zcu/connectors/kerberos/KerberosConfiguration;)J
+ */
+JNIEXPORT jlong JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1open
+  (JNIEnv *, jclass, jobject);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_validate
+ * Signature: (JLjava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1validate
+  (JNIEnv *, jclass, jlong, jstring);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_stats
+ * Signature: (J[J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1stats
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_trace
+ * Signature: (J[J)I
+ */
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1trace
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_last_code
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1last_1code
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
  * Method:    krb5_renew
- * Signature: (Ljava/lang/Class;)V
+ * Signature: (JLjava/lang/Class;)V
  */
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1renew
-  (JNIEnv *, jobject, jclass);
+  (JNIEnv *, jobject, jlong, jclass);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
  * Method:    krb5_create
- * Signature: (Ljava/lang/String;Ljava/lang/String;JJILjava/lang/String;JJI)V
+ * Signature: (JLjava/lang/String;Ljava/lang/String;JJILjava/lang/String;JJI)V
  */
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1create
-  (JNIEnv *, jobject, jstring, jstring, jlong, jlong, jint, jstring, jlong, jlong, jint);
+  (JNIEnv *, jobject, jlong, jstring, jstring, jlong, jlong, jint, jstring, jlong, jlong, jint);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
  * Method:    krb5_delete
- * Signature: (Ljava/lang/String;)V
+ * Signature: (JLjava/lang/String;)V
  */
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1delete
-  (JNIEnv *, jobject, jstring);
+  (JNIEnv *, jobject, jlong, jstring);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
  * Method:    krb5_search
- * Signature: (Ljava/lang/String;II)Lcz/zcu/connectors/KerberosSearchResults;
+ * Signature: (JLjava/lang/String;II)Lcz/zcu/connectors/KerberosSearchResults;
  */
 JNIEXPORT jobject JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1search
-  (JNIEnv *, jobject, jstring, jint, jint);
+  (JNIEnv *, jobject, jlong, jstring, jint, jint);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_search_stream
+ * Signature: (JLjava/lang/String;III[J[Ljava/lang/String;Lcz/zcu/connectors/kerberos/KerberosSearchSink;)I
+ */
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1search_1stream
+  (JNIEnv *, jobject, jlong, jstring, jint, jint, jint, jlongArray, jobjectArray, jobject);
+
+/*
+ * Class:     cz_zcu_connectors_kerberos_KerberosConnector
+ * Method:    krb5_list
+ * Signature: (JLjava/lang/String;)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1list
+  (JNIEnv *, jobject, jlong, jstring);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
- * Method:    krb5_rename
- * Signature: (Ljava/lang/String;Ljava/lang/String;)V
+ * Method:    krb5_get_stream
+ * Signature: (J[Ljava/lang/String;IIII[J[Ljava/lang/String;Lcz/zcu/connectors/kerberos/KerberosSearchSink;)I
  */
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1rename
-  (JNIEnv *, jobject, jstring, jstring);
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1get_1stream
+  (JNIEnv *, jobject, jlong, jobjectArray, jint, jint, jint, jint, jlongArray, jobjectArray, jobject);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
- * Method:    krb5_chpasswd
- * Signature: (Ljava/lang/String;Ljava/lang/String;)V
+ * Method:    krb5_update
+ * Signature: (JLcz/zcu/connectors/kerberos/KerberosOperation;)V
  */
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1chpasswd
-  (JNIEnv *, jobject, jstring, jstring);
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1update
+  (JNIEnv *, jobject, jlong, jobject);
 
 /*
  * Class:     cz_zcu_connectors_kerberos_KerberosConnector
- * Method:    krb5_modify
- * Signature: (Ljava/lang/String;JJILjava/lang/String;JJI)V
+ * Method:    krb5_batch
+ * Signature: (J[Lcz/zcu/connectors/kerberos/KerberosOperation;II)V
  */
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1modify
-  (JNIEnv *, jobject, jstring, jlong, jlong, jint, jstring, jlong, jlong, jint);
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1batch
+  (JNIEnv *, jobject, jlong, jobjectArray, jint, jint);
 
 #ifdef __cplusplus
 }
@@ -3,29 +3,45 @@
 #include "cz_zcu_connectors_kerberos_KerberosConnector.h"
 #include "java_access.h"
 
-jboolean jboolean_getter(JNIEnv * env, jobject obj, const char* name) {
-	jclass cls = (*env)->GetObjectClass(env, obj);
-	jmethodID mid = (*env)->GetMethodID(env, cls, name, "()Z");
-
-	(*env)->DeleteLocalRef(env, cls);
-	if (mid == NULL) {
-		return 0;
-	}
-
-	jboolean b = (*env)->CallBooleanMethod(env, obj, mid);
-
-	return b;
+/*
+ * classes, methods and fields resolved in JNI_OnLoad()
+ */
+java_ids_t java_ids;
+
+/*
+ * exception classes thrown by the library (resolved in JNI_OnLoad(), other
+ * exceptions are looked up on each throw)
+ */
+static const char *exception_names[] = {
+	"java/lang/IllegalArgumentException",
+	"java/lang/NoClassDefFoundError",
+	"java/lang/NoSuchMethodException",
+	"java/lang/OutOfMemoryError",
+	"org/identityconnectors/framework/common/exceptions/AlreadyExistsException",
+	"org/identityconnectors/framework/common/exceptions/ConfigurationException",
+	"org/identityconnectors/framework/common/exceptions/ConnectionBrokenException",
+	"org/identityconnectors/framework/common/exceptions/ConnectorSecurityException",
+	"org/identityconnectors/framework/common/exceptions/InvalidAttributeValueException",
+	"org/identityconnectors/framework/common/exceptions/InvalidPasswordException",
+	"org/identityconnectors/framework/common/exceptions/PermissionDeniedException",
+	"org/identityconnectors/framework/common/exceptions/RetryableException",
+	"org/identityconnectors/framework/common/exceptions/UnknownUidException",
+	KERBEROS_PACKAGE_PATH "/exceptions/CredentialsExpiredException",
+	KERBEROS_PACKAGE_PATH "/exceptions/KerberosException",
+};
+#define N_EXCEPTIONS (sizeof(exception_names) / sizeof(exception_names[0]))
+static jclass exception_classes[N_EXCEPTIONS];
+
+
+jboolean jboolean_getter(JNIEnv * env, jobject obj, jmethodID mid) {
+	return (*env)->CallBooleanMethod(env, obj, mid);
 }
 
-char* jstring_getter(JNIEnv * env, jobject obj, const char* name) {
-	jclass cls = (*env)->GetObjectClass(env, obj);
-	jmethodID mid = (*env)->GetMethodID(env, cls, name, "()Ljava/lang/String;");
-
-	(*env)->DeleteLocalRef(env, cls);
-	if (mid == NULL) {
-		return NULL;
-	}
+jint jint_getter(JNIEnv * env, jobject obj, jmethodID mid) {
+	return (*env)->CallIntMethod(env, obj, mid);
+}
 
+char* jstring_getter(JNIEnv * env, jobject obj, jmethodID mid) {
 	jstring str = (*env)->CallObjectMethod(env, obj, mid);
 	if (str == 0) {
 		return NULL;
@@ -38,29 +54,13 @@ char* jstring_getter(JNIEnv * env, jobject obj, const char* name) {
 	return out;
 }
 
-char* jguardedstring_getter(JNIEnv * env, jobject obj, const char* name, jclass accessor) {
-	static jmethodID gsMid = NULL;
+char* jguardedstring_getter(JNIEnv * env, jobject obj, jmethodID mid) {
 	char* out;
 
-	jclass cls = (*env)->GetObjectClass(env, obj);
-	jmethodID mid = (*env)->GetMethodID(env, cls, name, "()Lorg/identityconnectors/common/security/GuardedString;");
-
-	(*env)->DeleteLocalRef(env, cls);
-	if (mid == 0) {
-		return NULL;
-	}
-
 	jobject guarded = (*env)->CallObjectMethod(env, obj, mid);
-
-	if (gsMid == NULL) {
-		gsMid = (*env)->GetStaticMethodID(env, accessor, "getString",
-		                                  "(Lorg/identityconnectors/common/security/GuardedString;)Ljava/lang/String;");
-	}
-
-	jstring str = (*env)->CallStaticObjectMethod(env, accessor, gsMid, guarded);
+	jstring str = (*env)->CallStaticObjectMethod(env, java_ids.gs_accessor, java_ids.gs_accessor_get_string, guarded);
 
 	(*env)->DeleteLocalRef(env, guarded);
-	(*env)->DeleteLocalRef(env, accessor);
 	if (str == NULL) {
 		out = NULL;
 		goto out;
@@ -77,12 +77,14 @@ out:
 
 int java_class(JNIEnv *env, jclass *clazz, const char *name) {
 	if (*clazz == NULL) {
-		*clazz = (*env)->FindClass(env, name);
-		if (!*clazz) {
+		jclass local = (*env)->FindClass(env, name);
+		if (!local) {
+			(*env)->ExceptionClear(env);
 			throwException(env, "java/lang/NoClassDefFoundError", name);
 			return 0;
 		}
-		*clazz = (*env)->NewGlobalRef(env, *clazz);
+		*clazz = (*env)->NewGlobalRef(env, local);
+		(*env)->DeleteLocalRef(env, local);
 	}
 
 	return 1;
@@ -92,6 +94,7 @@ int java_method(JNIEnv *env, jmethodID *mid, jclass clazz, const char *name, con
 	if (*mid == NULL) {
 		*mid = (*env)->GetMethodID(env, clazz, name, signature);
 		if (!*mid) {
+			(*env)->ExceptionClear(env);
 			throwException(env, "java/lang/NoSuchMethodException", name);
 			return 0;
 		}
@@ -100,42 +103,274 @@ int java_method(JNIEnv *env, jmethodID *mid, jclass clazz, const char *name, con
 	return 1;
 }
 
+static int java_static_method(JNIEnv *env, jmethodID *mid, jclass clazz, const char *name, const char *signature) {
+	*mid = (*env)->GetStaticMethodID(env, clazz, name, signature);
+	if (!*mid) {
+		(*env)->ExceptionClear(env);
+		throwException(env, "java/lang/NoSuchMethodException", name);
+		return 0;
+	}
+
+	return 1;
+}
+
+static int java_field(JNIEnv *env, jfieldID *fid, jclass clazz, const char *name, const char *signature) {
+	*fid = (*env)->GetFieldID(env, clazz, name, signature);
+	if (!*fid) {
+		(*env)->ExceptionClear(env);
+		throwException(env, "java/lang/NoSuchFieldException", name);
+		return 0;
+	}
+
+	return 1;
+}
+
 
-krbconn_context_t* getContext(JNIEnv* env, jobject this) {
-	static jfieldID fid = NULL;
-	if (fid == NULL) {
-		jclass cls = (*env)->GetObjectClass(env, this);
-		fid = (*env)->GetFieldID(env, cls, "contextPointer", "J");
-		(*env)->DeleteLocalRef(env, cls);
+static void java_ids_free(JNIEnv *env) {
+	size_t i;
+
+	if (java_ids.string) (*env)->DeleteGlobalRef(env, java_ids.string);
+	if (java_ids.principal) (*env)->DeleteGlobalRef(env, java_ids.principal);
+	if (java_ids.search_results) (*env)->DeleteGlobalRef(env, java_ids.search_results);
+	if (java_ids.search_sink) (*env)->DeleteGlobalRef(env, java_ids.search_sink);
+	if (java_ids.connector) (*env)->DeleteGlobalRef(env, java_ids.connector);
+	if (java_ids.configuration) (*env)->DeleteGlobalRef(env, java_ids.configuration);
+	if (java_ids.gs_accessor) (*env)->DeleteGlobalRef(env, java_ids.gs_accessor);
+	if (java_ids.operation) (*env)->DeleteGlobalRef(env, java_ids.operation);
+	for (i = 0; i < N_EXCEPTIONS; i++) {
+		if (exception_classes[i]) (*env)->DeleteGlobalRef(env, exception_classes[i]);
+		exception_classes[i] = NULL;
 	}
+	memset(&java_ids, 0, sizeof(java_ids));
+}
 
-	krbconn_context_t* ctx = (krbconn_context_t*)(*env)->GetLongField(env, this, fid);
-	return ctx;
+
+/**
+ * Resolve all classes, methods and fields used by the library.
+ *
+ * Global references are shared by all threads, so there is no lazy
+ * initialization in the native calls.
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
+	size_t i;
+
+	if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) return JNI_ERR;
+
+	memset(&java_ids, 0, sizeof(java_ids));
+	for (i = 0; i < N_EXCEPTIONS; i++) {
+		if (!java_class(env, &exception_classes[i], exception_names[i])) goto err;
+	}
+	if (!java_class(env, &java_ids.string, "java/lang/String")
+	 || !java_class(env, &java_ids.principal, KERBEROS_PACKAGE_PATH "/KerberosPrincipal")
+	 || !java_method(env, &java_ids.principal_init, java_ids.principal, "<init>", SIGNATURE_KERBEROS_PRINCIPAL_INIT)
+	 || !java_class(env, &java_ids.search_results, KERBEROS_PACKAGE_PATH "/KerberosSearchResults")
+	 || !java_method(env, &java_ids.search_results_init, java_ids.search_results, "<init>", SIGNATURE_KERBEROS_SEARCH_RESULT_INIT)
+	 || !java_class(env, &java_ids.search_sink, KERBEROS_PACKAGE_PATH "/KerberosSearchSink")
+	 || !java_method(env, &java_ids.search_sink_handle, java_ids.search_sink, "handle", SIGNATURE_KERBEROS_SEARCH_SINK_HANDLE)
+	 || !java_method(env, &java_ids.search_sink_handle_buffer, java_ids.search_sink, "handleBuffer", SIGNATURE_KERBEROS_SEARCH_SINK_HANDLE_BUFFER)
+	 || !java_field(env, &java_ids.search_sink_buffer, java_ids.search_sink, "buffer", "Ljava/nio/ByteBuffer;")
+	 || !java_class(env, &java_ids.connector, KERBEROS_PACKAGE_PATH "/KerberosConnector")
+	 || !java_field(env, &java_ids.connector_context, java_ids.connector, "contextPointer", "J")
+	 || !java_field(env, &java_ids.connector_configuration, java_ids.connector, "configuration", "L" KERBEROS_PACKAGE_PATH "/KerberosConfiguration;")
+	 || !java_class(env, &java_ids.configuration, KERBEROS_PACKAGE_PATH "/KerberosConfiguration")
+	 || !java_method(env, &java_ids.config_realm, java_ids.configuration, "getRealm", "()Ljava/lang/String;")
+	 || !java_method(env, &java_ids.config_principal, java_ids.configuration, "getPrincipal", "()Ljava/lang/String;")
+	 || !java_method(env, &java_ids.config_password, java_ids.configuration, "getPassword", "()Lorg/identityconnectors/common/security/GuardedString;")
+	 || !java_method(env, &java_ids.config_keytab, java_ids.configuration, "getKeytab", "()Ljava/lang/String;")
+	 || !java_method(env, &java_ids.config_debug, java_ids.configuration, "getDebug", "()Z")
+	 || !java_method(env, &java_ids.config_search_handles, java_ids.configuration, "getSearchHandles", "()I")
+	 || !java_class(env, &java_ids.operation, KERBEROS_PACKAGE_PATH "/KerberosOperation")
+	 || !java_field(env, &java_ids.operation_type, java_ids.operation, "type", "I")
+	 || !java_field(env, &java_ids.operation_name, java_ids.operation, "name", "Ljava/lang/String;")
+	 || !java_field(env, &java_ids.operation_princ_expiry, java_ids.operation, "princExpiry", "J")
+	 || !java_field(env, &java_ids.operation_pwd_expiry, java_ids.operation, "pwdExpiry", "J")
+	 || !java_field(env, &java_ids.operation_attributes, java_ids.operation, "attributes", "I")
+	 || !java_field(env, &java_ids.operation_policy, java_ids.operation, "policy", "Ljava/lang/String;")
+	 || !java_field(env, &java_ids.operation_max_ticket_life, java_ids.operation, "maxTicketLife", "J")
+	 || !java_field(env, &java_ids.operation_max_renewable_life, java_ids.operation, "maxRenewableLife", "J")
+	 || !java_field(env, &java_ids.operation_mask, java_ids.operation, "mask", "I")
+	 || !java_field(env, &java_ids.operation_attributes_set, java_ids.operation, "attributesSet", "I")
+	 || !java_field(env, &java_ids.operation_attributes_clear, java_ids.operation, "attributesClear", "I")
+	 || !java_field(env, &java_ids.operation_password, java_ids.operation, "password", "Ljava/lang/String;")
+	 || !java_field(env, &java_ids.operation_new_name, java_ids.operation, "newName", "Ljava/lang/String;")
+	 || !java_field(env, &java_ids.operation_step, java_ids.operation, "step", "I")
+	 || !java_field(env, &java_ids.operation_error, java_ids.operation, "error", "Ljava/lang/RuntimeException;")
+	 || !java_class(env, &java_ids.gs_accessor, KERBEROS_PACKAGE_PATH "/GuardedStringAccessor")
+	 || !java_static_method(env, &java_ids.gs_accessor_get_string, java_ids.gs_accessor, "getString",
+	                        "(Lorg/identityconnectors/common/security/GuardedString;)Ljava/lang/String;"))
+		goto err;
+
+	return JNI_VERSION_1_6;
+err:
+	java_ids_free(env);
+	return JNI_ERR;
 }
 
-void add_princ_to_array(JNIEnv* env, jobjectArray array, int pos, krbconn_principal_t princ, jclass clazz) {
-	static jmethodID mid = NULL;
-	if (!java_method(env, &mid, clazz, "<init>", SIGNATURE_KERBEROS_PRINCIPAL_INIT))
-		return;
 
-	jstring name = (*env)->NewStringUTF(env, princ.name);
-	jstring modifyPrincipal = (*env)->NewStringUTF(env, princ.mod_name);
-	jstring policy = (*env)->NewStringUTF(env, princ.policy);
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
 
-	jobject jPrinc = (*env)->NewObject(env, clazz, mid, name, princ.princ_expire, princ.pwd_expire, princ.pwd_change,
-	                                   modifyPrincipal, princ.mod_date, princ.attributes, policy, princ.max_ticket_life, princ.max_renewable_life, princ.last_login, princ.last_failed_login);
+	if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) return;
+	java_ids_free(env);
+}
+
+
+jobject new_principal(JNIEnv* env, krbconn_principal_t *princ) {
+	jstring name = (*env)->NewStringUTF(env, princ->name);
+	jstring modifyPrincipal = (*env)->NewStringUTF(env, princ->mod_name);
+	jstring policy = (*env)->NewStringUTF(env, princ->policy);
+
+	jobject jPrinc = (*env)->NewObject(env, java_ids.principal, java_ids.principal_init, name, princ->princ_expire, princ->pwd_expire, princ->pwd_change,
+	                                   modifyPrincipal, princ->mod_date, princ->attributes, policy, princ->max_ticket_life, princ->max_renewable_life, princ->last_login, princ->last_failed_login);
 
 	(*env)->DeleteLocalRef(env, name);
 	(*env)->DeleteLocalRef(env, modifyPrincipal);
 	(*env)->DeleteLocalRef(env, policy);
 
+	return jPrinc;
+}
+
+void add_princ_to_array(JNIEnv* env, jobjectArray array, int pos, krbconn_principal_t princ) {
+	jobject jPrinc = new_principal(env, &princ);
+	if (!jPrinc) return;
+
 	(*env)->SetObjectArrayElement(env, array, pos, jPrinc);
 
 	(*env)->DeleteLocalRef(env, jPrinc);
 }
 
+/**
+ * Pass the principal to the search sink.
+ *
+ * Returns 1 to continue, 0 when the sink stopped the search, -1 on Java exception.
+ */
+int sink_principal(JNIEnv* env, jobject sink, krbconn_principal_t *princ) {
+	jobject jPrinc;
+	jboolean more;
+
+	if ((jPrinc = new_principal(env, princ)) == NULL) return -1;
+	more = (*env)->CallBooleanMethod(env, sink, java_ids.search_sink_handle, jPrinc);
+	(*env)->DeleteLocalRef(env, jPrinc);
+
+	if ((*env)->ExceptionCheck(env)) return -1;
+	return more ? 1 : 0;
+}
+
+/**
+ * Get the direct buffer of the search sink.
+ *
+ * Returns 1 when the principals can be packed into the buffer, 0 when they
+ * need to be passed one by one.
+ */
+int sink_buffer_init(JNIEnv* env, jobject sink, sink_buffer_t *buffer) {
+	jobject jbuffer;
+
+	memset(buffer, 0, sizeof(*buffer));
+	if ((jbuffer = (*env)->GetObjectField(env, sink, java_ids.search_sink_buffer)) == NULL) return 0;
+	buffer->data = (*env)->GetDirectBufferAddress(env, jbuffer);
+	buffer->capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+	(*env)->DeleteLocalRef(env, jbuffer);
+
+	if (!buffer->data || buffer->capacity <= 0) {
+		memset(buffer, 0, sizeof(*buffer));
+		return 0;
+	}
+	return 1;
+}
+
+static char *pack_int(char *p, int32_t value) {
+	memcpy(p, &value, sizeof(value));
+	return p + sizeof(value);
+}
+
+static char *pack_long(char *p, int64_t value) {
+	memcpy(p, &value, sizeof(value));
+	return p + sizeof(value);
+}
+
+// length prefixed (-1 for NULL)
+static char *pack_string(char *p, const char *s) {
+	int32_t len = s ? strlen(s) : -1;
+
+	p = pack_int(p, len);
+	if (len > 0) {
+		memcpy(p, s, len);
+		p += len;
+	}
+	return p;
+}
+
+/**
+ * Pass the packed principals to the search sink.
+ *
+ * Returns 1 to continue, 0 when the sink stopped the search, -1 on Java exception.
+ */
+int sink_buffer_flush(JNIEnv* env, jobject sink, sink_buffer_t *buffer) {
+	jboolean more;
+
+	if (buffer->count == 0) return 1;
+	more = (*env)->CallBooleanMethod(env, sink, java_ids.search_sink_handle_buffer, buffer->count);
+	buffer->used = 0;
+	buffer->count = 0;
+
+	if ((*env)->ExceptionCheck(env)) return -1;
+	return more ? 1 : 0;
+}
+
+/**
+ * Pack the principal into the buffer of the search sink.
+ *
+ * The buffer is passed to the sink when full. Too big principal is passed
+ * directly.
+ *
+ * Layout (native byte order) is in the order of KerberosPrincipal
+ * constructor parameters, strings are prefixed by the int length.
+ *
+ * Returns 1 to continue, 0 when the sink stopped the search, -1 on Java exception.
+ */
+// keep in sync with KerberosSearchSink.java
+int sink_buffer_principal(JNIEnv* env, jobject sink, sink_buffer_t *buffer, krbconn_principal_t *princ) {
+	size_t size = 3 * sizeof(int32_t) + 8 * sizeof(int64_t) + sizeof(int32_t);
+	char *p;
+	int more;
+
+	if (princ->name) size += strlen(princ->name);
+	if (princ->mod_name) size += strlen(princ->mod_name);
+	if (princ->policy) size += strlen(princ->policy);
+
+	if (buffer->used + size > buffer->capacity) {
+		if ((more = sink_buffer_flush(env, sink, buffer)) <= 0) return more;
+		if (size > buffer->capacity) return sink_principal(env, sink, princ);
+	}
+
+	p = buffer->data + buffer->used;
+	p = pack_string(p, princ->name);
+	p = pack_long(p, princ->princ_expire);
+	p = pack_long(p, princ->pwd_expire);
+	p = pack_long(p, princ->pwd_change);
+	p = pack_string(p, princ->mod_name);
+	p = pack_long(p, princ->mod_date);
+	p = pack_int(p, princ->attributes);
+	p = pack_string(p, princ->policy);
+	p = pack_long(p, princ->max_ticket_life);
+	p = pack_long(p, princ->max_renewable_life);
+	p = pack_long(p, princ->last_login);
+	p = pack_long(p, princ->last_failed_login);
+	buffer->used = p - buffer->data;
+	buffer->count++;
+
+	return 1;
+}
+
 jint throwException(JNIEnv* env, const char *exception, const char* message) {
 	jclass exClass;
+	size_t i;
+
+	for (i = 0; i < N_EXCEPTIONS; i++) {
+		if (exception_classes[i] && strcmp(exception_names[i], exception) == 0)
+			return (*env)->ThrowNew(env, exception_classes[i], message);
+	}
 
 	exClass = (*env)->FindClass(env, exception);
 	if (exClass)
@@ -147,3 +382,36 @@ jint throwException(JNIEnv* env, const char *exception, const char* message) {
 
 	return 0;
 }
+
+
+/**
+ * Create the exception object (not thrown).
+ *
+ * Returns NULL with pending Java exception on error.
+ */
+jthrowable newException(JNIEnv* env, const char *exception, const char* message) {
+	jclass exClass = NULL;
+	jmethodID init;
+	jstring jmessage;
+	jthrowable result;
+	size_t i;
+
+	for (i = 0; i < N_EXCEPTIONS; i++) {
+		if (exception_classes[i] && strcmp(exception_names[i], exception) == 0) {
+			exClass = (*env)->NewLocalRef(env, exception_classes[i]);
+			break;
+		}
+	}
+	if (!exClass && (exClass = (*env)->FindClass(env, exception)) == NULL) return NULL;
+
+	if ((init = (*env)->GetMethodID(env, exClass, "<init>", "(Ljava/lang/String;)V")) == NULL
+	 || (jmessage = (*env)->NewStringUTF(env, message)) == NULL) {
+		(*env)->DeleteLocalRef(env, exClass);
+		return NULL;
+	}
+	result = (*env)->NewObject(env, exClass, init, jmessage);
+	(*env)->DeleteLocalRef(env, jmessage);
+	(*env)->DeleteLocalRef(env, exClass);
+
+	return result;
+}
@@ -10,14 +10,80 @@
 #define SIGNATURE_KERBEROS_PRINCIPAL_INIT "(Ljava/lang/String;JJJLjava/lang/String;JILjava/lang/String;JJJJ)V"
 // keep in sync with KerberosSearchResult.java
 #define SIGNATURE_KERBEROS_SEARCH_RESULT_INIT "([L" KERBEROS_PACKAGE_PATH "/KerberosPrincipal;I)V"
+// keep in sync with KerberosSearchSink.java
+#define SIGNATURE_KERBEROS_SEARCH_SINK_HANDLE "(L" KERBEROS_PACKAGE_PATH "/KerberosPrincipal;)Z"
+#define SIGNATURE_KERBEROS_SEARCH_SINK_HANDLE_BUFFER "(I)Z"
 
-jboolean jboolean_getter(JNIEnv *, jobject, const char*);
-char* jstring_getter(JNIEnv *, jobject, const char*);
-char* jguardedstring_getter(JNIEnv *, jobject, const char*, jclass);
-krbconn_context_t* getContext(JNIEnv*, jobject);
+/*
+ * classes (global references), methods and fields used by the library,
+ * resolved in JNI_OnLoad()
+ */
+typedef struct {
+	jclass string;
+	jclass principal;
+	jmethodID principal_init;
+	jclass search_results;
+	jmethodID search_results_init;
+	jclass search_sink;
+	jmethodID search_sink_handle;
+	jmethodID search_sink_handle_buffer;
+	jfieldID search_sink_buffer;
+	jclass connector;
+	jfieldID connector_context;
+	jfieldID connector_configuration;
+	jclass configuration;
+	jmethodID config_realm;
+	jmethodID config_principal;
+	jmethodID config_password;
+	jmethodID config_keytab;
+	jmethodID config_debug;
+	jmethodID config_search_handles;
+	// keep in sync with KerberosOperation.java
+	jclass operation;
+	jfieldID operation_type;
+	jfieldID operation_name;
+	jfieldID operation_princ_expiry;
+	jfieldID operation_pwd_expiry;
+	jfieldID operation_attributes;
+	jfieldID operation_policy;
+	jfieldID operation_max_ticket_life;
+	jfieldID operation_max_renewable_life;
+	jfieldID operation_mask;
+	jfieldID operation_attributes_set;
+	jfieldID operation_attributes_clear;
+	jfieldID operation_password;
+	jfieldID operation_new_name;
+	jfieldID operation_step;
+	jfieldID operation_error;
+	jclass gs_accessor;
+	jmethodID gs_accessor_get_string;
+} java_ids_t;
+
+extern java_ids_t java_ids;
+
+/*
+ * packed principals in the direct buffer of the search sink
+ */
+typedef struct {
+	char *data;
+	size_t capacity;
+	size_t used;
+	int count;
+} sink_buffer_t;
+
+jboolean jboolean_getter(JNIEnv *, jobject, jmethodID);
+jint jint_getter(JNIEnv *, jobject, jmethodID);
+char* jstring_getter(JNIEnv *, jobject, jmethodID);
+char* jguardedstring_getter(JNIEnv *, jobject, jmethodID);
 int java_class(JNIEnv *env, jclass *clazz, const char *name);
 int java_method(JNIEnv *env, jmethodID *mid, jclass clazz, const char *name, const char *signature);
-void add_princ_to_array(JNIEnv*, jobjectArray, int, krbconn_principal_t, jclass);
+jobject new_principal(JNIEnv*, krbconn_principal_t *);
+void add_princ_to_array(JNIEnv*, jobjectArray, int, krbconn_principal_t);
+int sink_principal(JNIEnv*, jobject, krbconn_principal_t *);
+int sink_buffer_init(JNIEnv*, jobject, sink_buffer_t *);
+int sink_buffer_principal(JNIEnv*, jobject, sink_buffer_t *, krbconn_principal_t *);
+int sink_buffer_flush(JNIEnv*, jobject, sink_buffer_t *);
 jint throwException(JNIEnv*, const char *, const char*);
+jthrowable newException(JNIEnv*, const char *, const char*);
 
 #endif
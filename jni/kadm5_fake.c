@@ -2,15 +2,19 @@
  * Fake kamd5 library
  */
 
-#ifdef FAKE_PTHREAD
-#include <pthread.h>
-#endif
+#include <fcntl.h>
 #include <inttypes.h>
+#include <pthread.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <fnmatch.h>
 #include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/types.h>
 
 #include <kadm5/admin.h>
 
@@ -18,22 +22,18 @@
 #define DEFAULT_FAKE_KADM5_DATA "target/test-classes/data.csv"
 #define DEFAULT_REALM "EXAMPLE.COM"
 
-#define FAKE_MAX_N 128
+#define FAKE_INITIAL_N 128
 #define FAKE_COLUMNS 6
 
 #define MAGIC_DATA 0x20010718
 #define MAGIC_PRINC 0x20010719
 
 /*
- * locking would be needed, when sharing the fake DB between threads
+ * the fake DB is shared between threads: lookups and listings can run in parallel, changes are exclusive
  */
-#ifdef FAKE_PTHREAD
-	#define LOCK(ctx) ((pthread_mutex_lock(&((ctx))->lock)))
-	#define UNLOCK(ctx) ((pthread_mutex_unlock(&((ctx))->lock)))
-#else
-	#define LOCK(ctx)
-	#define UNLOCK(ctx)
-#endif
+#define RDLOCK(ctx) ((pthread_rwlock_rdlock(&((ctx))->db->lock)))
+#define WRLOCK(ctx) ((pthread_rwlock_wrlock(&((ctx))->db->lock)))
+#define UNLOCK(ctx) ((pthread_rwlock_unlock(&((ctx))->db->lock)))
 
 
 typedef struct _fake_kadm5_principal {
@@ -52,12 +52,35 @@ typedef struct _fake_kadm5_principal {
 	time_t max_renewable_life;
 } _fake_kadm5_principal, *fake_kadm5_principal;
 
-typedef struct _krb5_context {
-#ifdef FAKE_PTHREAD
-	pthread_mutex_t lock;
-#endif
-	_fake_kadm5_principal db[FAKE_MAX_N];
+/*
+ * fake database shared by all contexts (like the real KDC database)
+ *
+ * Records are kept in slots (reused after removal). Principals are found by
+ * the hash index and listed in the name order by the sorted slots.
+ */
+typedef struct {
+	pthread_rwlock_t lock;
+	/* records, free slots are without name */
+	_fake_kadm5_principal *princs;
+	/* used slots (principals and holes) */
 	size_t n;
+	/* allocated slots (and size of the holes and sorted arrays) */
+	size_t size;
+	/* free slots */
+	size_t *holes;
+	size_t nholes;
+	/* hash index by name (linear probing), slot + 1 or 0 for empty bucket */
+	size_t *index;
+	size_t index_size;
+	/* slots of the principals sorted by name */
+	size_t *sorted;
+	/* number of principals */
+	size_t count;
+	int refs;
+} _fake_db;
+
+typedef struct _krb5_context {
+	_fake_db *db;
 
 	char *admin_name, *admin_password;
 	char *realm;
@@ -67,9 +90,86 @@ typedef struct _krb5_context {
 typedef struct {
 	char *realm;
 	krb5_context ctx;
+	/* expiration of the admin ticket (max ticket life of the admin principal), 0 for never */
+	time_t expires;
 } _kadm5_handle;
 
 
+static _fake_db shared_db = {
+	.lock = PTHREAD_RWLOCK_INITIALIZER,
+	.princs = NULL,
+	.n = 0,
+	.size = 0,
+	.holes = NULL,
+	.nholes = 0,
+	.index = NULL,
+	.index_size = 0,
+	.sorted = NULL,
+	.count = 0,
+	.refs = 0,
+};
+
+
+/*
+ * Simulated network latency of the kadmin calls (FAKE_KADM5_LATENCY in microseconds)
+ */
+static void fake_latency() {
+	const char *latency = getenv("FAKE_KADM5_LATENCY");
+	struct timespec ts;
+	long us;
+
+	if (!latency || (us = atol(latency)) <= 0) return;
+	ts.tv_sec = us / 1000000;
+	ts.tv_nsec = (us % 1000000) * 1000;
+	nanosleep(&ts, NULL);
+}
+
+
+/*
+ * Simulated login: AS and TGS requests to KDC and GSS context setup with kadmind
+ */
+static void fake_login_latency() {
+	fake_latency();
+	fake_latency();
+	fake_latency();
+}
+
+
+static ssize_t fake_search(krb5_context ctx, krb5_const_principal principal);
+
+
+/*
+ * Expiration of the admin ticket issued now (by max ticket life of the admin principal)
+ */
+static time_t fake_ticket_expiry(krb5_context ctx, const char *client_name) {
+	krb5_principal principal;
+	time_t expires = 0;
+	ssize_t i;
+
+	if (krb5_parse_name(ctx, client_name, &principal) != 0) return 0;
+	RDLOCK(ctx);
+	i = fake_search(ctx, principal);
+	if (i != -1 && ctx->db->princs[i].max_ticket_life > 0)
+		expires = time(NULL) + ctx->db->princs[i].max_ticket_life;
+	UNLOCK(ctx);
+	krb5_free_principal(ctx, principal);
+
+	return expires;
+}
+
+
+/*
+ * Simulated network latency and the check of the admin ticket
+ */
+static kadm5_ret_t fake_call(void *server_handle) {
+	_kadm5_handle *handle = server_handle;
+
+	fake_latency();
+	if (handle->expires && time(NULL) >= handle->expires) return KADM5_GSS_ERROR;
+
+	return 0;
+}
+
 
 static int check_data(const krb5_data *data) {
 	if (!data || data->magic != MAGIC_DATA) return KADM5_INIT;
@@ -86,25 +186,6 @@ static int check_principal(krb5_const_principal principal) {
 }
 
 
-static int principal_is(krb5_const_principal principal, const char *realm, const char *name) {
-	return
-		(strcmp(principal->realm.data, realm) == 0) &&
-		(strcmp(principal->data[0].data, name) == 0);
-}
-
-
-static void clone_record(fake_kadm5_principal record, const fake_kadm5_principal src) {
-	record->name = strdup(src->name);
-	record->password = src->password ? strdup(src->password) : NULL;
-	record->policy = src->policy ? strdup(src->policy) : NULL;
-	record->attributes = src->attributes;
-	record->modification_name = src->modification_name ? strdup(src->modification_name) : NULL;
-	record->modification = src->modification;
-	record->pw_expiration = src->pw_expiration;
-	record->expiration = src->expiration;
-}
-
-
 static void free_record(fake_kadm5_principal record) {
 	free(record->name);
 	free(record->password);
@@ -156,21 +237,28 @@ static int fill_record(krb5_context ctx, fake_kadm5_principal record, kadm5_prin
 
 
 /**
- * Parse csv line into fake principal record
+ * Parse csv line (without the end of line) into fake principal record
+ *
+ * The record is always nullified first.
  */
-static int str2db(char *line, fake_kadm5_principal record) {
-	char *value;
+static int str2db(const char *line, size_t len, fake_kadm5_principal record) {
+	const char *end = line + len, *next;
 	char *values[FAKE_COLUMNS];
-	size_t i = 0;
+	size_t i;
 
+	memset(record, 0, sizeof(_fake_kadm5_principal));
 	memset(values, 0, sizeof values);
-	while (((value = strsep(&line, ",")) != NULL) && (i < FAKE_COLUMNS)) {
-		values[i++] = value;
+	for (i = 0; i < FAKE_COLUMNS && line <= end; i++) {
+		if ((next = memchr(line, ',', end - line)) == NULL) next = end;
+		values[i] = strndup(line, next - line);
+		line = next + 1;
 	}
 
-	if (!values[0] || !values[0][0]) return KADM5_BAD_DB;
+	if (!values[0] || !values[0][0]) {
+		for (i = 0; i < FAKE_COLUMNS; i++) free(values[i]);
+		return KADM5_BAD_DB;
+	}
 
-	memset(record, 0, sizeof(_fake_kadm5_principal));
 	record->name = values[0];
 	record->password = values[1];
 	record->policy = values[2];
@@ -179,67 +267,284 @@ static int str2db(char *line, fake_kadm5_principal record) {
 	record->modification = values[5] ? atol(values[5]) : 0;
 	record->pw_expiration = 0;
 	record->expiration = 0;
-	clone_record(record, record);
+	free(values[3]);
+	free(values[5]);
 
 	return 0;
 }
 
 
-static int fake_search(krb5_context ctx, krb5_const_principal principal) {
-	size_t i;
+/*
+ * FNV-1a hash of the principal name
+ */
+static uint64_t fake_hash(const char *name) {
+	uint64_t h = 0xcbf29ce484222325ULL;
 
-	for (i = 0; i < ctx->n; i++) {
-		if (principal_is(principal, ctx->realm, ctx->db[i].name)) break;
+	while (*name) {
+		h ^= (unsigned char)*name++;
+		h *= 0x100000001b3ULL;
 	}
-	if (i >= ctx->n) return -1;
 
-	return i;
+	return h;
 }
 
 
 /*
- * Free loaded fake database
+ * Bucket of the name in the hash index, or the empty bucket for it
  */
-static void db_free(krb5_context ctx) {
+static size_t index_position(_fake_db *db, const char *name) {
+	size_t mask = db->index_size - 1;
+	size_t pos = fake_hash(name) & mask;
+
+	while (db->index[pos] && strcmp(db->princs[db->index[pos] - 1].name, name) != 0)
+		pos = (pos + 1) & mask;
+
+	return pos;
+}
+
+
+static void index_add(_fake_db *db, size_t slot) {
+	db->index[index_position(db, db->princs[slot].name)] = slot + 1;
+}
+
+
+/*
+ * Remove the name from the hash index
+ *
+ * The following buckets are shifted back to keep the probe sequences without gaps.
+ */
+static void index_remove(_fake_db *db, const char *name) {
+	size_t mask = db->index_size - 1;
+	size_t pos = index_position(db, name), next, home;
+
+	if (!db->index[pos]) return;
+	for (next = (pos + 1) & mask; db->index[next]; next = (next + 1) & mask) {
+		home = fake_hash(db->princs[db->index[next] - 1].name) & mask;
+		// the bucket can be moved, if the hole is between its home and the bucket
+		if (((next - home) & mask) >= ((next - pos) & mask)) {
+			db->index[pos] = db->index[next];
+			pos = next;
+		}
+	}
+	db->index[pos] = 0;
+}
+
+
+/*
+ * First position in the sorted slots with the name not less than the given one
+ */
+static size_t sorted_position(_fake_db *db, const char *name) {
+	size_t lo = 0, hi = db->count, mid;
+
+	while (lo < hi) {
+		mid = lo + (hi - lo) / 2;
+		if (strcmp(db->princs[db->sorted[mid]].name, name) < 0) lo = mid + 1;
+		else hi = mid;
+	}
+
+	return lo;
+}
+
+
+static int sorted_compare(const void *a, const void *b, void *arg) {
+	_fake_db *db = arg;
+
+	return strcmp(db->princs[*(const size_t *)a].name, db->princs[*(const size_t *)b].name);
+}
+
+
+/*
+ * Add the principal in the slot to the indexes (must be called locked, with reserved space)
+ */
+static void db_link(_fake_db *db, size_t slot) {
+	size_t pos = sorted_position(db, db->princs[slot].name);
+
+	index_add(db, slot);
+	memmove(db->sorted + pos + 1, db->sorted + pos, (db->count - pos) * sizeof(*db->sorted));
+	db->sorted[pos] = slot;
+	db->count++;
+}
+
+
+/*
+ * Remove the principal in the slot from the indexes (must be called locked)
+ */
+static void db_unlink(_fake_db *db, size_t slot) {
+	size_t pos = sorted_position(db, db->princs[slot].name);
+
+	index_remove(db, db->princs[slot].name);
+	memmove(db->sorted + pos, db->sorted + pos + 1, (db->count - pos - 1) * sizeof(*db->sorted));
+	db->count--;
+}
+
+
+static ssize_t fake_search(krb5_context ctx, krb5_const_principal principal) {
+	_fake_db *db = ctx->db;
+	size_t pos;
+
+	if (!db->index_size || strcmp(principal->realm.data, ctx->realm) != 0) return -1;
+	pos = index_position(db, principal->data[0].data);
+
+	return db->index[pos] ? (ssize_t)db->index[pos] - 1 : -1;
+}
+
+
+/*
+ * Make space for the given number of principals (must be called locked)
+ *
+ * The hash index is kept at most half full.
+ */
+static int db_reserve(_fake_db *db, size_t total) {
+	size_t size, i, *index;
+
+	if (total > db->size) {
+		_fake_kadm5_principal *princs;
+		size_t *holes, *sorted;
+
+		size = db->size ? db->size : FAKE_INITIAL_N;
+		while (size < total) size *= 2;
+		if ((princs = realloc(db->princs, size * sizeof(*princs))) == NULL) return KADM5_FAILURE;
+		db->princs = princs;
+		if ((holes = realloc(db->holes, size * sizeof(*holes))) == NULL) return KADM5_FAILURE;
+		db->holes = holes;
+		if ((sorted = realloc(db->sorted, size * sizeof(*sorted))) == NULL) return KADM5_FAILURE;
+		db->sorted = sorted;
+		db->size = size;
+	}
+
+	if (2 * total > db->index_size) {
+		size = db->index_size ? db->index_size : 2 * FAKE_INITIAL_N;
+		while (size < 2 * total) size *= 2;
+		if ((index = calloc(size, sizeof(*index))) == NULL) return KADM5_FAILURE;
+		free(db->index);
+		db->index = index;
+		db->index_size = size;
+		for (i = 0; i < db->count; i++) index_add(db, db->sorted[i]);
+	}
+
+	return 0;
+}
+
+
+/*
+ * Slot for a new principal (must be called locked, with reserved space)
+ */
+static size_t db_slot(_fake_db *db) {
+	return db->nholes ? db->holes[--db->nholes] : db->n++;
+}
+
+
+/*
+ * Free loaded fake database (must be called locked)
+ */
+static void db_clear(_fake_db *db) {
 	size_t i;
 
-	LOCK(ctx);
-	for (i = 0; i < ctx->n; i++) {
-		free_record(&ctx->db[i]);
+	for (i = 0; i < db->n; i++) {
+		free_record(&db->princs[i]);
 	}
-	ctx->n = 0;
+	free(db->princs);
+	free(db->holes);
+	free(db->index);
+	free(db->sorted);
+	db->princs = NULL;
+	db->holes = NULL;
+	db->index = NULL;
+	db->sorted = NULL;
+	db->n = 0;
+	db->size = 0;
+	db->nholes = 0;
+	db->index_size = 0;
+	db->count = 0;
+}
+
+
+/*
+ * Release the shared fake database, free it when not used anymore
+ */
+static void db_free(krb5_context ctx) {
+	if (!ctx->db) return;
+
+	WRLOCK(ctx);
+	if (--ctx->db->refs == 0) db_clear(ctx->db);
 	UNLOCK(ctx);
+	ctx->db = NULL;
 }
 
 
 /**
  * Load fake database
+ *
+ * The database is loaded only once and shared by all contexts. The file is
+ * mapped to the memory, the space is reserved for all lines at once, and the
+ * names are sorted after loading.
  */
 static int db_load(krb5_context ctx, const char *path) {
-	char buf[256];
-	FILE *f;
-	int code;
+	_fake_db *db = &shared_db;
+	struct stat st;
+	const char *data, *line, *eol, *end;
+	size_t lines, len, slot;
+	int fd, code = 0;
+
+	ctx->db = db;
+	WRLOCK(ctx);
+	if (db->refs > 0) {
+		db->refs++;
+		UNLOCK(ctx);
+		return 0;
+	}
 
-	if ((f = fopen(path, "rt")) == NULL) return KADM5_BAD_DB;
-	// header
-	if (fgets(buf, sizeof(buf), f) == NULL) {
-		fclose(f);
+	if ((fd = open(path, O_RDONLY)) == -1) {
+		UNLOCK(ctx);
+		ctx->db = NULL;
 		return KADM5_BAD_DB;
 	}
+	if (fstat(fd, &st) == -1 || st.st_size == 0
+	 || (data = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0)) == MAP_FAILED) {
+		UNLOCK(ctx);
+		ctx->db = NULL;
+		close(fd);
+		return KADM5_BAD_DB;
+	}
+	close(fd);
+	madvise((void *)data, st.st_size, MADV_SEQUENTIAL);
+	end = data + st.st_size;
+
+	// header
+	line = memchr(data, '\n', end - data);
+	line = line ? line + 1 : end;
+	// space for all lines
+	for (lines = 1, eol = line; (eol = memchr(eol, '\n', end - eol)) != NULL; eol++) lines++;
+	code = db_reserve(db, lines);
 	// data
-	LOCK(ctx);
-	while ((ctx->n < FAKE_MAX_N) && (fgets(buf, sizeof(buf), f) != NULL)) {
-		if ((code = str2db(buf, &ctx->db[ctx->n])) != 0) {
-			UNLOCK(ctx);
-			db_free(ctx);
-			fclose(f);
-			return code;
+	while (!code && line < end) {
+		if ((eol = memchr(line, '\n', end - line)) == NULL) eol = end;
+		len = eol - line;
+		if (len && line[len - 1] == '\r') len--;
+		if (len) {
+			slot = db_slot(db);
+			if ((code = str2db(line, len, &db->princs[slot])) == 0) {
+				if (db->index[index_position(db, db->princs[slot].name)]) {
+					code = KADM5_BAD_DB;
+				} else {
+					index_add(db, slot);
+					db->sorted[db->count++] = slot;
+				}
+			}
 		}
-		ctx->n++;
+		line = eol + 1;
+	}
+	munmap((void *)data, st.st_size);
+	if (code) {
+		db_clear(db);
+		UNLOCK(ctx);
+		ctx->db = NULL;
+		return code;
 	}
+	qsort_r(db->sorted, db->count, sizeof(*db->sorted), sorted_compare, db);
+	db->refs = 1;
 	UNLOCK(ctx);
 
-	fclose(f);
 	return 0;
 }
 
@@ -250,21 +555,21 @@ static int db_load(krb5_context ctx, const char *path) {
 static int db_get(krb5_context ctx, kadm5_principal_ent_t ent, krb5_const_principal principal) {
 	krb5_error_code code;
 	fake_kadm5_principal record;
-	int i;
+	ssize_t i;
 
 	if (check_principal(principal) != 0) return KADM5_BAD_PRINCIPAL;
 
-	LOCK(ctx);
+	RDLOCK(ctx);
 	i = fake_search(ctx, principal);
 	if (i == -1) {
 		UNLOCK(ctx);
 		return KADM5_UNK_PRINC;
 	}
-	record = &ctx->db[i];
+	record = &ctx->db->princs[i];
 
 	memset(ent, 0, sizeof(*ent));
 
-	code = krb5_build_principal(ctx, &ent->principal, ctx->rlen, ctx->realm, ctx->db[i].name, NULL);
+	code = krb5_build_principal(ctx, &ent->principal, ctx->rlen, ctx->realm, record->name, NULL);
 	if (code) {
 		UNLOCK(ctx);
 		return code;
@@ -272,15 +577,8 @@ static int db_get(krb5_context ctx, kadm5_principal_ent_t ent, krb5_const_princi
 
 	ent->princ_expire_time = record->expiration;
 	ent->pw_expiration = record->pw_expiration;
-	if (record->modification_name) {
-		size_t j;
-
-		for (j = 0; j < ctx->n; j++) {
-			if (strcmp(record->modification_name, ctx->db[j].name)) break;
-		}
-		if (j < ctx->n)
-			krb5_build_principal(ctx, &ent->mod_name, ctx->rlen, ctx->realm, ctx->db[j].name, NULL);
-	}
+	if (record->modification_name && record->modification_name[0])
+		krb5_parse_name(ctx, record->modification_name, &ent->mod_name);
 	ent->mod_date = record->modification;
 	ent->attributes = record->attributes;
 	ent->policy = record->policy ? strdup(record->policy) : NULL;
@@ -297,34 +595,35 @@ static int db_get(krb5_context ctx, kadm5_principal_ent_t ent, krb5_const_princi
  * Put Krb5 principal data to the fake database
  */
 static int db_put(krb5_context ctx, kadm5_principal_ent_t ent, long mask, const char *pass) {
-	fake_kadm5_principal record;
+	_fake_kadm5_principal record;
 	int code;
-	size_t i;
+	size_t slot;
 
 	if (check_principal(ent->principal) != 0) return KADM5_BAD_PRINCIPAL;
 	if ((mask & KADM5_PRINCIPAL) == 0) return KADM5_BAD_MASK;
 	mask |= (KADM5_PRINCIPAL | KADM5_POLICY | KADM5_ATTRIBUTES | KADM5_PW_EXPIRATION | KADM5_LAST_PWD_CHANGE | KADM5_PRINC_EXPIRE_TIME | KADM5_MAX_LIFE | KADM5_MAX_RLIFE);
 
-	LOCK(ctx);
-	i = fake_search(ctx, ent->principal);
-	if (i != -1) {
+	WRLOCK(ctx);
+	if (fake_search(ctx, ent->principal) != -1) {
 		UNLOCK(ctx);
 		return KADM5_DUP;
 	}
 
-	if (ctx->n >= FAKE_MAX_N) {
+	if (db_reserve(ctx->db, ctx->db->count + 1) != 0) {
 		UNLOCK(ctx);
 		return KADM5_FAILURE;
 	}
-	record = &ctx->db[ctx->n];
-	memset(record, 0, sizeof(*record));
-	code = fill_record(ctx, record, ent, mask);
+	memset(&record, 0, sizeof(record));
+	code = fill_record(ctx, &record, ent, mask);
 	if (code) {
+		free_record(&record);
 		UNLOCK(ctx);
 		return code;
 	}
-	record->password = pass ? strdup(pass) : NULL;
-	ctx->n++;
+	record.password = pass ? strdup(pass) : NULL;
+	slot = db_slot(ctx->db);
+	ctx->db->princs[slot] = record;
+	db_link(ctx->db, slot);
 
 	UNLOCK(ctx);
 	return 0;
@@ -335,27 +634,20 @@ static int db_put(krb5_context ctx, kadm5_principal_ent_t ent, long mask, const
  * Remove Krb5 principal data from the fake database
  */
 static int db_remove(krb5_context ctx, krb5_principal principal) {
-	size_t i, j;
+	ssize_t i;
 
 	if (check_principal(principal) != 0) return KADM5_BAD_PRINCIPAL;
 
-	LOCK(ctx);
+	WRLOCK(ctx);
 	i = fake_search(ctx, principal);
 	if (i == -1) {
 		UNLOCK(ctx);
 		return KADM5_UNK_PRINC;
 	}
 
-	if (i >= FAKE_MAX_N) {
-		UNLOCK(ctx);
-		return KADM5_FAILURE;
-	}
-
-	free_record(&ctx->db[i]);
-	for (j = i; j + 1 < ctx->n; j++) {
-		ctx->db[j] = ctx->db[j+1];
-	}
-	ctx->n--;
+	db_unlink(ctx->db, i);
+	free_record(&ctx->db->princs[i]);
+	ctx->db->holes[ctx->db->nholes++] = i;
 
 	UNLOCK(ctx);
 	return 0;
@@ -367,20 +659,20 @@ static int db_remove(krb5_context ctx, krb5_principal principal) {
  */
 static int db_modify(krb5_context ctx, kadm5_principal_ent_t ent, long mask) {
 	fake_kadm5_principal record;
-	size_t i;
+	ssize_t i;
 	int code;
 
 	if ((mask & KADM5_PRINCIPAL) != 0) return KADM5_BAD_MASK;
 	if (check_principal(ent->principal) != 0) return KADM5_BAD_PRINCIPAL;
 
-	LOCK(ctx);
+	WRLOCK(ctx);
 	i = fake_search(ctx, ent->principal);
 	if (i == -1) {
 		UNLOCK(ctx);
 		return KADM5_UNK_PRINC;
 	}
 
-	record = &ctx->db[i];
+	record = &ctx->db->princs[i];
 	code = fill_record(ctx, record, ent, mask);
 
 	UNLOCK(ctx);
@@ -396,9 +688,6 @@ static int db_modify(krb5_context ctx, kadm5_principal_ent_t ent, long mask) {
 
 void krb5_free_context(krb5_context ctx) {
 	db_free(ctx);
-#ifdef FAKE_PTHREAD
-	pthread_mutex_destroy(&ctx->lock);
-#endif
 	free(ctx->admin_name);
 	free(ctx->admin_password);
 	free(ctx->realm);
@@ -449,6 +738,11 @@ krb5_error_code krb5_parse_name(krb5_context ctx, const char *name, krb5_princip
 		if (realm) break;
 	}
 	princ_name[j] = '\0';
+	/* more realm separators */
+	if (realm && strchr(realm, '@')) {
+		free(princ_name);
+		return KRB5_PARSE_MALFORMED;
+	}
 
 	realm = realm ? : ctx->realm;
 	if ((code = krb5_build_principal(ctx, principal_out, strlen(realm), realm, princ_name, NULL)) != 0) {
@@ -618,20 +912,24 @@ krb5_error_code kadm5_init_krb5_context(krb5_context *pctx) {
 	char *path = getenv("FAKE_KADM5_DATA") ? : DEFAULT_FAKE_KADM5_DATA;
 	char *realm = getenv("FAKE_KADM5_REALM") ? : DEFAULT_REALM;
 
-#ifdef FAKE_PTHREAD
-	if (pthread_mutex_init(&ctx->lock, NULL) != 0) return KADM5_NOT_INIT;
-#endif
 	if ((code = db_load(ctx, path)) != 0) {
 		free(ctx);
 		return code;
 	}
-	if (!ctx->n) return KADM5_BAD_DB;
+	RDLOCK(ctx);
+	if (!ctx->db->count || !ctx->db->princs[0].name) {
+		UNLOCK(ctx);
+		db_free(ctx);
+		free(ctx);
+		return KADM5_BAD_DB;
+	}
 
 	ctx->realm = strdup(realm);
 	ctx->rlen = strlen(realm);
-	if (asprintf(&ctx->admin_name, "%s@%s", ctx->db[0].name, ctx->realm) == -1)
+	if (asprintf(&ctx->admin_name, "%s@%s", ctx->db->princs[0].name, ctx->realm) == -1)
 		ctx->admin_name = NULL;
-	ctx->admin_password = ctx->db[0].password ? strdup(ctx->db[0].password) : NULL;
+	ctx->admin_password = ctx->db->princs[0].password ? strdup(ctx->db->princs[0].password) : NULL;
+	UNLOCK(ctx);
 
 	*pctx = ctx;
 	return 0;
@@ -651,6 +949,7 @@ kadm5_ret_t kadm5_init_with_password(
 {
 	_kadm5_handle *handle;
 
+	fake_login_latency();
 	if ((params->mask & KADM5_CONFIG_REALM) == 0) return KADM5_MISSING_CONF_PARAMS;
 	if (strcmp(ctx->admin_name, client_name) != 0) return KADM5_BAD_PASSWORD;
 	if (pass) {
@@ -662,6 +961,7 @@ kadm5_ret_t kadm5_init_with_password(
 	handle = calloc(sizeof(*handle), 1);
 	handle->ctx = ctx;
 	handle->realm = strdup(params->realm);
+	handle->expires = fake_ticket_expiry(ctx, client_name);
 	*server_handle = handle;
 
 	return 0;
@@ -681,12 +981,14 @@ kadm5_ret_t kadm5_init_with_skey(
 {
 	_kadm5_handle *handle;
 
+	fake_login_latency();
 	if ((params->mask & KADM5_CONFIG_REALM) == 0) return KADM5_MISSING_CONF_PARAMS;
 	if (strcmp(ctx->admin_name, client_name) != 0) return KADM5_BAD_PASSWORD;
 
 	handle = calloc(sizeof(*handle), 1);
 	handle->ctx = ctx;
 	handle->realm = strdup(params->realm);
+	handle->expires = fake_ticket_expiry(ctx, client_name);
 	*server_handle = handle;
 
 	return 0;
@@ -711,6 +1013,9 @@ kadm5_ret_t kadm5_get_principal(
 {
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
 	return db_get(ctx, ent, principal);
 }
@@ -741,6 +1046,9 @@ kadm5_ret_t kadm5_create_principal(
 {
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
 	return db_put(ctx, ent, mask, pass);
 }
@@ -752,6 +1060,9 @@ kadm5_ret_t kadm5_delete_principal(
 {
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
 	return db_remove(ctx, principal);
 }
@@ -764,8 +1075,11 @@ kadm5_ret_t kadm5_modify_principal(
 {
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
-    return db_modify(ctx, ent, mask);
+	return db_modify(ctx, ent, mask);
 }
 
 
@@ -774,14 +1088,17 @@ kadm5_ret_t kadm5_rename_principal(
 	krb5_principal old,
 	krb5_principal new)
 {
-	int i;
+	ssize_t i;
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
 	if (check_principal(old) != 0) return KADM5_BAD_PRINCIPAL;
 	if (check_principal(new) != 0) return KADM5_BAD_PRINCIPAL;
 
-	LOCK(ctx);
+	WRLOCK(ctx);
 	i = fake_search(ctx, new);
 	if (i != -1) {
 		UNLOCK(ctx);
@@ -794,8 +1111,10 @@ kadm5_ret_t kadm5_rename_principal(
 		return KADM5_UNK_PRINC;
 	}
 
-	free(ctx->db[i].name);
-	ctx->db[i].name = strdup(new->data[0].data);
+	db_unlink(ctx->db, i);
+	free(ctx->db->princs[i].name);
+	ctx->db->princs[i].name = strdup(new->data[0].data);
+	db_link(ctx->db, i);
 
 	UNLOCK(ctx);
 	return 0;
@@ -805,7 +1124,8 @@ kadm5_ret_t kadm5_rename_principal(
 /**
  * Get available principals.
  *
- * Query expression is handled by fnmatch.
+ * Query expression is handled by fnmatch. Principals are listed in the name
+ * order, only the range with the literal prefix of the expression is matched.
  */
 kadm5_ret_t kadm5_get_principals(
 	void *server_handle,
@@ -813,24 +1133,44 @@ kadm5_ret_t kadm5_get_principals(
 	char ***princs,
 	int *count)
 {
-	int i, j;
-	char *name;
+	size_t i, j, plen;
+	char *name, *prefix, **names;
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	_fake_db *db = ctx->db;
+	kadm5_ret_t code;
 
-	LOCK(ctx);
-	*princs = calloc(sizeof(char *), ctx->n);
-	if (!*princs)
+	if ((code = fake_call(server_handle)) != 0) return code;
+
+	// literal name part (before the first wildcard, escape, or realm)
+	plen = exp ? strcspn(exp, "*?[\\@") : 0;
+	if ((prefix = strndup(exp ? exp : "", plen)) == NULL) return KADM5_FAILURE;
+
+	RDLOCK(ctx);
+	i = sorted_position(db, prefix);
+	names = calloc(sizeof(char *), db->count - i + 1);
+	if (!names) {
+		UNLOCK(ctx);
+		free(prefix);
 		return KADM5_FAILURE;
-	for (i = 0, j = 0; i < (int)ctx->n; i++) {
-		if (asprintf(&name, "%s@%s", ctx->db[i].name, handle->realm) == -1)
+	}
+	for (j = 0; i < db->count; i++) {
+		const char *princ = db->princs[db->sorted[i]].name;
+
+		if (strncmp(princ, prefix, plen) != 0) break;
+		if (asprintf(&name, "%s@%s", princ, handle->realm) == -1)
 			continue;
 		if (!exp || (fnmatch(exp, name, 0) == 0)) {
-			(*princs)[j++] = name;
+			names[j++] = name;
+		} else {
+			free(name);
 		}
 	}
-	*count = j;
 	UNLOCK(ctx);
+	free(prefix);
+
+	*princs = names;
+	*count = j;
 
 	return 0;
 }
@@ -855,18 +1195,24 @@ kadm5_ret_t kadm5_chpass_principal(
 	krb5_principal principal,
 	char *pass)
 {
-	int i;
+	ssize_t i;
 	_kadm5_handle *handle = server_handle;
 	_krb5_context *ctx = handle->ctx;
+	kadm5_ret_t code;
+
+	if ((code = fake_call(server_handle)) != 0) return code;
 
 	if (check_principal(principal) != 0) return KADM5_BAD_PRINCIPAL;
 
-	LOCK(ctx);
+	WRLOCK(ctx);
 	i = fake_search(ctx, principal);
-	if (i == -1) return KADM5_UNK_PRINC;
+	if (i == -1) {
+		UNLOCK(ctx);
+		return KADM5_UNK_PRINC;
+	}
 
-	free(ctx->db[i].password);
-	ctx->db[i].password = pass ? strdup(pass) : NULL;
+	free(ctx->db->princs[i].password);
+	ctx->db->princs[i].password = pass ? strdup(pass) : NULL;
 	UNLOCK(ctx);
 
 	return 0;
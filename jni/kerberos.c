@@ -1,7 +1,9 @@
-#include <inttypes.h>
+#include <errno.h>
+#include <fnmatch.h>
+#include <pthread.h>
 #include <stdio.h>
 #include <string.h>
-#include <syslog.h>
+#include <time.h>
 
 #include <kadm5/admin.h>
 #include <profile.h>
@@ -53,10 +55,180 @@ char *krbconn_error(krbconn_context_t *ctx, long code) {
 }
 
 
+int64_t krbconn_now(void) {
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+
+/**
+ * Record the kadm5 call in the statistics of the handle.
+ *
+ * @return the code of the call
+ */
+static long krbconn_stat(krbconn_context_t *ctx, int call, int64_t start, long code) {
+	krbconn_stats_t *stats = &ctx->stats;
+	int64_t time = krbconn_now() - start;
+	int bucket = 0;
+
+	while (bucket < KRBCONN_BUCKETS - 1 && time / 1000 >= ((int64_t)1 << bucket)) bucket++;
+	stats->calls[call]++;
+	stats->time[call] += time;
+	stats->histogram[call][bucket]++;
+	ctx->last_code = code;
+	if (ctx->trace) krbconn_trace(ctx, call, start, 0, code);
+	if (code != 0) {
+		stats->errors[call]++;
+		/* only the first distinct codes are counted */
+		for (int i = 0; i < KRBCONN_ERROR_CODES; i++) {
+			if (stats->code_counts[i] == 0) stats->codes[i] = code;
+			if (stats->codes[i] == code) {
+				stats->code_counts[i]++;
+				break;
+			}
+		}
+	}
+
+	return code;
+}
+
+
+/**
+ * Add the statistics of the handle and its workers to the values
+ * (KRBCONN_STATS_SIZE), and reset them.
+ *
+ * @return number of the calls
+ */
+int krbconn_stats(krbconn_context_t *ctx, int64_t *values) {
+	krbconn_stats_t *stats = &ctx->stats;
+	int64_t *codes = values + KRBCONN_CALLS * KRBCONN_STATS_CALL;
+	int n = 0;
+
+	for (int call = 0; call < KRBCONN_CALLS; call++) {
+		int64_t *v = values + call * KRBCONN_STATS_CALL;
+
+		if (stats->calls[call] == 0) continue;
+		n += stats->calls[call];
+		v[0] += stats->calls[call];
+		v[1] += stats->errors[call];
+		v[2] += stats->time[call];
+		for (int i = 0; i < KRBCONN_BUCKETS; i++) v[3 + i] += stats->histogram[call][i];
+	}
+	for (int i = 0; i < KRBCONN_ERROR_CODES && stats->code_counts[i]; i++) {
+		for (int j = 0; j < KRBCONN_ERROR_CODES; j++) {
+			if (codes[2 * j + 1] == 0) codes[2 * j] = stats->codes[i];
+			if (codes[2 * j] == stats->codes[i]) {
+				codes[2 * j + 1] += stats->code_counts[i];
+				break;
+			}
+		}
+	}
+	memset(stats, 0, sizeof(*stats));
+
+	for (int i = 0; i < ctx->n_workers; i++) n += krbconn_stats(&ctx->workers[i], values);
+
+	return n;
+}
+
+
+/**
+ * Add the debug trace record of the operation started at the given time
+ * (krbconn_now()), if the handle is debugging.
+ *
+ * Only the thread using the handle adds the records.
+ */
+void krbconn_trace(krbconn_context_t *ctx, int op, int64_t start, int count, long code) {
+	krbconn_ring_t *ring = ctx->trace;
+	krbconn_trace_t *record;
+	struct timespec ts;
+	uint64_t head;
+
+	if (!ring) return;
+	head = __atomic_load_n(&ring->head, __ATOMIC_RELAXED);
+	record = &ring->records[head & (KRBCONN_TRACE_SIZE - 1)];
+	/* the published head is visible before the record is overwritten */
+	__atomic_thread_fence(__ATOMIC_RELEASE);
+	clock_gettime(CLOCK_REALTIME, &ts);
+	record->duration = krbconn_now() - start;
+	record->time = (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec - record->duration;
+	record->op = op;
+	record->count = count;
+	record->code = code;
+	__atomic_store_n(&ring->head, head + 1, __ATOMIC_RELEASE);
+}
+
+
+static int64_t *krbconn_trace_export(int64_t *v, const krbconn_trace_t *record) {
+	v[0] = record->time;
+	v[1] = record->duration;
+	v[2] = record->op;
+	v[3] = record->count;
+	v[4] = record->code;
+	return v + KRBCONN_TRACE_VALUES;
+}
+
+
+/**
+ * Read the debug trace records of the handle and its workers into the values
+ * (KRBCONN_TRACE_VALUES for each record), at most max records.
+ *
+ * The records can be read during the operations on the handle (by one reader
+ * at a time). The records overwritten before they were read are reported by
+ * one KRBCONN_TRACE_LOST record.
+ *
+ * @return number of the records
+ */
+int krbconn_trace_read(krbconn_context_t *ctx, int64_t *values, int max) {
+	krbconn_ring_t *ring = ctx->trace;
+	krbconn_trace_t copy[KRBCONN_TRACE_SIZE], lost;
+	uint64_t head, tail, valid;
+	int n = 0, m;
+
+	if (ring && max > 1) {
+		memset(&lost, 0, sizeof lost);
+		head = __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+		tail = ring->tail;
+		if (head - tail > KRBCONN_TRACE_SIZE) {
+			lost.count = head - tail - KRBCONN_TRACE_SIZE;
+			tail = head - KRBCONN_TRACE_SIZE;
+		}
+		/* place for the lost record */
+		if (head - tail > (uint64_t)max - 1) head = tail + max - 1;
+		for (uint64_t i = tail; i < head; i++) copy[i - tail] = ring->records[i & (KRBCONN_TRACE_SIZE - 1)];
+
+		/* drop the records overwritten during the copy */
+		__atomic_thread_fence(__ATOMIC_ACQUIRE);
+		valid = __atomic_load_n(&ring->head, __ATOMIC_RELAXED);
+		valid = valid >= KRBCONN_TRACE_SIZE ? valid - KRBCONN_TRACE_SIZE + 1 : 0;
+		m = valid > tail ? (valid < head ? valid - tail : head - tail) : 0;
+		lost.count += m;
+		ring->tail = head;
+
+		if (lost.count) {
+			lost.op = KRBCONN_TRACE_LOST;
+			values = krbconn_trace_export(values, &lost);
+			n++;
+		}
+		for (uint64_t i = tail + m; i < head; i++, n++) values = krbconn_trace_export(values, &copy[i - tail]);
+	}
+
+	for (int i = 0; i < ctx->n_workers && n < max; i++) {
+		m = krbconn_trace_read(&ctx->workers[i], values, max - n);
+		values += m * KRBCONN_TRACE_VALUES;
+		n += m;
+	}
+
+	return n;
+}
+
+
 long krbconn_renew(krbconn_context_t *ctx, krbconn_config_t *config) {
 	kadm5_config_params params;
 	kadm5_ret_t code = KADM5_BAD_CLIENT_PARAMS;
 	void *handle = NULL;
+	int64_t start;
 
 	if (ctx->handle) {
 		kadm5_destroy(ctx->handle);
@@ -79,15 +251,20 @@ long krbconn_renew(krbconn_context_t *ctx, krbconn_config_t *config) {
 	params.mask |= KADM5_CONFIG_REALM;
 	params.realm = ctx->realm;
 
+	start = krbconn_now();
 	if (config->keytab) {
 		code = kadm5_init_with_skey(ctx->krb, config->principal, config->keytab, NULL, &params, KADM5_STRUCT_VERSION, KADM5_API_VERSION_4, NULL, &handle);
 	} else if (config->password) {
 		code = kadm5_init_with_password(ctx->krb, config->principal, config->password, NULL, &params, KADM5_STRUCT_VERSION, KADM5_API_VERSION_4, NULL, &handle);
 	}
+	if (config->keytab || config->password) krbconn_stat(ctx, KRBCONN_CALL_RENEW, start, code);
 
 	if (code != 0) return code;
 	ctx->handle = handle;
-	ctx->debug = config->debug;
+
+	for (int i = 0; i < ctx->n_workers; i++) {
+		if ((code = krbconn_renew(&ctx->workers[i], config)) != 0) return code;
+	}
 
 	return 0;
 }
@@ -97,30 +274,53 @@ long krbconn_init(krbconn_context_t *ctx, krbconn_config_t *config) {
 	krb5_context krb = NULL;
 	krb5_error_code code;
 
-	if (config->debug) openlog("krbconn", 0, LOG_DAEMON);
 	memset(ctx, 0, sizeof(*ctx));
+	if (config->debug && (ctx->trace = calloc(sizeof(krbconn_ring_t), 1)) == NULL) return KADM5_FAILURE;
 	code = kadm5_init_krb5_context(&krb);
 	if (code != 0) return code;
 	ctx->krb = krb;
 
-	return krbconn_renew(ctx, config);
+	if ((code = krbconn_renew(ctx, config)) != 0) return code;
+
+	/* each worker has its own kadmin handle */
+	if (config->handles > 0) {
+		krbconn_config_t worker_config = *config;
+
+		worker_config.handles = 0;
+		ctx->workers = calloc(sizeof(krbconn_context_t), config->handles);
+		if (!ctx->workers) return KADM5_FAILURE;
+		for (int i = 0; i < config->handles; i++) {
+			if ((code = krbconn_init(&ctx->workers[i], &worker_config)) != 0) {
+				krbconn_destroy(&ctx->workers[i]);
+				return code;
+			}
+			ctx->n_workers++;
+		}
+	}
+
+	return 0;
 }
 
 
 void krbconn_destroy(krbconn_context_t *ctx) {
 	if (!ctx) return;
+	for (int i = 0; i < ctx->n_workers; i++) krbconn_destroy(&ctx->workers[i]);
+	free(ctx->workers);
 	if (ctx->handle) kadm5_destroy(ctx->handle);
 	if (ctx->krb) krb5_free_context(ctx->krb);
 	free(ctx->realm);
+	free(ctx->trace);
 	memset(ctx, 0, sizeof(*ctx));
-	if (ctx->debug) closelog();
 }
 
 
 void krbconn_free_config(krbconn_config_t *config) {
 	free(config->keytab);
 	free(config->principal);
-	free(config->password);
+	if (config->password) {
+		memset(config->password, 0, strlen(config->password));
+		free(config->password);
+	}
 	free(config->realm);
 	memset(config, 0, sizeof(*config));
 }
@@ -134,6 +334,36 @@ void krbconn_free_principal(krbconn_principal_t *principal) {
 }
 
 
+/**
+ * Check the kadmin handles of the context (the main and the worker handles).
+ *
+ * The principal is fetched on each handle. Missing principal or permission
+ * means the handle still works.
+ */
+long krbconn_validate(krbconn_context_t *ctx, const char *principal) {
+	krb5_principal krbname;
+	kadm5_principal_ent_rec krbrec;
+	int64_t start;
+	long code;
+
+	if (!ctx->handle) return KADM5_FAILURE;
+	if ((code = krb5_parse_name(ctx->krb, principal, &krbname)) != 0) return code;
+	memset(&krbrec, 0, sizeof krbrec);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_GET, start, kadm5_get_principal(ctx->handle, krbname, &krbrec, KADM5_PRINCIPAL));
+	if (code == 0) kadm5_free_principal_ent(ctx->handle, &krbrec);
+	krb5_free_principal(ctx->krb, krbname);
+	if (code == KADM5_UNK_PRINC || code == KADM5_AUTH_GET) code = 0;
+	if (code != 0) return code;
+
+	for (int i = 0; i < ctx->n_workers; i++) {
+		if ((code = krbconn_validate(&ctx->workers[i], principal)) != 0) return code;
+	}
+
+	return 0;
+}
+
+
 static krb5_error_code krbconn_princ2str(krb5_context krb, krb5_principal principal, char **name) {
 	char *s;
 	krb5_error_code code;
@@ -147,17 +377,12 @@ static krb5_error_code krbconn_princ2str(krb5_context krb, krb5_principal princi
 
 
 /*
- * fill KADM5 principal record according to the specified masks
+ * Fill the principal fields (without the principal name) for kadm5.
  */
-static long krbconn_fill_princrec(krb5_context krb, kadm5_principal_ent_rec *krbrec, long *mask_out, krbconn_principal_t *info, int mask_in) {
-	long code;
-	krb5_principal krbprinc;
+static void krbconn_fill_princrec_fields(kadm5_principal_ent_rec *krbrec, long *mask_out, krbconn_principal_t *info, int mask_in) {
 	long mask = *mask_out;
 
-	if ((code = krb5_parse_name(krb, info->name, &krbprinc)) != 0) return code;
-
 	memset(krbrec, 0, sizeof(*krbrec));
-	krbrec->principal = krbprinc;
 	if ((mask_in & KRBCONN_PRINC_EXPIRE_TIME) != 0) {
 		mask |= KADM5_PRINC_EXPIRE_TIME;
 		krbrec->princ_expire_time = info->princ_expire;
@@ -192,6 +417,17 @@ static long krbconn_fill_princrec(krb5_context krb, kadm5_principal_ent_rec *krb
 	}
 
 	*mask_out = mask;
+}
+
+
+static long krbconn_fill_princrec(krb5_context krb, kadm5_principal_ent_rec *krbrec, long *mask_out, krbconn_principal_t *info, int mask_in) {
+	long code;
+	krb5_principal krbprinc;
+
+	if ((code = krb5_parse_name(krb, info->name, &krbprinc)) != 0) return code;
+
+	krbconn_fill_princrec_fields(krbrec, mask_out, info, mask_in);
+	krbrec->principal = krbprinc;
 	return 0;
 }
 
@@ -202,36 +438,187 @@ static void krbconn_free_princrec(krb5_context krb, kadm5_principal_ent_rec *krb
 }
 
 
-long krbconn_get(krbconn_context_t *ctx, char *princ_name, krbconn_principal_t *result) {
+/*
+ * KADM5 mask of the principal fields for krbconn_get()
+ */
+static long krbconn_get_mask(int mask) {
+	long krbmask = KADM5_PRINCIPAL;
+
+	if (mask == KRBCONN_ALL) return KADM5_PRINCIPAL_NORMAL_MASK;
+
+	if ((mask & KRBCONN_PRINC_EXPIRE_TIME) != 0) krbmask |= KADM5_PRINC_EXPIRE_TIME;
+	if ((mask & KRBCONN_PW_EXPIRATION) != 0) krbmask |= KADM5_PW_EXPIRATION;
+	if ((mask & KRBCONN_LAST_PWD_CHANGE) != 0) krbmask |= KADM5_LAST_PWD_CHANGE;
+	if ((mask & KRBCONN_ATTRIBUTES) != 0) krbmask |= KADM5_ATTRIBUTES;
+	if ((mask & KRBCONN_MAX_LIFE) != 0) krbmask |= KADM5_MAX_LIFE;
+	if ((mask & KRBCONN_MOD_TIME) != 0) krbmask |= KADM5_MOD_TIME;
+	if ((mask & KRBCONN_MOD_NAME) != 0) krbmask |= KADM5_MOD_NAME;
+	if ((mask & KRBCONN_POLICY) != 0) krbmask |= KADM5_POLICY;
+	if ((mask & KRBCONN_MAX_RLIFE) != 0) krbmask |= KADM5_MAX_RLIFE;
+	if ((mask & KRBCONN_LAST_SUCCESS) != 0) krbmask |= KADM5_LAST_SUCCESS;
+	if ((mask & KRBCONN_LAST_FAILED) != 0) krbmask |= KADM5_LAST_FAILED;
+
+	return krbmask;
+}
+
+
+/**
+ * Get the principal.
+ *
+ * Only the fields selected by the mask are fetched (KRBCONN_ALL for all),
+ * other fields are empty.
+ */
+long krbconn_get(krbconn_context_t *ctx, char *princ_name, int mask, krbconn_principal_t *result) {
+	int64_t start;
 	long code;
 	krb5_principal principal;
 	kadm5_principal_ent_rec krbresult;
 
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s) start", __FUNCTION__, princ_name);
+	memset(result, 0, sizeof(*result));
+	if (!princ_name) return KADM5_UNK_PRINC;
 	code = krb5_parse_name(ctx->krb, princ_name, &principal);
 	if (code) return code;
 
-	code = kadm5_get_principal(ctx->handle, principal, &krbresult, KADM5_PRINCIPAL_NORMAL_MASK/* | KADM5_KEY_DATA*/);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_GET, start, kadm5_get_principal(ctx->handle, principal, &krbresult, krbconn_get_mask(mask)/* | KADM5_KEY_DATA*/));
 	krb5_free_principal(ctx->krb, principal);
 	if (code) return code;
 
-	memset(result, 0, sizeof(*result));
-	if ((code = krbconn_princ2str(ctx->krb, krbresult.principal, &result->name)) != 0) return code;
-	result->princ_expire = krbresult.princ_expire_time;
-	result->pwd_expire = krbresult.pw_expiration;
-	result->pwd_change = krbresult.last_pwd_change;
-	if ((code = krbconn_princ2str(ctx->krb, krbresult.mod_name, &result->mod_name)) != 0) return code;
-	result->mod_date = krbresult.mod_date;
-	result->attributes = krbresult.attributes;
-	if (krbresult.policy) result->policy = strdup(krbresult.policy);
-	result->max_ticket_life = krbresult.max_life;
-	result->max_renewable_life = krbresult.max_renewable_life;
-	result->last_login = krbresult.last_success;
-	result->last_failed_login = krbresult.last_success;
+	if ((code = krbconn_princ2str(ctx->krb, krbresult.principal, &result->name)) != 0
+	 || ((mask & KRBCONN_MOD_NAME) != 0 && krbresult.mod_name
+	  && (code = krbconn_princ2str(ctx->krb, krbresult.mod_name, &result->mod_name)) != 0)) {
+		kadm5_free_principal_ent(ctx->handle, &krbresult);
+		krbconn_free_principal(result);
+		return code;
+	}
+	if ((mask & KRBCONN_PRINC_EXPIRE_TIME) != 0) result->princ_expire = krbresult.princ_expire_time;
+	if ((mask & KRBCONN_PW_EXPIRATION) != 0) result->pwd_expire = krbresult.pw_expiration;
+	if ((mask & KRBCONN_LAST_PWD_CHANGE) != 0) result->pwd_change = krbresult.last_pwd_change;
+	if ((mask & KRBCONN_MOD_TIME) != 0) result->mod_date = krbresult.mod_date;
+	if ((mask & KRBCONN_ATTRIBUTES) != 0) result->attributes = krbresult.attributes;
+	if ((mask & KRBCONN_POLICY) != 0 && krbresult.policy) result->policy = strdup(krbresult.policy);
+	if ((mask & KRBCONN_MAX_LIFE) != 0) result->max_ticket_life = krbresult.max_life;
+	if ((mask & KRBCONN_MAX_RLIFE) != 0) result->max_renewable_life = krbresult.max_renewable_life;
+	if ((mask & KRBCONN_LAST_SUCCESS) != 0) result->last_login = krbresult.last_success;
+	if ((mask & KRBCONN_LAST_FAILED) != 0) result->last_failed_login = krbresult.last_failed;
 
 	kadm5_free_principal_ent(ctx->handle, &krbresult);
+	return 0;
+}
+
+
+typedef void (*krbconn_task_t)(krbconn_context_t *ctx, void *data, int i);
+
+typedef struct {
+	pthread_mutex_t lock;
+	int next;
+	int count;
+	krbconn_task_t task;
+	void *data;
+} krbconn_tasks_t;
+
+typedef struct {
+	krbconn_context_t *ctx;
+	krbconn_tasks_t *tasks;
+	pthread_t thread;
+} krbconn_runner_t;
+
+
+static void *krbconn_run(void *arg) {
+	krbconn_runner_t *runner = arg;
+	krbconn_tasks_t *tasks = runner->tasks;
+	int i;
+
+	for (;;) {
+		pthread_mutex_lock(&tasks->lock);
+		i = tasks->next++;
+		pthread_mutex_unlock(&tasks->lock);
+		if (i >= tasks->count) break;
+		tasks->task(runner->ctx, tasks->data, i);
+	}
+
+	return NULL;
+}
+
+
+/**
+ * Run the tasks 0..count-1 in parallel on the main handle and at most
+ * threads-1 worker handles (each handle is used by one thread only).
+ *
+ * Returns the number of the used threads, 0 on error.
+ */
+static int krbconn_parallel(krbconn_context_t *ctx, int count, int threads, krbconn_task_t task, void *data) {
+	krbconn_tasks_t tasks;
+	krbconn_runner_t *runners;
+	int i, n;
+
+	n = ctx->n_workers < threads - 1 ? ctx->n_workers : threads - 1;
+	if (n > count - 1) n = count - 1;
+	if (n <= 0) {
+		for (i = 0; i < count; i++) task(ctx, data, i);
+		return 1;
+	}
+	if ((runners = calloc(sizeof(krbconn_runner_t), n + 1)) == NULL) return 0;
+
+	memset(&tasks, 0, sizeof tasks);
+	pthread_mutex_init(&tasks.lock, NULL);
+	tasks.count = count;
+	tasks.task = task;
+	tasks.data = data;
+
+	for (i = 0; i <= n; i++) {
+		runners[i].ctx = i ? &ctx->workers[i - 1] : ctx;
+		runners[i].tasks = &tasks;
+	}
+	/* workers in threads, the main handle in this thread (the rest is done by others on failure) */
+	for (i = 1; i <= n; i++) {
+		if (pthread_create(&runners[i].thread, NULL, krbconn_run, &runners[i]) != 0) break;
+	}
+	n = i - 1;
+	krbconn_run(&runners[0]);
+	for (i = 1; i <= n; i++) pthread_join(runners[i].thread, NULL);
+
+	pthread_mutex_destroy(&tasks.lock);
+	free(runners);
+
+	return n + 1;
+}
+
+
+typedef struct {
+	char **names;
+	int mask;
+	krbconn_principal_t *results;
+	long *codes;
+} krbconn_fetch_t;
+
 
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s) OK", __FUNCTION__, princ_name);
+static void krbconn_fetch(krbconn_context_t *ctx, void *data, int i) {
+	krbconn_fetch_t *fetch = data;
+
+	fetch->codes[i] = krbconn_get(ctx, fetch->names[i], fetch->mask, &fetch->results[i]);
+}
+
+
+/**
+ * Get more principals (only the fields selected by the mask).
+ *
+ * The principals are fetched in parallel using the worker handles (if
+ * configured). Results and error codes are stored at the same index as the
+ * principal name. Results with non-zero code are empty.
+ */
+long krbconn_get_many(krbconn_context_t *ctx, char **names, int count, int mask, krbconn_principal_t *results, long *codes) {
+	int64_t start = krbconn_now();
+	krbconn_fetch_t fetch;
+	int n;
+
+	fetch.names = names;
+	fetch.mask = mask;
+	fetch.results = results;
+	fetch.codes = codes;
+	if ((n = krbconn_parallel(ctx, count, ctx->n_workers + 1, krbconn_fetch, &fetch)) == 0) return KADM5_FAILURE;
+
+	krbconn_trace(ctx, KRBCONN_TRACE_FETCH, start, count, 0);
 	return 0;
 }
 
@@ -239,10 +626,12 @@ long krbconn_get(krbconn_context_t *ctx, char *princ_name, krbconn_principal_t *
 long krbconn_create(krbconn_context_t *ctx, krbconn_principal_t *info, int mask, char *pass) {
 	kadm5_principal_ent_rec krbrec;
 	long krbmask = KADM5_PRINCIPAL; /* required (only) during creating */
+	int64_t start;
 	long code;
 
 	if ((code = krbconn_fill_princrec(ctx->krb, &krbrec, &krbmask, info, mask)) != 0) return code;
-	code = kadm5_create_principal(ctx->handle, &krbrec, krbmask, pass);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_CREATE, start, kadm5_create_principal(ctx->handle, &krbrec, krbmask, pass));
 	krbconn_free_princrec(ctx->krb, &krbrec);
 	return code;
 }
@@ -250,20 +639,22 @@ long krbconn_create(krbconn_context_t *ctx, krbconn_principal_t *info, int mask,
 
 long krbconn_delete(krbconn_context_t *ctx, char *name) {
 	krb5_principal krbname;
+	int64_t start;
 	long code = 0;
 
 	if ((code = krb5_parse_name(ctx->krb, name, &krbname)) != 0) return code;
-	code = kadm5_delete_principal(ctx->handle, krbname);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_DELETE, start, kadm5_delete_principal(ctx->handle, krbname));
 	krb5_free_principal(ctx->krb, krbname);
 	return code;
 }
 
 
 long krbconn_list(krbconn_context_t *ctx, const char *search, char ***list, int *count) {
+	int64_t start;
 	long code;
 	char *exp = NULL;
 
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s) start", __FUNCTION__, search);
 	*list = NULL;
 	*count = 0;
 
@@ -279,10 +670,10 @@ long krbconn_list(krbconn_context_t *ctx, const char *search, char ***list, int
 			strcpy(exp + len + 1, ctx->realm);
 		}
 	}
-	code = kadm5_get_principals(ctx->handle, exp, list, count);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_LIST, start, kadm5_get_principals(ctx->handle, exp, list, count));
 	free(exp);
 
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s): %lu", __FUNCTION__, search, code);
 	return code;
 }
 
@@ -295,19 +686,103 @@ void krbconn_free_list(krbconn_context_t *ctx, char **list, int count) {
 long krbconn_modify(krbconn_context_t *ctx, krbconn_principal_t *info, int mask) {
 	kadm5_principal_ent_rec krbrec;
 	long krbmask = 0;
+	int64_t start;
 	long code;
 
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s)", __FUNCTION__, info->name);
 	if ((code = krbconn_fill_princrec(ctx->krb, &krbrec, &krbmask, info, mask)) != 0) return code;
-	code = kadm5_modify_principal(ctx->handle, &krbrec, krbmask);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_MODIFY, start, kadm5_modify_principal(ctx->handle, &krbrec, krbmask));
 	krbconn_free_princrec(ctx->krb, &krbrec);
-	if (ctx->debug) syslog(LOG_INFO, "%s(%s): %lu", __FUNCTION__, info->name, code);
+	return code;
+}
+
+
+/**
+ * Current attributes of the principal.
+ */
+static long krbconn_get_attributes(krbconn_context_t *ctx, krb5_principal principal, int *attributes) {
+	kadm5_principal_ent_rec krbresult;
+	int64_t start = krbconn_now();
+	long code;
+
+	code = krbconn_stat(ctx, KRBCONN_CALL_GET, start, kadm5_get_principal(ctx->handle, principal, &krbresult, KADM5_PRINCIPAL | KADM5_ATTRIBUTES));
+	if (code != 0) return code;
+	*attributes = krbresult.attributes;
+	kadm5_free_principal_ent(ctx->handle, &krbresult);
+
+	return 0;
+}
+
+
+/**
+ * Update the principal in one call: modify, change password, and rename
+ * (in this order, only the requested steps).
+ *
+ * Flags are changed by the set and clear masks. Without KRBCONN_ATTRIBUTES
+ * in the mask, they are changed on the current principal attributes, read
+ * on the same handle right before the modification.
+ *
+ * The update starts from the given step (KRBCONN_STEP_*, 0 for all), the
+ * steps before have been done already (retry after the failure).
+ *
+ * The principal name is parsed only once. On error, the failed step is
+ * stored, the previous steps have been done.
+ */
+long krbconn_update(krbconn_context_t *ctx, krbconn_principal_t *info, int mask, int set, int clear, char *password, const char *newname, int *step) {
+	kadm5_principal_ent_rec krbrec;
+	krb5_principal principal, newprinc;
+	long krbmask = 0;
+	int64_t start;
+	long code;
+	int do_modify, do_chpass, do_rename;
+
+	do_modify = (mask || set || clear) && *step <= KRBCONN_STEP_MODIFY;
+	do_chpass = password && *step <= KRBCONN_STEP_CHPASS;
+	do_rename = newname && *step <= KRBCONN_STEP_RENAME;
+
+	/* the name is parsed for the first requested step */
+	if (do_modify) *step = KRBCONN_STEP_MODIFY;
+	else if (do_chpass) *step = KRBCONN_STEP_CHPASS;
+	else if (do_rename) *step = KRBCONN_STEP_RENAME;
+	else *step = KRBCONN_STEP_MODIFY;
+	if ((code = krb5_parse_name(ctx->krb, info->name, &principal)) != 0) return code;
+
+	if (do_modify) {
+		if ((set || clear) && (mask & KRBCONN_ATTRIBUTES) == 0) {
+			if ((code = krbconn_get_attributes(ctx, principal, &info->attributes)) != 0) goto end;
+			mask |= KRBCONN_ATTRIBUTES;
+		}
+		info->attributes = (info->attributes | set) & ~clear;
+
+		krbconn_fill_princrec_fields(&krbrec, &krbmask, info, mask);
+		krbrec.principal = principal;
+		start = krbconn_now();
+		if ((code = krbconn_stat(ctx, KRBCONN_CALL_MODIFY, start, kadm5_modify_principal(ctx->handle, &krbrec, krbmask))) != 0) goto end;
+	}
+
+	if (do_chpass) {
+		*step = KRBCONN_STEP_CHPASS;
+		start = krbconn_now();
+		if ((code = krbconn_stat(ctx, KRBCONN_CALL_CHPASS, start, kadm5_chpass_principal(ctx->handle, principal, password))) != 0) goto end;
+	}
+
+	if (do_rename) {
+		*step = KRBCONN_STEP_RENAME;
+		if ((code = krb5_parse_name(ctx->krb, newname, &newprinc)) != 0) goto end;
+		start = krbconn_now();
+		code = krbconn_stat(ctx, KRBCONN_CALL_RENAME, start, kadm5_rename_principal(ctx->handle, principal, newprinc));
+		krb5_free_principal(ctx->krb, newprinc);
+	}
+
+end:
+	krb5_free_principal(ctx->krb, principal);
 	return code;
 }
 
 
 long krbconn_rename(krbconn_context_t *ctx, const char *oldname, const char *newname) {
 	krb5_principal oldprinc, newprinc;
+	int64_t start;
 	long code = 0;
 
 	if ((code = krb5_parse_name(ctx->krb, oldname, &oldprinc)) != 0) return code;
@@ -316,7 +791,8 @@ long krbconn_rename(krbconn_context_t *ctx, const char *oldname, const char *new
 		return code;
 	}
 
-	code = kadm5_rename_principal(ctx->handle, oldprinc, newprinc);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_RENAME, start, kadm5_rename_principal(ctx->handle, oldprinc, newprinc));
 
 	krb5_free_principal(ctx->krb, oldprinc);
 	krb5_free_principal(ctx->krb, newprinc);
@@ -326,33 +802,266 @@ long krbconn_rename(krbconn_context_t *ctx, const char *oldname, const char *new
 
 
 long krbconn_chpass(krbconn_context_t *ctx, const char *princ_name, char *password) {
+	int64_t start;
 	long code;
 	krb5_principal krbprinc;
 
 	if ((code = krb5_parse_name(ctx->krb, princ_name, &krbprinc)) != 0) return code;
-	code = kadm5_chpass_principal(ctx->handle, krbprinc, password);
+	start = krbconn_now();
+	code = krbconn_stat(ctx, KRBCONN_CALL_CHPASS, start, kadm5_chpass_principal(ctx->handle, krbprinc, password));
 	krb5_free_principal(ctx->krb, krbprinc);
 
 	return code;
 }
 
 
-void krbconn_fill_config(JNIEnv *env, jobject config, krbconn_config_t* conf, jclass gs_accessor) {
-	conf->realm = jstring_getter(env, config, "getRealm");
-	conf->principal = jstring_getter(env, config, "getPrincipal");
-	conf->password = jguardedstring_getter(env, config, "getPassword", gs_accessor);
-	conf->keytab = jstring_getter(env, config, "getKeytab");
-	conf->debug = jboolean_getter(env, config, "getDebug");
+static void krbconn_batch_run(krbconn_context_t *ctx, void *data, int i) {
+	krbconn_batch_op_t *op = (krbconn_batch_op_t *)data + i;
+
+	switch (op->type) {
+		case KRBCONN_OP_CREATE:
+			op->code = krbconn_create(ctx, &op->info, op->mask, op->password);
+			break;
+		case KRBCONN_OP_DELETE:
+			op->code = krbconn_delete(ctx, op->info.name);
+			break;
+		case KRBCONN_OP_UPDATE:
+			op->code = krbconn_update(ctx, &op->info, op->mask, op->set, op->clear, op->password, op->newname, &op->step);
+			break;
+		default:
+			op->code = KADM5_FAILURE;
+	}
 }
 
 
 /**
- * Select appropriate framework exception class and throw connector exception.
+ * Run the batch of principal operations (create, delete, update).
+ *
+ * Operations are spread over the main handle and the worker handles, at most
+ * the given number of threads is used. The operations are independent, the
+ * result code (and the failed step of update) is stored in each operation.
  */
-jint throwKerberosException(JNIEnv *env, krbconn_context_t* ctx, long code) {
+long krbconn_batch(krbconn_context_t *ctx, krbconn_batch_op_t *ops, int count, int threads) {
+	int64_t start = krbconn_now();
+
+	if (krbconn_parallel(ctx, count, threads, krbconn_batch_run, ops) == 0) return KADM5_FAILURE;
+	krbconn_trace(ctx, KRBCONN_TRACE_BATCH, start, count, 0);
+
+	return 0;
+}
+
+
+
+/**
+ * Numeric principal field for the filter.
+ *
+ * Dates and times are in milliseconds. Returns 0 for missing field (zero date).
+ */
+static int krbconn_filter_field(krbconn_principal_t *princ, int field, int64_t *value) {
+	time_t t;
+
+	switch (field) {
+	case KRBCONN_PRINC_EXPIRE_TIME: t = princ->princ_expire; break;
+	case KRBCONN_PW_EXPIRATION: t = princ->pwd_expire; break;
+	case KRBCONN_LAST_PWD_CHANGE: t = princ->pwd_change; break;
+	case KRBCONN_MOD_TIME: t = princ->mod_date; break;
+	case KRBCONN_LAST_SUCCESS: t = princ->last_login; break;
+	case KRBCONN_LAST_FAILED: t = princ->last_failed_login; break;
+	case KRBCONN_MAX_LIFE:
+		*value = (int64_t)princ->max_ticket_life * 1000;
+		return 1;
+	case KRBCONN_MAX_RLIFE:
+		*value = (int64_t)princ->max_renewable_life * 1000;
+		return 1;
+	case KRBCONN_ATTRIBUTES:
+		*value = princ->attributes;
+		return 1;
+	default:
+		return 0;
+	}
+	*value = (int64_t)t * 1000;
+
+	return t != 0;
+}
+
+
+static char *krbconn_filter_string(krbconn_principal_t *princ, int field) {
+	switch (field) {
+	case KRBCONN_PRINCIPAL: return princ->name;
+	case KRBCONN_POLICY: return princ->policy;
+	case KRBCONN_MOD_NAME: return princ->mod_name;
+	default: return NULL;
+	}
+}
+
+
+static int krbconn_filter_cmp(int64_t a, int cmp, int64_t b) {
+	switch (cmp) {
+	case KRBCONN_CMP_EQ: return a == b;
+	case KRBCONN_CMP_LT: return a < b;
+	case KRBCONN_CMP_LE: return a <= b;
+	case KRBCONN_CMP_GT: return a > b;
+	case KRBCONN_CMP_GE: return a >= b;
+	default: return 0;
+	}
+}
+
+
+static int krbconn_filter_strcmp(const char *s, int cmp, const char *value) {
+	size_t len, vlen;
+
+	switch (cmp) {
+	case KRBCONN_CMP_EQ:
+		return strcmp(s, value) == 0;
+	case KRBCONN_CMP_STARTS:
+		return strncmp(s, value, strlen(value)) == 0;
+	case KRBCONN_CMP_ENDS:
+		len = strlen(s);
+		vlen = strlen(value);
+		return len >= vlen && strcmp(s + len - vlen, value) == 0;
+	case KRBCONN_CMP_CONTAINS:
+		return strstr(s, value) != NULL;
+	case KRBCONN_CMP_MATCH:
+		return fnmatch(value, s, 0) == 0;
+	default:
+		return 0;
+	}
+}
+
+
+/**
+ * Check the filter program and prepare it for the evaluation.
+ *
+ * Name patterns without realm are completed by the default realm (like for
+ * listing by kadmin).
+ */
+long krbconn_prepare_filter(krbconn_context_t *ctx, krbconn_filter_t *filter) {
+	int i, depth = 0, max = 0;
+	int64_t *insn;
+	char *s;
+
+	filter->mask = 0;
+	for (i = 0; i < filter->n; i++) {
+		insn = filter->program + i * KRBCONN_FILTER_INSN;
+		switch (insn[0]) {
+		case KRBCONN_FILTER_AND:
+		case KRBCONN_FILTER_OR:
+			if (depth < 2) return EINVAL;
+			depth--;
+			break;
+		case KRBCONN_FILTER_NOT:
+			if (depth < 1) return EINVAL;
+			break;
+		case KRBCONN_FILTER_CMP:
+			if (insn[2] < KRBCONN_CMP_EQ || insn[2] > KRBCONN_CMP_GE) return EINVAL;
+			depth++;
+			break;
+		case KRBCONN_FILTER_BITS:
+			if (insn[1] != KRBCONN_ATTRIBUTES || (insn[2] != KRBCONN_CMP_ALL_SET && insn[2] != KRBCONN_CMP_ALL_CLEAR)) return EINVAL;
+			depth++;
+			break;
+		case KRBCONN_FILTER_STR:
+			if (insn[1] != KRBCONN_PRINCIPAL && insn[1] != KRBCONN_POLICY && insn[1] != KRBCONN_MOD_NAME) return EINVAL;
+			if (insn[2] != KRBCONN_CMP_EQ && (insn[2] < KRBCONN_CMP_STARTS || insn[2] > KRBCONN_CMP_MATCH)) return EINVAL;
+			if (insn[3] < 0 || insn[3] >= filter->n_strings || !filter->strings[insn[3]]) return EINVAL;
+			if (insn[2] == KRBCONN_CMP_MATCH && !strchr(filter->strings[insn[3]], '@') && ctx->realm) {
+				if (asprintf(&s, "%s@%s", filter->strings[insn[3]], ctx->realm) == -1) return ENOMEM;
+				free(filter->strings[insn[3]]);
+				filter->strings[insn[3]] = s;
+			}
+			depth++;
+			break;
+		default:
+			return EINVAL;
+		}
+		filter->mask |= insn[1];
+		if (depth > max) max = depth;
+	}
+	if (depth != 1) return EINVAL;
+
+	if ((filter->stack = malloc(max)) == NULL) return ENOMEM;
+	return 0;
+}
+
+
+/**
+ * Evaluate the prepared filter on the principal.
+ *
+ * Missing fields don't match any comparison.
+ */
+int krbconn_filter_match(krbconn_filter_t *filter, krbconn_principal_t *princ) {
+	char *stack = filter->stack;
+	int64_t *insn, value;
+	char *s;
+	int i, sp = 0;
+
+	for (i = 0; i < filter->n; i++) {
+		insn = filter->program + i * KRBCONN_FILTER_INSN;
+		switch (insn[0]) {
+		case KRBCONN_FILTER_AND:
+			sp--;
+			stack[sp - 1] = stack[sp - 1] && stack[sp];
+			break;
+		case KRBCONN_FILTER_OR:
+			sp--;
+			stack[sp - 1] = stack[sp - 1] || stack[sp];
+			break;
+		case KRBCONN_FILTER_NOT:
+			stack[sp - 1] = !stack[sp - 1];
+			break;
+		case KRBCONN_FILTER_CMP:
+			stack[sp++] = krbconn_filter_field(princ, insn[1], &value) && krbconn_filter_cmp(value, insn[2], insn[3]);
+			break;
+		case KRBCONN_FILTER_BITS:
+			value = princ->attributes & insn[3];
+			stack[sp++] = insn[2] == KRBCONN_CMP_ALL_SET ? value == insn[3] : value == 0;
+			break;
+		case KRBCONN_FILTER_STR:
+			s = krbconn_filter_string(princ, insn[1]);
+			stack[sp++] = s && krbconn_filter_strcmp(s, insn[2], filter->strings[insn[3]]);
+			break;
+		}
+	}
+
+	return stack[0];
+}
+
+
+void krbconn_free_filter(krbconn_filter_t *filter) {
+	int i;
+
+	if (filter->strings) {
+		for (i = 0; i < filter->n_strings; i++) free(filter->strings[i]);
+		free(filter->strings);
+	}
+	free(filter->program);
+	free(filter->stack);
+	memset(filter, 0, sizeof(*filter));
+}
+
+static void krbconn_fill_config_object(JNIEnv *env, jobject config, krbconn_config_t* conf) {
+	conf->realm = jstring_getter(env, config, java_ids.config_realm);
+	conf->principal = jstring_getter(env, config, java_ids.config_principal);
+	conf->password = jguardedstring_getter(env, config, java_ids.config_password);
+	conf->keytab = jstring_getter(env, config, java_ids.config_keytab);
+	conf->debug = jboolean_getter(env, config, java_ids.config_debug);
+	conf->handles = jint_getter(env, config, java_ids.config_search_handles);
+}
+
+void krbconn_fill_config(JNIEnv *env, jobject this, krbconn_config_t* conf) {
+	jobject config = (*env)->GetObjectField(env, this, java_ids.connector_configuration);
+
+	krbconn_fill_config_object(env, config, conf);
+
+	(*env)->DeleteLocalRef(env, config);
+}
+
+
+/**
+ * Select appropriate framework exception class for the error code.
+ */
+static const char *kerberos_exception_class(long code) {
 	const char *exception;
-	char *errMsg;
-	jint retval;
 
 	switch (code) {
 		case KADM5_AUTH_GET:
@@ -372,6 +1081,12 @@ jint throwKerberosException(JNIEnv *env, krbconn_context_t* ctx, long code) {
 			exception = "org/identityconnectors/framework/common/exceptions/InvalidPasswordException";
 			break;
 		case KADM5_GSS_ERROR:
+#ifdef KRB5KRB_AP_ERR_TKT_EXPIRED
+		case KRB5KRB_AP_ERR_TKT_EXPIRED:
+#endif
+			/* usually expired admin ticket (the connector checks the credentials and logs in again) */
+			exception = KERBEROS_PACKAGE_PATH "/exceptions/CredentialsExpiredException";
+			break;
 		case KADM5_PASS_REUSE:
 			exception = "org/identityconnectors/framework/common/exceptions/ConnectorSecurityException";
 			break;
@@ -403,77 +1118,198 @@ jint throwKerberosException(JNIEnv *env, krbconn_context_t* ctx, long code) {
 			exception = KERBEROS_PACKAGE_PATH "/exceptions/KerberosException";
 	}
 
+	return exception;
+}
+
+
+/**
+ * Error message with the failed step of krbconn_update() (0 for other calls).
+ */
+static char *kerberos_exception_message(krbconn_context_t* ctx, long code, int step) {
+	static const char *steps[] = { NULL, "modify", "password change", "rename" };
+	char *errMsg, *stepMsg;
+
 	errMsg = krbconn_error(ctx, code);
+	if (step > 0 && step < (int)(sizeof(steps) / sizeof(steps[0])) && errMsg
+	 && asprintf(&stepMsg, "%s failed: %s", steps[step], errMsg) != -1) {
+		free(errMsg);
+		errMsg = stepMsg;
+	}
+
+	return errMsg;
+}
+
+
+/**
+ * Select appropriate framework exception class and throw connector exception.
+ *
+ * The failed step of krbconn_update() is added to the message (0 for other
+ * calls).
+ */
+jint throwKerberosStepException(JNIEnv *env, krbconn_context_t* ctx, long code, int step) {
+	const char *exception = kerberos_exception_class(code);
+	char *errMsg;
+	jint retval;
+
+	/* also the errors before the kadm5 calls or of the worker handles */
+	ctx->last_code = code;
+
+	errMsg = kerberos_exception_message(ctx, code, step);
 	retval = throwException(env, exception, errMsg);
 	free(errMsg);
 
-	if (ctx->debug) syslog(LOG_INFO, "%s: %s: %lu", __FUNCTION__, exception, code);
+	krbconn_trace(ctx, KRBCONN_TRACE_ERROR, krbconn_now(), step, code);
 	return retval;
 }
 
 
+jint throwKerberosException(JNIEnv *env, krbconn_context_t* ctx, long code) {
+	return throwKerberosStepException(env, ctx, code, 0);
+}
+
+
+/**
+ * Get the context of the JNI call, the result code of the previous call is
+ * cleared.
+ */
+static krbconn_context_t* krbconn_enter(jlong context) {
+	krbconn_context_t* ctx = (krbconn_context_t*)context;
+
+	ctx->last_code = 0;
+	return ctx;
+}
+
+
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1init(JNIEnv * env , jobject this, jclass gs_accessor) {
 	krbconn_context_t* ctx = calloc(sizeof(krbconn_context_t), 1);
 	krbconn_config_t conf;
 
-	jfieldID fid;
-	jclass cls;
-
-	//Get configuration from KerberosConfiguration
-	cls = (*env)->GetObjectClass(env, this);
-	fid = (*env)->GetFieldID(env, cls, "configuration", "L" KERBEROS_PACKAGE_PATH "/KerberosConfiguration;");
-	jobject config = (*env)->GetObjectField(env, this, fid);
+	if (!ctx) {
+		throwException(env, "java/lang/OutOfMemoryError", "krb5_init");
+		return;
+	}
 
-	krbconn_fill_config(env, config, &conf, gs_accessor);
-	(*env)->DeleteLocalRef(env, config);
+	//Get configuration from KerberosConfiguration (the accessor class is resolved in JNI_OnLoad)
+	memset(&conf, 0, sizeof conf);
+	krbconn_fill_config(env, this, &conf);
 
 	//Initialize context
-	long code;
-	if ((code = krbconn_init(ctx, &conf)) != 0) {
+	long code = krbconn_init(ctx, &conf);
+	krbconn_free_config(&conf);
+	if (code != 0) {
 		throwKerberosException(env, ctx, code);
+		krbconn_destroy(ctx);
+		free(ctx);
 		return;
 	}
 
 	//Store context
-	fid = (*env)->GetFieldID(env, cls, "contextPointer", "J");
-	(*env)->SetLongField(env, this, fid, (jlong)ctx);
-	(*env)->DeleteLocalRef(env, cls);
-
-	krbconn_free_config(&conf);
+	(*env)->SetLongField(env, this, java_ids.connector_context, (jlong)ctx);
 }
 
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1destroy(JNIEnv *env, jobject this) {
-	krbconn_context_t* ctx = getContext(env, this);
-	jclass cls;
-	jfieldID fid;
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1destroy(JNIEnv *env, jclass clazz, jlong context) {
+	krbconn_context_t* ctx = (krbconn_context_t*)context;
 
 	krbconn_destroy(ctx);
 	free(ctx);
+}
+
+
+JNIEXPORT jboolean JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1validate(JNIEnv *env, jclass clazz, jlong context, jstring principal) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	const char *name;
+	long code;
+
+	name = (*env)->GetStringUTFChars(env, principal, 0);
+	code = krbconn_validate(ctx, name);
+	(*env)->ReleaseStringUTFChars(env, principal, name);
+
+	return code == 0;
+}
+
+
+/**
+ * Get the kadmin call statistics of the context (and reset them).
+ */
+JNIEXPORT jboolean JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1stats(JNIEnv *env, jclass clazz, jlong context, jlongArray values) {
+	krbconn_context_t* ctx = (krbconn_context_t*)context;
+	int64_t stats[KRBCONN_STATS_SIZE];
+
+	if (!ctx) return JNI_FALSE;
+	memset(stats, 0, sizeof stats);
+	if (krbconn_stats(ctx, stats) == 0) return JNI_FALSE;
+	(*env)->SetLongArrayRegion(env, values, 0, KRBCONN_STATS_SIZE, (jlong *)stats);
+
+	return JNI_TRUE;
+}
+
+
+/**
+ * Read the debug trace records of the context (KRBCONN_TRACE_VALUES for each
+ * record), as many as fit into the array.
+ *
+ * @return number of the records
+ */
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1trace(JNIEnv *env, jclass clazz, jlong context, jlongArray values) {
+	krbconn_context_t* ctx = (krbconn_context_t*)context;
+	int64_t records[KRBCONN_TRACE_SIZE * KRBCONN_TRACE_VALUES];
+	int max, n;
+
+	if (!ctx) return 0;
+	max = (*env)->GetArrayLength(env, values) / KRBCONN_TRACE_VALUES;
+	if (max > KRBCONN_TRACE_SIZE) max = KRBCONN_TRACE_SIZE;
+	if ((n = krbconn_trace_read(ctx, records, max)) > 0)
+		(*env)->SetLongArrayRegion(env, values, 0, n * KRBCONN_TRACE_VALUES, (jlong *)records);
+
+	return n;
+}
+
+
+/**
+ * Result code of the last kadmin call on the context.
+ */
+JNIEXPORT jlong JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1last_1code(JNIEnv *env, jclass clazz, jlong context) {
+	krbconn_context_t* ctx = (krbconn_context_t*)context;
 
-	//Clear context
-	cls = (*env)->GetObjectClass(env, this);
-	fid = (*env)->GetFieldID(env, cls, "contextPointer", "J");
-	(*env)->SetLongField(env, this, fid, (jlong)NULL);
-	(*env)->DeleteLocalRef(env, cls);
+	return ctx ? ctx->last_code : 0;
 }
 
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1renew(JNIEnv *env, jobject this, jclass gs_accessor) {
-	krbconn_context_t* ctx = getContext(env, this);
+/**
+ * Open new context (with the login) without binding it to the connector.
+ */
+JNIEXPORT jlong JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1open(JNIEnv *env, jclass clazz, jobject config) {
+	krbconn_context_t* ctx = calloc(sizeof(krbconn_context_t), 1);
 	krbconn_config_t conf;
-	jfieldID fid;
-	jclass cls;
+	long code;
 
-	//Get configuration from KerberosConfiguration
-	cls = (*env)->GetObjectClass(env, this);
-	fid = (*env)->GetFieldID(env, cls, "configuration", "L" KERBEROS_PACKAGE_PATH "/KerberosConfiguration;");
+	if (!ctx) {
+		throwException(env, "java/lang/OutOfMemoryError", "krb5_open");
+		return 0;
+	}
 
-	(*env)->DeleteLocalRef(env, cls);
-	jobject config = (*env)->GetObjectField(env, this, fid);
+	memset(&conf, 0, sizeof conf);
+	krbconn_fill_config_object(env, config, &conf);
+	code = krbconn_init(ctx, &conf);
+	krbconn_free_config(&conf);
+	if (code != 0) {
+		throwKerberosException(env, ctx, code);
+		krbconn_destroy(ctx);
+		free(ctx);
+		return 0;
+	}
 
-	krbconn_fill_config(env, config, &conf, gs_accessor);
-	(*env)->DeleteLocalRef(env, config);
+	return (jlong)ctx;
+}
+
+
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1renew(JNIEnv *env, jobject this, jlong context, jclass gs_accessor) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	krbconn_config_t conf;
+
+	//Get configuration from KerberosConfiguration
+	krbconn_fill_config(env, this, &conf);
 
 	long code;
 	if ((code = krbconn_renew(ctx, &conf)) != 0)
@@ -485,6 +1321,7 @@ JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1r
 JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1create(
 	JNIEnv *env,
 	jobject this,
+	jlong context,
 	jstring name,
 	jstring pass,
 	jlong princ_expiry,
@@ -495,7 +1332,7 @@ JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1c
 	jlong max_renewable_life,
 	jint mask
 ) {
-	krbconn_context_t* ctx = getContext(env, this);
+	krbconn_context_t* ctx = krbconn_enter(context);
 	krbconn_principal_t* princ = calloc(sizeof(krbconn_principal_t), 1);
 
 	const char* temp;
@@ -540,8 +1377,8 @@ JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1c
 	}
 }
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1delete(JNIEnv *env, jobject this, jstring name) {
-	krbconn_context_t* ctx = getContext(env, this);
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1delete(JNIEnv *env, jobject this, jlong context, jstring name) {
+	krbconn_context_t* ctx = krbconn_enter(context);
 	const char* temp;
 	char* str = NULL;
 
@@ -559,10 +1396,16 @@ JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1d
 		throwKerberosException(env, ctx, err);
 }
 
-JNIEXPORT jobject JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1search(JNIEnv *env, jobject this, jstring query,
- 	                                                                      jint pageSize, jint pageOffset) {
-	krbconn_context_t* ctx = getContext(env, this);
+/**
+ * List principals matching the query, or get the principal for the exact query.
+ *
+ * Wildcard query (or no query) fills the list, exact query fills only the
+ * principal (list is NULL and count is 0 or 1).
+ */
+static long search_query(JNIEnv *env, krbconn_context_t *ctx, jstring query, int mask, char ***list, int *count, krbconn_principal_t *princ) {
 	char* cQuery = NULL;
+	long err;
+
 	if (query != NULL) {
 		const char* temp = (*env)->GetStringUTFChars(env, query, 0);
 		cQuery = strdup(temp);
@@ -570,173 +1413,537 @@ JNIEXPORT jobject JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5
 		(*env)->DeleteLocalRef(env, query);
 	}
 
-	char** list = NULL;
-	int count = 0;
-	long err;
-	krbconn_principal_t princ;
-
+	*list = NULL;
+	*count = 0;
 	if (!cQuery || strchr(cQuery, '*') != NULL) {
-		err = krbconn_list(ctx, cQuery, &list, &count);
-		if (!err && !list) err = KADM5_FAILURE;
+		err = krbconn_list(ctx, cQuery, list, count);
+		if (!err && !*list) err = KADM5_FAILURE;
 	} else {
-		err = krbconn_get(ctx, cQuery, &princ);
-		if (!err) count = 1;
+		err = krbconn_get(ctx, cQuery, mask, princ);
+		if (!err) *count = 1;
 		else if (err == KADM5_UNK_PRINC) err = 0;
 	}
 	free(cQuery);
-	if (err) {
+
+	return err;
+}
+
+
+/**
+ * Number of principals in the requested page.
+ */
+static int search_page_count(int count, int pageSize, int pageOffset) {
+	if (count - pageOffset < pageSize) return count - pageOffset;
+	else if (pageSize != 0) return pageSize;
+	return count;
+}
+
+
+JNIEXPORT jobject JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1search(JNIEnv *env, jobject this, jlong context, jstring query,
+ 	                                                                      jint pageSize, jint pageOffset) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	int64_t start = krbconn_now();
+	char** list = NULL;
+	int count = 0;
+	long err;
+	krbconn_principal_t princ;
+
+	if ((err = search_query(env, ctx, query, KRBCONN_ALL, &list, &count, &princ)) != 0) {
 		throwKerberosException(env, ctx, err);
 		return 0;
 	}
 
-	int trueCount = count;
-	if (count - pageOffset < pageSize) {
-		trueCount = count - pageOffset;
-	} else if (pageSize != 0) {
-		trueCount = pageSize;
-	}
+	int trueCount = search_page_count(count, pageSize, pageOffset);
 
 	if (count < pageOffset) {
-		if (ctx->debug) syslog(LOG_ERR, "%s(): count of found principals %d is less then requested offset %d", __FUNCTION__, count, pageOffset);
+		krbconn_trace(ctx, KRBCONN_TRACE_SEARCH, start, 0, 0);
+		if (list) krbconn_free_list(ctx, list, count);
+		else if (count) krbconn_free_principal(&princ);
 		return NULL;
 	}
 
-	static jclass arrClass = NULL;
-	if (!java_class(env, &arrClass, KERBEROS_PACKAGE_PATH "/KerberosPrincipal")) return NULL;
-
-	jobjectArray arr = (*env)->NewObjectArray(env, trueCount, arrClass, NULL);
+	jobjectArray arr = (*env)->NewObjectArray(env, trueCount, java_ids.principal, NULL);
 
 	if (list) {
 		// TODO: check errors from kerbconn_get, probably return them in KerberosSearchResults
 		for (int i = pageOffset; i < pageOffset + trueCount; i++) {
-			krbconn_get(ctx, list[i], &princ);
-			add_princ_to_array(env, arr, i - pageOffset, princ, arrClass);
+			krbconn_get(ctx, list[i], KRBCONN_ALL, &princ);
+			add_princ_to_array(env, arr, i - pageOffset, princ);
 			krbconn_free_principal(&princ);
 		}
 
 		krbconn_free_list(ctx, list, count);
 	} else {
 		if (count) {
-			add_princ_to_array(env, arr, 0, princ, arrClass);
+			add_princ_to_array(env, arr, 0, princ);
 			krbconn_free_principal(&princ);
 		}
 	}
 
-	static jclass results = NULL;
-	static jmethodID mid = NULL;
-	if (!java_class(env, &results, KERBEROS_PACKAGE_PATH "/KerberosSearchResults"))
-		return NULL;
-	if (!java_method(env, &mid, results, "<init>", SIGNATURE_KERBEROS_SEARCH_RESULT_INIT))
-		return NULL;
-
 	jint remaining = count - pageOffset - trueCount;
-	jobject out = (*env)->NewObject(env, results, mid, arr, remaining);
+	jobject out = (*env)->NewObject(env, java_ids.search_results, java_ids.search_results_init, arr, remaining);
 
 	(*env)->DeleteLocalRef(env, arr);
 
-	if (ctx->debug) {
-		syslog(LOG_INFO, "%s() count: %" PRId32 ", trueCount: %d, remaining: %" PRId32, __FUNCTION__, count, trueCount, remaining);
-	}
+	krbconn_trace(ctx, KRBCONN_TRACE_SEARCH, start, trueCount, 0);
 	return out;
 }
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1rename(JNIEnv *env, jobject this, jstring name, jstring newName) {
-	krbconn_context_t* ctx = getContext(env, this);
+/**
+ * Convert the filter program from Java.
+ *
+ * Returns 1 on success (filter->program is NULL when there is no filter), or
+ * 0 when Java exception is pending.
+ */
+static int get_filter(JNIEnv *env, krbconn_context_t *ctx, jlongArray program, jobjectArray strings, krbconn_filter_t *filter) {
 	const char* temp;
+	jstring jstr;
+	long err;
+	int i;
+
+	memset(filter, 0, sizeof(*filter));
+	if (program == NULL) return 1;
+
+	filter->n = (*env)->GetArrayLength(env, program) / KRBCONN_FILTER_INSN;
+	filter->n_strings = strings ? (*env)->GetArrayLength(env, strings) : 0;
+	filter->program = calloc(sizeof(int64_t), filter->n * KRBCONN_FILTER_INSN + 1);
+	filter->strings = calloc(sizeof(char *), filter->n_strings + 1);
+	if (!filter->program || !filter->strings) {
+		krbconn_free_filter(filter);
+		throwException(env, "java/lang/OutOfMemoryError", "Cannot allocate search filter");
+		return 0;
+	}
+	(*env)->GetLongArrayRegion(env, program, 0, filter->n * KRBCONN_FILTER_INSN, (jlong *)filter->program);
+	for (i = 0; i < filter->n_strings; i++) {
+		if ((jstr = (*env)->GetObjectArrayElement(env, strings, i)) == NULL) continue;
+		temp = (*env)->GetStringUTFChars(env, jstr, 0);
+		filter->strings[i] = strdup(temp);
+		(*env)->ReleaseStringUTFChars(env, jstr, temp);
+		(*env)->DeleteLocalRef(env, jstr);
+	}
+	if ((*env)->ExceptionCheck(env)) {
+		krbconn_free_filter(filter);
+		return 0;
+	}
 
-	temp = (*env)->GetStringUTFChars(env, name, 0);
-	char* princ_old_name = strdup(temp);
-	(*env)->ReleaseStringUTFChars(env, name, temp);
-	(*env)->DeleteLocalRef(env, name);
+	if ((err = krbconn_prepare_filter(ctx, filter)) != 0) {
+		krbconn_free_filter(filter);
+		if (err == ENOMEM) throwException(env, "java/lang/OutOfMemoryError", "Cannot allocate search filter");
+		else throwException(env, "java/lang/IllegalArgumentException", "Invalid search filter");
+		return 0;
+	}
 
-	temp = (*env)->GetStringUTFChars(env, newName, 0);
-	char* princ_new_name = strdup(temp);
-	(*env)->ReleaseStringUTFChars(env, newName, temp);
-	(*env)->DeleteLocalRef(env, newName);
+	return 1;
+}
 
-	long err = krbconn_rename(ctx, princ_old_name, princ_new_name);
-	free(princ_new_name);
-	free(princ_old_name);
+/**
+ * Paging of the streamed principals.
+ */
+typedef struct {
+	/* matching principals to skip */
+	int skip;
+	/* maximal number of passed principals, 0 for unlimited */
+	int limit;
+	/* number of passed principals */
+	int passed;
+	/* position after the last processed name */
+	int next;
+} stream_page_t;
+
+/* names converted from Java at once */
+#define STREAM_CHUNK 1024
+
+#define STREAM_PAGE_FULL(PAGE) ((PAGE)->limit && (PAGE)->passed >= (PAGE)->limit)
 
-	if (err)
-		throwKerberosException(env, ctx, err);
-}
+/**
+ * Fetch the principals and pass them to the sink in the order of the names.
+ *
+ * Principals are fetched in batches, in parallel when there are worker
+ * handles. Unknown principals (removed after listing) and principals not
+ * matching the filter are skipped. Fetching stops when the page is full.
+ *
+ * When the sink has the buffer, principals are packed into it and passed to
+ * Java in bulk (when the buffer is full, and at the end).
+ *
+ * Returns 1 when all principals were processed or the page is full, 0 when
+ * stopped by the sink, or -1 when Java exception is pending.
+ */
+static int stream_names(JNIEnv *env, krbconn_context_t *ctx, char **names, int count, int mask, krbconn_filter_t *filter,
+                        stream_page_t *page, jobject sink) {
+	int batch = ctx->n_workers ? (ctx->n_workers + 1) * KRBCONN_FETCH_BATCH : 1;
+	krbconn_principal_t *princs;
+	sink_buffer_t buffer;
+	long *codes, err;
+	int i, j, n, buffered, more = 1;
+
+	page->next = 0;
+	if (count <= 0 || STREAM_PAGE_FULL(page)) return 1;
+	buffered = sink_buffer_init(env, sink, &buffer);
+	if (filter) mask |= filter->mask;
+	if (batch > count) batch = count;
+	princs = calloc(sizeof(krbconn_principal_t), batch);
+	codes = calloc(sizeof(long), batch);
+	if (!princs || !codes) {
+		free(princs);
+		free(codes);
+		throwException(env, "java/lang/OutOfMemoryError", "Cannot allocate fetched principals");
+		return -1;
+	}
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1chpasswd(JNIEnv *env, jobject this, jstring name, jstring password) {
-	krbconn_context_t* ctx = getContext(env, this);
-	const char* temp;
+	for (i = 0; i < count && more > 0 && !STREAM_PAGE_FULL(page); i += batch) {
+		n = count - i < batch ? count - i : batch;
+		if ((err = krbconn_get_many(ctx, names + i, n, mask, princs, codes)) != 0) {
+			throwKerberosException(env, ctx, err);
+			more = -1;
+			break;
+		}
+		for (j = 0; j < n; j++) {
+			if (more > 0 && !STREAM_PAGE_FULL(page)) {
+				if (codes[j] == KADM5_UNK_PRINC) {
+					// removed
+				} else if (codes[j]) {
+					throwKerberosException(env, ctx, codes[j]);
+					more = -1;
+				} else if (!filter || krbconn_filter_match(filter, &princs[j])) {
+					if (page->skip > 0) {
+						page->skip--;
+					} else {
+						if (buffered) more = sink_buffer_principal(env, sink, &buffer, &princs[j]);
+						else more = sink_principal(env, sink, &princs[j]);
+						page->passed++;
+					}
+				}
+				page->next = i + j + 1;
+			}
+			krbconn_free_principal(&princs[j]);
+		}
+	}
+	if (buffered && more > 0) more = sink_buffer_flush(env, sink, &buffer);
+	free(princs);
+	free(codes);
 
-	temp = (*env)->GetStringUTFChars(env, name, 0);
-	char* princ_name = strdup(temp);
-	(*env)->ReleaseStringUTFChars(env, name, temp);
-	(*env)->DeleteLocalRef(env, name);
+	return more;
+}
 
-	temp = (*env)->GetStringUTFChars(env, password, 0);
-	char* princ_pass = strdup(temp);
-	(*env)->ReleaseStringUTFChars(env, password, temp);
-	(*env)->DeleteLocalRef(env, password);
 
-	long err = krbconn_chpass(ctx, princ_name, princ_pass);
-	free(princ_name);
-	free(princ_pass);
+/**
+ * Streaming search.
+ *
+ * Each principal is passed to the sink right after it is fetched, without
+ * keeping the whole result. Fetching stops as soon as the sink returns false.
+ *
+ * With the filter, the page offset and size count only the matching
+ * principals, and the remaining count is only an estimate (the listed
+ * principals after the page, not evaluated).
+ *
+ * Returns number of remaining principals after the page, or -1 when the search
+ * has been stopped by the sink.
+ */
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1search_1stream(JNIEnv *env, jobject this, jlong context, jstring query,
+                                                                                            jint pageSize, jint pageOffset, jint mask,
+                                                                                            jlongArray program, jobjectArray strings, jobject sink) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	int64_t start = krbconn_now();
+	char** list = NULL;
+	int count = 0, trueCount, more = 1;
+	long err;
+	krbconn_principal_t princ;
+	krbconn_filter_t filter;
+	stream_page_t page;
+	jint remaining;
 
-	if (err)
+	if (!get_filter(env, ctx, program, strings, &filter)) return 0;
+
+	if ((err = search_query(env, ctx, query, mask | filter.mask, &list, &count, &princ)) != 0) {
+		krbconn_free_filter(&filter);
 		throwKerberosException(env, ctx, err);
-}
+		return 0;
+	}
 
-JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1modify(
-	JNIEnv *env,
-	jobject this,
-	jstring name,
-	jlong princ_expiry,
-	jlong password_expiry,
-	jint attributes,
-	jstring policy,
-	jlong max_ticket_life,
-	jlong max_renewable_life,
-	jint mask
-) {
-	krbconn_context_t* ctx = getContext(env, this);
-	const char* temp;
+	if (filter.program && list) {
+		// offset and size of the page are known only after the evaluation
+		memset(&page, 0, sizeof(page));
+		page.skip = pageOffset;
+		page.limit = pageSize;
+		more = stream_names(env, ctx, list, count, mask, &filter, &page, sink);
+		krbconn_free_list(ctx, list, count);
+		krbconn_free_filter(&filter);
 
-	krbconn_principal_t* princ = calloc(sizeof(krbconn_principal_t), 1);
+		if (more < 0) return 0;
+		if (more == 0) return -1;
+		remaining = count - page.next;
+		krbconn_trace(ctx, KRBCONN_TRACE_SEARCH, start, page.passed, 0);
+		return remaining;
+	}
 
-	temp = (*env)->GetStringUTFChars(env, name, 0);
-	princ->name = strdup(temp);
-	(*env)->ReleaseStringUTFChars(env, name, temp);
-	(*env)->DeleteLocalRef(env, name);
+	if (count < pageOffset) {
+		krbconn_trace(ctx, KRBCONN_TRACE_SEARCH, start, 0, 0);
+		if (list) krbconn_free_list(ctx, list, count);
+		else if (count) krbconn_free_principal(&princ);
+		krbconn_free_filter(&filter);
+		return 0;
+	}
+	trueCount = search_page_count(count, pageSize, pageOffset);
 
-	if ((mask & KRBCONN_PRINC_EXPIRE_TIME) != 0) {
-		princ->princ_expire = princ_expiry;
+	if (list) {
+		memset(&page, 0, sizeof(page));
+		more = stream_names(env, ctx, list + pageOffset, trueCount, mask, NULL, &page, sink);
+		krbconn_free_list(ctx, list, count);
+	} else if (count) {
+		if (trueCount > 0 && (!filter.program || krbconn_filter_match(&filter, &princ)))
+			more = sink_principal(env, sink, &princ);
+		krbconn_free_principal(&princ);
 	}
+	krbconn_free_filter(&filter);
+
+	// Java exception pending
+	if (more < 0) return 0;
+	// stopped by the sink
+	if (more == 0) return -1;
+
+	remaining = count - pageOffset - trueCount;
+	krbconn_trace(ctx, KRBCONN_TRACE_SEARCH, start, trueCount, 0);
+	return remaining;
+}
 
-	if ((mask & KRBCONN_PW_EXPIRATION) != 0) {
-		princ->pwd_expire = password_expiry;
+/**
+ * List principal names matching the query.
+ */
+JNIEXPORT jobjectArray JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1list(JNIEnv *env, jobject this, jlong context, jstring query) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	char* cQuery = NULL;
+	char** list = NULL;
+	int count = 0, i;
+	long err;
+	jobjectArray arr;
+	jstring name;
+
+	if (query != NULL) {
+		const char* temp = (*env)->GetStringUTFChars(env, query, 0);
+		cQuery = strdup(temp);
+		(*env)->ReleaseStringUTFChars(env, query, temp);
+		(*env)->DeleteLocalRef(env, query);
 	}
 
-	if ((mask & KRBCONN_ATTRIBUTES) != 0) {
-		princ->attributes = attributes;
+	err = krbconn_list(ctx, cQuery, &list, &count);
+	if (!err && !list) err = KADM5_FAILURE;
+	free(cQuery);
+	if (err) {
+		throwKerberosException(env, ctx, err);
+		return NULL;
 	}
 
-	if (((mask & KRBCONN_POLICY) != 0) && policy) {
-		temp = (*env)->GetStringUTFChars(env, policy, 0);
-		princ->policy = strdup(temp);
-		(*env)->ReleaseStringUTFChars(env, policy, temp);
-		(*env)->DeleteLocalRef(env, policy);
+	if ((arr = (*env)->NewObjectArray(env, count, java_ids.string, NULL)) != NULL) {
+		for (i = 0; i < count; i++) {
+			name = (*env)->NewStringUTF(env, list[i]);
+			(*env)->SetObjectArrayElement(env, arr, i, name);
+			(*env)->DeleteLocalRef(env, name);
+		}
 	}
+	krbconn_free_list(ctx, list, count);
+
+	return arr;
+}
 
-	if ((mask & KRBCONN_MAX_LIFE) != 0) {
-		princ->max_ticket_life = max_ticket_life;
+/**
+ * Fetch the principals from the given part of the name list and pass them to the sink.
+ *
+ * Without the filter, names from the offset to offset + count are processed.
+ * With the filter, names from the offset are processed until count matching
+ * principals are passed (the first skip matching principals are not passed).
+ *
+ * Unknown principals are skipped. Returns the position after the last
+ * processed name, or -1 when the search has been stopped by the sink.
+ */
+JNIEXPORT jint JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1get_1stream(JNIEnv *env, jobject this, jlong context, jobjectArray names,
+                                                                                         jint offset, jint count, jint skip, jint mask,
+                                                                                         jlongArray program, jobjectArray strings, jobject sink) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	int64_t start = krbconn_now();
+	const char* temp;
+	char** list;
+	jstring jname;
+	krbconn_filter_t filter;
+	stream_page_t page;
+	int i, n, total, chunk, pos, more = 1;
+
+	if (count <= 0) return offset;
+	if (!get_filter(env, ctx, program, strings, &filter)) return 0;
+
+	total = (*env)->GetArrayLength(env, names) - offset;
+	if (!filter.program && total > count) total = count;
+	chunk = total < STREAM_CHUNK ? total : STREAM_CHUNK;
+	if (chunk <= 0) {
+		krbconn_free_filter(&filter);
+		return offset;
 	}
+	if ((list = calloc(sizeof(char *), chunk)) == NULL) {
+		krbconn_free_filter(&filter);
+		throwException(env, "java/lang/OutOfMemoryError", "Cannot allocate principal names");
+		return 0;
+	}
+
+	memset(&page, 0, sizeof(page));
+	page.skip = skip;
+	page.limit = filter.program ? count : 0;
+	pos = offset;
+	while (more > 0 && pos < offset + total && !STREAM_PAGE_FULL(&page)) {
+		// the names are converted in chunks, the page may end anywhere in the list
+		int end = offset + total - pos < chunk ? offset + total : pos + chunk;
+		n = 0;
+		for (i = pos; i < end; i++) {
+			jname = (*env)->GetObjectArrayElement(env, names, i);
+			if (!jname) {
+				if ((*env)->ExceptionCheck(env)) {
+					more = -1;
+					break;
+				}
+				// keep the positions, missing name is skipped as unknown principal
+				list[n++] = NULL;
+				continue;
+			}
+			temp = (*env)->GetStringUTFChars(env, jname, 0);
+			list[n++] = strdup(temp);
+			(*env)->ReleaseStringUTFChars(env, jname, temp);
+			(*env)->DeleteLocalRef(env, jname);
+		}
 
-	if ((mask & KRBCONN_MAX_RLIFE) != 0) {
-		princ->max_renewable_life = max_renewable_life;
+		if (more > 0) {
+			more = stream_names(env, ctx, list, n, mask, filter.program ? &filter : NULL, &page, sink);
+			pos += page.next;
+		}
+		for (i = 0; i < n; i++) free(list[i]);
 	}
+	free(list);
+	krbconn_free_filter(&filter);
 
-	long err = krbconn_modify(ctx, princ, mask);
-	krbconn_free_principal(princ);
-	free(princ);
+	if (more < 0) return 0;
+	if (more == 0) return -1;
 
+	krbconn_trace(ctx, KRBCONN_TRACE_GET, start, page.passed, 0);
+	return pos;
+}
+
+static char *get_string(JNIEnv *env, jstring s) {
+	const char *temp;
+	char *result;
+
+	if (!s) return NULL;
+	temp = (*env)->GetStringUTFChars(env, s, 0);
+	result = strdup(temp);
+	(*env)->ReleaseStringUTFChars(env, s, temp);
+	(*env)->DeleteLocalRef(env, s);
+
+	return result;
+}
+
+/**
+ * Read the principal operation from the Java object (KerberosOperation).
+ */
+static void krbconn_get_operation(JNIEnv *env, jobject jop, krbconn_batch_op_t *op) {
+	memset(op, 0, sizeof(*op));
+	op->type = (*env)->GetIntField(env, jop, java_ids.operation_type);
+	op->mask = (*env)->GetIntField(env, jop, java_ids.operation_mask);
+	op->set = (*env)->GetIntField(env, jop, java_ids.operation_attributes_set);
+	op->clear = (*env)->GetIntField(env, jop, java_ids.operation_attributes_clear);
+	op->step = (*env)->GetIntField(env, jop, java_ids.operation_step);
+	op->info.name = get_string(env, (*env)->GetObjectField(env, jop, java_ids.operation_name));
+	if ((op->mask & KRBCONN_PRINC_EXPIRE_TIME) != 0)
+		op->info.princ_expire = (*env)->GetLongField(env, jop, java_ids.operation_princ_expiry);
+	if ((op->mask & KRBCONN_PW_EXPIRATION) != 0)
+		op->info.pwd_expire = (*env)->GetLongField(env, jop, java_ids.operation_pwd_expiry);
+	if ((op->mask & KRBCONN_ATTRIBUTES) != 0)
+		op->info.attributes = (*env)->GetIntField(env, jop, java_ids.operation_attributes);
+	if ((op->mask & KRBCONN_POLICY) != 0)
+		op->info.policy = get_string(env, (*env)->GetObjectField(env, jop, java_ids.operation_policy));
+	if ((op->mask & KRBCONN_MAX_LIFE) != 0)
+		op->info.max_ticket_life = (*env)->GetLongField(env, jop, java_ids.operation_max_ticket_life);
+	if ((op->mask & KRBCONN_MAX_RLIFE) != 0)
+		op->info.max_renewable_life = (*env)->GetLongField(env, jop, java_ids.operation_max_renewable_life);
+	op->password = get_string(env, (*env)->GetObjectField(env, jop, java_ids.operation_password));
+	op->newname = get_string(env, (*env)->GetObjectField(env, jop, java_ids.operation_new_name));
+}
+
+static void krbconn_free_operation(krbconn_batch_op_t *op) {
+	krbconn_free_principal(&op->info);
+	if (op->password) {
+		memset(op->password, 0, strlen(op->password));
+		free(op->password);
+	}
+	free(op->newname);
+}
+
+/**
+ * Update the principal (see krbconn_update()).
+ *
+ * The update starts from the step of the operation, the failed step is
+ * stored back for the retry.
+ */
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1update(JNIEnv *env, jobject this, jlong context, jobject operation) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	krbconn_batch_op_t op;
+	long err;
+
+	krbconn_get_operation(env, operation, &op);
+	err = krbconn_update(ctx, &op.info, op.mask, op.set, op.clear, op.password, op.newname, &op.step);
+	krbconn_free_operation(&op);
+
+	(*env)->SetIntField(env, operation, java_ids.operation_step, err ? op.step : 0);
 	if (err)
+		throwKerberosStepException(env, ctx, err, op.step);
+}
+
+JNIEXPORT void JNICALL Java_cz_zcu_connectors_kerberos_KerberosConnector_krb5_1batch(JNIEnv *env, jobject this, jlong context, jobjectArray operations, jint count, jint parallelism) {
+	krbconn_context_t* ctx = krbconn_enter(context);
+	krbconn_batch_op_t *ops;
+	krbconn_batch_op_t *op;
+	jobject jop;
+	jthrowable error;
+	char *errMsg;
+	long err;
+	int i;
+
+	if (count <= 0) return;
+	if ((ops = calloc(sizeof(krbconn_batch_op_t), count)) == NULL) {
+		throwException(env, "java/lang/OutOfMemoryError", "krb5_batch");
+		return;
+	}
+
+	for (i = 0; i < count; i++) {
+		jop = (*env)->GetObjectArrayElement(env, operations, i);
+		krbconn_get_operation(env, jop, &ops[i]);
+		(*env)->DeleteLocalRef(env, jop);
+	}
+
+	err = krbconn_batch(ctx, ops, count, parallelism);
+	if (err) {
 		throwKerberosException(env, ctx, err);
+		goto out;
+	}
+
+	for (i = 0; i < count; i++) {
+		op = &ops[i];
+		jop = (*env)->GetObjectArrayElement(env, operations, i);
+		(*env)->SetIntField(env, jop, java_ids.operation_step, op->code ? op->step : 0);
+		if (op->code == 0) {
+			(*env)->DeleteLocalRef(env, jop);
+			continue;
+		}
+
+		errMsg = kerberos_exception_message(ctx, op->code, op->step);
+		error = newException(env, kerberos_exception_class(op->code), errMsg);
+		free(errMsg);
+		if (!error) {
+			(*env)->DeleteLocalRef(env, jop);
+			goto out;
+		}
+
+		(*env)->SetObjectField(env, jop, java_ids.operation_error, error);
+		(*env)->DeleteLocalRef(env, jop);
+		(*env)->DeleteLocalRef(env, error);
+	}
+
+out:
+	for (i = 0; i < count; i++) krbconn_free_operation(&ops[i]);
+	free(ops);
 }
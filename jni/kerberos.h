@@ -1,3 +1,4 @@
+#include <stdint.h>
 #include <krb5.h>
 
 #ifndef KERBEROS_CONNECTOR_H
@@ -5,7 +6,7 @@
 
 
 /*
- * mask for krbconn_modify()
+ * mask for krbconn_get() and krbconn_modify()
  *
  * Values were copied from MIT Kerberos Admin library, but they are not required to be the same.
  *
@@ -17,11 +18,70 @@
 #define KRBCONN_LAST_PWD_CHANGE   0x000008
 #define KRBCONN_ATTRIBUTES        0x000010
 #define KRBCONN_MAX_LIFE          0x000020
+#define KRBCONN_MOD_TIME          0x000040
+#define KRBCONN_MOD_NAME          0x000080
 #define KRBCONN_POLICY            0x000800
 #define KRBCONN_MAX_RLIFE         0x002000
 #define KRBCONN_LAST_SUCCESS      0x004000
 #define KRBCONN_LAST_FAILED       0x008000
 
+/* all principal fields for krbconn_get() */
+#define KRBCONN_ALL (KRBCONN_PRINCIPAL | KRBCONN_PRINC_EXPIRE_TIME | KRBCONN_PW_EXPIRATION | KRBCONN_LAST_PWD_CHANGE \
+	| KRBCONN_ATTRIBUTES | KRBCONN_MAX_LIFE | KRBCONN_MOD_TIME | KRBCONN_MOD_NAME | KRBCONN_POLICY | KRBCONN_MAX_RLIFE \
+	| KRBCONN_LAST_SUCCESS | KRBCONN_LAST_FAILED)
+
+/*
+ * steps of krbconn_update()
+ *
+ * Values MUST be in sync with the Java code of Kerberos connector (KerberosOperation).
+ */
+#define KRBCONN_STEP_MODIFY 1
+#define KRBCONN_STEP_CHPASS 2
+#define KRBCONN_STEP_RENAME 3
+
+/*
+ * batch operations of krbconn_batch()
+ *
+ * Values MUST be in sync with the Java code of Kerberos connector (KerberosOperation).
+ */
+#define KRBCONN_OP_CREATE 1
+#define KRBCONN_OP_DELETE 2
+#define KRBCONN_OP_UPDATE 3
+
+/*
+ * principals fetched by one kadmin handle in one round of krbconn_get_many()
+ */
+#define KRBCONN_FETCH_BATCH 16
+
+/*
+ * search filter program
+ *
+ * Each instruction has KRBCONN_FILTER_INSN items: operation, field (mask
+ * value), comparison, and value (index to the strings for KRBCONN_FILTER_STR).
+ *
+ * Values MUST be in sync with the Java code of Kerberos connector (KerberosQuery).
+ */
+#define KRBCONN_FILTER_INSN 4
+
+#define KRBCONN_FILTER_AND  1
+#define KRBCONN_FILTER_OR   2
+#define KRBCONN_FILTER_NOT  3
+#define KRBCONN_FILTER_CMP  4
+#define KRBCONN_FILTER_STR  5
+#define KRBCONN_FILTER_BITS 6
+
+#define KRBCONN_CMP_EQ        1
+#define KRBCONN_CMP_LT        2
+#define KRBCONN_CMP_LE        3
+#define KRBCONN_CMP_GT        4
+#define KRBCONN_CMP_GE        5
+#define KRBCONN_CMP_STARTS    6
+#define KRBCONN_CMP_ENDS      7
+#define KRBCONN_CMP_CONTAINS  8
+#define KRBCONN_CMP_MATCH     9
+#define KRBCONN_CMP_ALL_SET   10
+#define KRBCONN_CMP_ALL_CLEAR 11
+
 
 typedef struct {
 	/* keytab or password needed */
@@ -30,13 +90,97 @@ typedef struct {
 	char *principal;
 	char *realm;
 	int debug;
+	/* additional kadmin handles for fetching principals in parallel */
+	int handles;
 } krbconn_config_t;
 
+/*
+ * kadm5 calls in the statistics.
+ *
+ * Values MUST be in sync with the Java code of Kerberos connector (KerberosMetrics).
+ */
+#define KRBCONN_CALL_CREATE 0
+#define KRBCONN_CALL_DELETE 1
+#define KRBCONN_CALL_MODIFY 2
+#define KRBCONN_CALL_CHPASS 3
+#define KRBCONN_CALL_RENAME 4
+#define KRBCONN_CALL_GET    5
+#define KRBCONN_CALL_LIST   6
+#define KRBCONN_CALL_RENEW  7
+#define KRBCONN_CALLS       8
+/* latency histogram: bucket i counts calls under 2^i microseconds, the last one the rest */
+#define KRBCONN_BUCKETS     24
+/* number of distinct error codes counted */
+#define KRBCONN_ERROR_CODES 16
+/* values of one call in the exported statistics: calls, errors, time (ns), histogram */
+#define KRBCONN_STATS_CALL  (3 + KRBCONN_BUCKETS)
+/* size of the exported statistics: calls, then pairs of error code and count */
+#define KRBCONN_STATS_SIZE  (KRBCONN_CALLS * KRBCONN_STATS_CALL + 2 * KRBCONN_ERROR_CODES)
+
 typedef struct {
+	int64_t calls[KRBCONN_CALLS];
+	int64_t errors[KRBCONN_CALLS];
+	int64_t time[KRBCONN_CALLS];
+	int64_t histogram[KRBCONN_CALLS][KRBCONN_BUCKETS];
+	long codes[KRBCONN_ERROR_CODES];
+	int64_t code_counts[KRBCONN_ERROR_CODES];
+} krbconn_stats_t;
+
+/*
+ * debug trace records: the kadm5 calls (KRBCONN_CALL_*) and the operations
+ * of the JNI library
+ *
+ * Values MUST be in sync with the Java code of Kerberos connector (KerberosConnector).
+ */
+#define KRBCONN_TRACE_SEARCH 8
+#define KRBCONN_TRACE_GET    9
+#define KRBCONN_TRACE_FETCH  10
+#define KRBCONN_TRACE_BATCH  11
+#define KRBCONN_TRACE_ERROR  12
+/* records overwritten before they were read (count) */
+#define KRBCONN_TRACE_LOST   13
+/* records in the ring buffer of the handle (power of two) */
+#define KRBCONN_TRACE_SIZE   256
+/* values of one record exported to Java: time, duration, operation, count, code */
+#define KRBCONN_TRACE_VALUES 5
+
+typedef struct {
+	/* start (ns since the epoch) and duration (ns) */
+	int64_t time;
+	int64_t duration;
+	int32_t op;
+	/* principals or operations, the failed step for errors */
+	int32_t count;
+	int64_t code;
+} krbconn_trace_t;
+
+/*
+ * Ring buffer of the trace records.
+ *
+ * The records are written only by the thread using the handle, and they can
+ * be read concurrently without locks: the reader drops the records
+ * overwritten during the copy.
+ */
+typedef struct {
+	krbconn_trace_t records[KRBCONN_TRACE_SIZE];
+	/* next record to write (only incremented) */
+	uint64_t head;
+	/* next record to read */
+	uint64_t tail;
+} krbconn_ring_t;
+
+typedef struct krbconn_context {
 	krb5_context krb;
 	char *realm;
 	void *handle;
-	int debug;
+	struct krbconn_context *workers;
+	int n_workers;
+	/* statistics of the kadm5 calls on this handle (not the workers) */
+	krbconn_stats_t stats;
+	/* result of the last kadm5 call on this handle */
+	long last_code;
+	/* debug trace of this handle, NULL if not debugging */
+	krbconn_ring_t *trace;
 } krbconn_context_t;
 
 typedef struct {
@@ -63,13 +207,52 @@ long krbconn_init(krbconn_context_t *ctx, krbconn_config_t *config);
 void krbconn_destroy(krbconn_context_t *ctx);
 void krbconn_free_config(krbconn_config_t *config);
 void krbconn_free_principal(krbconn_principal_t *principal);
+long krbconn_validate(krbconn_context_t *ctx, const char *principal);
+int krbconn_stats(krbconn_context_t *ctx, int64_t *values);
+void krbconn_trace(krbconn_context_t *ctx, int op, int64_t start, int count, long code);
+int krbconn_trace_read(krbconn_context_t *ctx, int64_t *values, int max);
+int64_t krbconn_now(void);
+
+typedef struct {
+	int64_t *program;
+	int n;
+	char **strings;
+	int n_strings;
+	/* fields needed for the evaluation */
+	int mask;
+	/* evaluation stack */
+	char *stack;
+} krbconn_filter_t;
 
-long krbconn_get(krbconn_context_t *ctx, char *princ_name, krbconn_principal_t *result);
+typedef struct {
+	int type;
+	/* principal fields (with name) and mask of the set fields */
+	krbconn_principal_t info;
+	int mask;
+	/* flags changed by update */
+	int set;
+	int clear;
+	char *password;
+	char *newname;
+	/* step to start the update from (0 for all), the failed step on error */
+	int step;
+	/* result: error code */
+	long code;
+} krbconn_batch_op_t;
+
+long krbconn_get(krbconn_context_t *ctx, char *princ_name, int mask, krbconn_principal_t *result);
+long krbconn_get_many(krbconn_context_t *ctx, char **names, int count, int mask, krbconn_principal_t *results, long *codes);
 long krbconn_create(krbconn_context_t *ctx, krbconn_principal_t *info, int mask, char *pass);
 long krbconn_delete(krbconn_context_t *ctx, char *name);
 long krbconn_list(krbconn_context_t *ctx, const char *search, char ***list, int *count);
 void krbconn_free_list(krbconn_context_t *ctx, char **list, int count);
 long krbconn_modify(krbconn_context_t *ctx, krbconn_principal_t *info, int mask);
+long krbconn_update(krbconn_context_t *ctx, krbconn_principal_t *info, int mask, int set, int clear, char *password, const char *newname, int *step);
 long krbconn_rename(krbconn_context_t *ctx, const char *oldname, const char *newname);
 long krbconn_chpass(krbconn_context_t *ctx, const char *princ_name, char *password);
+long krbconn_batch(krbconn_context_t *ctx, krbconn_batch_op_t *ops, int count, int threads);
+
+long krbconn_prepare_filter(krbconn_context_t *ctx, krbconn_filter_t *filter);
+int krbconn_filter_match(krbconn_filter_t *filter, krbconn_principal_t *princ);
+void krbconn_free_filter(krbconn_filter_t *filter);
 #endif
@@ -44,7 +44,7 @@ int main(int argc, char **argv) {
 	char *name = DEFAULT_PRINCIPAL;
 
 	memset(&config, 0, sizeof config);
-	while ((c = getopt(argc, argv, "hu:p:k:r:")) != -1) {
+	while ((c = getopt(argc, argv, "hu:p:k:r:n:")) != -1) {
 		switch(c) {
 			case 'h':
 				usage(argv[0]);
@@ -61,6 +61,9 @@ int main(int argc, char **argv) {
 			case 'r':
 				config.realm = strdup(optarg);
 				break;
+			case 'n':
+				config.handles = atoi(optarg);
+				break;
 		}
 	}
 	if (optind < argc) {
@@ -92,7 +95,7 @@ int main(int argc, char **argv) {
 		if (optind < argc) {
 			name = argv[optind++];
 		}
-		if ((code = krbconn_get(&ctx, name, &principal)) != 0) {
+		if ((code = krbconn_get(&ctx, name, KRBCONN_ALL, &principal)) != 0) {
 			err = krbconn_error(&ctx, code);
 			printf("%s, principal '%s'\n", err, name);
 			free(err);
@@ -232,6 +235,39 @@ int main(int argc, char **argv) {
 			goto end;
 		}
 		printf("Renew of %s successfull\n", config.principal);
+	} else if (strcmp(command, "bench") == 0) {
+		char **list;
+		const char *query = NULL;
+		krbconn_principal_t *princs;
+		long *codes;
+		struct timespec start, stop;
+		int i, count, failed = 0;
+
+		if (optind < argc) {
+			query = argv[optind++];
+		}
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		if ((code = krbconn_list(&ctx, query, &list, &count))) {
+			err = krbconn_error(&ctx, code);
+			printf("%s\n", err);
+			free(err);
+			goto end;
+		}
+		princs = calloc(sizeof(krbconn_principal_t), count);
+		codes = calloc(sizeof(long), count);
+		code = krbconn_get_many(&ctx, list, count, KRBCONN_ALL, princs, codes);
+		clock_gettime(CLOCK_MONOTONIC, &stop);
+		for (i = 0; i < count; i++) {
+			if (codes[i]) failed++;
+			krbconn_free_principal(&princs[i]);
+		}
+		free(princs);
+		free(codes);
+		krbconn_free_list(&ctx, list, count);
+
+		printf("Principals:      %d (%d failed)\n", count, failed);
+		printf("Handles:         %d\n", ctx.n_workers + 1);
+		printf("Time:            %.3f ms\n", (stop.tv_sec - start.tv_sec) * 1000.0 + (stop.tv_nsec - start.tv_nsec) / 1000000.0);
 	}
 
 end:
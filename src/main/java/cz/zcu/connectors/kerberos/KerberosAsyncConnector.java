@@ -0,0 +1,215 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Asynchronous operations of the connector.
+ *
+ * The operations are run by the pool of platform threads shared by the
+ * connector instances of the same configuration, the caller only gets the
+ * future. The blocking kadmin calls don't occupy the calling threads (like
+ * virtual threads, which would be pinned by the native calls).
+ *
+ * The pool is bounded (see {@link KerberosConfiguration#getAsyncThreads()}
+ * and {@link KerberosConfiguration#getAsyncQueueSize()}), the operations above
+ * the queue size fail with {@link RejectedExecutionException}.
+ *
+ * The connector needs to be initialized in the thread-safe mode (see
+ * {@link KerberosConfiguration#getThreadSafe()}), and it is still owned by
+ * the caller (it is not disposed here).
+ */
+public class KerberosAsyncConnector {
+	/**
+	 * Worker pools of each configuration (created on first use).
+	 */
+	private static final Map<String, ThreadPoolExecutor> executors = new HashMap<String, ThreadPoolExecutor>();
+
+	private final KerberosConnector connector;
+
+	/**
+	 * Worker pool of the configuration.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Create the asynchronous operations of the connector.
+	 *
+	 * The pool with the number of threads and the queue size of the connector
+	 * configuration is used.
+	 *
+	 * @param connector initialized connector in the thread-safe mode
+	 */
+	public KerberosAsyncConnector(KerberosConnector connector) {
+		KerberosConfiguration configuration = (KerberosConfiguration) connector.getConfiguration();
+
+		if (configuration == null) throw new IllegalArgumentException("Connector not initialized");
+		if (!configuration.getThreadSafe()) throw new IllegalArgumentException("Connector not in the thread-safe mode");
+		this.connector = connector;
+		this.executor = getExecutor(configuration.getPrincipal() + " " + configuration.getRealm(), configuration.getAsyncThreads(), configuration.getAsyncQueueSize());
+	}
+
+	/**
+	 * Get the worker pool, the idle threads time out.
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor(String owner, int threads, int queueSize) {
+		String key = owner + " " + threads + " " + queueSize;
+		ThreadPoolExecutor executor = executors.get(key);
+
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kerberos-async-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			executors.put(key, executor);
+		}
+		return executor;
+	}
+
+	/**
+	 * Get number of the queued operations.
+	 *
+	 * @return operations of the configuration waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Get number of the running operations.
+	 *
+	 * @return approximate number of the busy threads of the configuration
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Get the principal.
+	 *
+	 * @param uid principal name
+	 * @param options operation options (attributes to get), may be null
+	 * @return future of the principal, null if not found
+	 */
+	public CompletableFuture<ConnectorObject> getAsync(final Uid uid, final OperationOptions options) {
+		return submit(new Supplier<ConnectorObject>() {
+			public ConnectorObject get() {
+				List<ConnectorObject> objects = search(new KerberosQuery(uid.getUidValue(), null), options);
+				return objects.isEmpty() ? null : objects.get(0);
+			}
+		});
+	}
+
+	/**
+	 * Search the principals.
+	 *
+	 * @param query query, null for all principals
+	 * @param options operation options, may be null
+	 * @return future of the found principals
+	 */
+	public CompletableFuture<List<ConnectorObject>> searchAsync(final KerberosQuery query, final OperationOptions options) {
+		return submit(new Supplier<List<ConnectorObject>>() {
+			public List<ConnectorObject> get() {
+				return search(query, options);
+			}
+		});
+	}
+
+	/**
+	 * Create the principal.
+	 *
+	 * @param createAttributes principal attributes
+	 * @param options operation options, may be null
+	 * @return future of the principal Uid
+	 */
+	public CompletableFuture<Uid> createAsync(final Set<Attribute> createAttributes, final OperationOptions options) {
+		return submit(new Supplier<Uid>() {
+			public Uid get() {
+				return connector.create(KerberosPrincipal.OBJECT_CLASS, createAttributes, options);
+			}
+		});
+	}
+
+	/**
+	 * Update the principal.
+	 *
+	 * @param uid principal name
+	 * @param replaceAttributes changed attributes
+	 * @param options operation options, may be null
+	 * @return future of the principal Uid (changed by rename)
+	 */
+	public CompletableFuture<Uid> updateAsync(final Uid uid, final Set<Attribute> replaceAttributes, final OperationOptions options) {
+		return submit(new Supplier<Uid>() {
+			public Uid get() {
+				return connector.update(KerberosPrincipal.OBJECT_CLASS, uid, replaceAttributes, options);
+			}
+		});
+	}
+
+	/**
+	 * Delete the principal.
+	 *
+	 * @param uid principal name
+	 * @param options operation options, may be null
+	 * @return future completed after the delete
+	 */
+	public CompletableFuture<Void> deleteAsync(final Uid uid, final OperationOptions options) {
+		return submit(new Supplier<Void>() {
+			public Void get() {
+				connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, options);
+				return null;
+			}
+		});
+	}
+
+	private List<ConnectorObject> search(KerberosQuery query, OperationOptions options) {
+		final List<ConnectorObject> objects = new ArrayList<ConnectorObject>();
+
+		connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, query, new ResultsHandler() {
+			public boolean handle(ConnectorObject connectorObject) {
+				objects.add(connectorObject);
+				return true;
+			}
+		}, options != null ? options : new OperationOptionsBuilder().build());
+
+		return objects;
+	}
+
+	/**
+	 * Run the operation in the pool, the full queue fails the future.
+	 */
+	private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+		try {
+			return CompletableFuture.supplyAsync(operation, executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> future = new CompletableFuture<T>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+}
@@ -40,10 +40,114 @@ public class KerberosConfiguration extends AbstractConfiguration {
 	private int lifeTime = 2 * 3600 * 1000;
 
 	/**
-	 * Send debug message from the JNI part to syslog.
+	 * Trace the JNI part to the connector log.
 	 */
 	private boolean debug = false;
 
+	/**
+	 * Maximal number of principal lists kept for paged searches.
+	 */
+	private int searchCacheSize = 10;
+
+	/**
+	 * Idle time (ms) after the principal list of paged search is discarded.
+	 */
+	private int searchCacheTimeout = 5 * 60 * 1000;
+
+	/**
+	 * Additional kadmin connections for fetching principals in parallel.
+	 */
+	private int searchHandles = 0;
+
+	/**
+	 * Maximal number of cached principal records.
+	 */
+	private int principalCacheSize = 0;
+
+	/**
+	 * Time (ms) after the cached principal record is discarded.
+	 */
+	private int principalCacheTimeout = 60 * 1000;
+
+	/**
+	 * Directory for the principal snapshots of the synchronization.
+	 */
+	private String syncDirectory = null;
+
+	/**
+	 * Time (ms) after the unused older sync snapshot is removed.
+	 */
+	private int syncRetention = 7 * 24 * 3600 * 1000;
+
+	/**
+	 * Size of the buffer for packed search results (0 to pass principals one by one).
+	 */
+	private int searchBufferSize = 64 * 1024;
+
+	/**
+	 * Maximal number of idle kadmin handles kept for reuse (0 disables the pool).
+	 */
+	private int handlePoolMaxIdle = 0;
+
+	/**
+	 * Number of idle kadmin handles kept regardless of the idle timeout
+	 * (not opened in advance).
+	 */
+	private int handlePoolKeepIdle = 0;
+
+	/**
+	 * Idle time (ms) after the kadmin handle above the kept ones is closed.
+	 */
+	private int handlePoolIdleTimeout = 5 * 60 * 1000;
+
+	/**
+	 * Time (ms) before the end of the credentials lifetime, when the new
+	 * credentials are obtained in the background (0 disables the renewal).
+	 */
+	private int credentialsRenewal = 10 * 60 * 1000;
+
+	/**
+	 * Log in to kadmind in init, not on the first operation.
+	 */
+	private boolean connectOnInit = false;
+
+	/**
+	 * The connector instance can be used by many threads.
+	 */
+	private boolean threadSafe = false;
+
+	/**
+	 * Maximal number of kadmin connections of the thread-safe instance,
+	 * including the main one (0 for unlimited).
+	 */
+	private int maxConnections = 8;
+
+	/**
+	 * Time (ms) to wait for a free connection above the limit (0 fails immediately).
+	 */
+	private int maxConnectionsWait = 30 * 1000;
+
+	/**
+	 * Number of threads of the asynchronous operations (shared by the
+	 * connector instances of the same configuration).
+	 */
+	private int asyncThreads = 8;
+
+	/**
+	 * Maximal number of queued asynchronous operations.
+	 */
+	private int asyncQueueSize = 10000;
+
+	/**
+	 * Collect the metrics of the kadmin calls and operations (JMX).
+	 */
+	private boolean metrics = true;
+
+	/**
+	 * Record the principal names in the Java Flight Recorder events.
+	 */
+	private boolean recordPrincipals = false;
+
 	/**
 	 * Constructor.
 	 */
@@ -117,6 +221,226 @@ public class KerberosConfiguration extends AbstractConfiguration {
 		this.debug = debug;
 	}
 
+	@ConfigurationProperty(order = 7, displayMessageKey = "searchCacheSize.display",
+			groupMessageKey = "basic.group", helpMessageKey = "searchCacheSize.help",
+			required = false, confidential = false)
+	public int getSearchCacheSize() {
+		return searchCacheSize;
+	}
+
+	public void setSearchCacheSize(int searchCacheSize) {
+		this.searchCacheSize = searchCacheSize;
+	}
+
+	@ConfigurationProperty(order = 8, displayMessageKey = "searchCacheTimeout.display",
+			groupMessageKey = "basic.group", helpMessageKey = "searchCacheTimeout.help",
+			required = false, confidential = false)
+	public int getSearchCacheTimeout() {
+		return searchCacheTimeout;
+	}
+
+	public void setSearchCacheTimeout(int searchCacheTimeout) {
+		this.searchCacheTimeout = searchCacheTimeout;
+	}
+
+	@ConfigurationProperty(order = 9, displayMessageKey = "searchHandles.display",
+			groupMessageKey = "basic.group", helpMessageKey = "searchHandles.help",
+			required = false, confidential = false)
+	public int getSearchHandles() {
+		return searchHandles;
+	}
+
+	public void setSearchHandles(int searchHandles) {
+		this.searchHandles = searchHandles;
+	}
+
+	@ConfigurationProperty(order = 10, displayMessageKey = "principalCacheSize.display",
+			groupMessageKey = "basic.group", helpMessageKey = "principalCacheSize.help",
+			required = false, confidential = false)
+	public int getPrincipalCacheSize() {
+		return principalCacheSize;
+	}
+
+	public void setPrincipalCacheSize(int principalCacheSize) {
+		this.principalCacheSize = principalCacheSize;
+	}
+
+	@ConfigurationProperty(order = 11, displayMessageKey = "principalCacheTimeout.display",
+			groupMessageKey = "basic.group", helpMessageKey = "principalCacheTimeout.help",
+			required = false, confidential = false)
+	public int getPrincipalCacheTimeout() {
+		return principalCacheTimeout;
+	}
+
+	public void setPrincipalCacheTimeout(int principalCacheTimeout) {
+		this.principalCacheTimeout = principalCacheTimeout;
+	}
+
+	@ConfigurationProperty(order = 12, displayMessageKey = "syncDirectory.display",
+			groupMessageKey = "basic.group", helpMessageKey = "syncDirectory.help",
+			required = false, confidential = false)
+	public String getSyncDirectory() {
+		return syncDirectory;
+	}
+
+	public void setSyncDirectory(String syncDirectory) {
+		this.syncDirectory = syncDirectory;
+	}
+
+	@ConfigurationProperty(order = 13, displayMessageKey = "searchBufferSize.display",
+			groupMessageKey = "basic.group", helpMessageKey = "searchBufferSize.help",
+			required = false, confidential = false)
+	public int getSearchBufferSize() {
+		return searchBufferSize;
+	}
+
+	public void setSearchBufferSize(int searchBufferSize) {
+		this.searchBufferSize = searchBufferSize;
+	}
+
+	@ConfigurationProperty(order = 14, displayMessageKey = "handlePoolMaxIdle.display",
+			groupMessageKey = "basic.group", helpMessageKey = "handlePoolMaxIdle.help",
+			required = false, confidential = false)
+	public int getHandlePoolMaxIdle() {
+		return handlePoolMaxIdle;
+	}
+
+	public void setHandlePoolMaxIdle(int handlePoolMaxIdle) {
+		this.handlePoolMaxIdle = handlePoolMaxIdle;
+	}
+
+	@ConfigurationProperty(order = 15, displayMessageKey = "handlePoolKeepIdle.display",
+			groupMessageKey = "basic.group", helpMessageKey = "handlePoolKeepIdle.help",
+			required = false, confidential = false)
+	public int getHandlePoolKeepIdle() {
+		return handlePoolKeepIdle;
+	}
+
+	public void setHandlePoolKeepIdle(int handlePoolKeepIdle) {
+		this.handlePoolKeepIdle = handlePoolKeepIdle;
+	}
+
+	@ConfigurationProperty(order = 16, displayMessageKey = "handlePoolIdleTimeout.display",
+			groupMessageKey = "basic.group", helpMessageKey = "handlePoolIdleTimeout.help",
+			required = false, confidential = false)
+	public int getHandlePoolIdleTimeout() {
+		return handlePoolIdleTimeout;
+	}
+
+	public void setHandlePoolIdleTimeout(int handlePoolIdleTimeout) {
+		this.handlePoolIdleTimeout = handlePoolIdleTimeout;
+	}
+
+	@ConfigurationProperty(order = 17, displayMessageKey = "credentialsRenewal.display",
+			groupMessageKey = "basic.group", helpMessageKey = "credentialsRenewal.help",
+			required = false, confidential = false)
+	public int getCredentialsRenewal() {
+		return credentialsRenewal;
+	}
+
+	public void setCredentialsRenewal(int credentialsRenewal) {
+		this.credentialsRenewal = credentialsRenewal;
+	}
+
+	@ConfigurationProperty(order = 18, displayMessageKey = "connectOnInit.display",
+			groupMessageKey = "basic.group", helpMessageKey = "connectOnInit.help",
+			required = false, confidential = false)
+	public boolean getConnectOnInit() {
+		return connectOnInit;
+	}
+
+	public void setConnectOnInit(boolean connectOnInit) {
+		this.connectOnInit = connectOnInit;
+	}
+
+	@ConfigurationProperty(order = 19, displayMessageKey = "threadSafe.display",
+			groupMessageKey = "basic.group", helpMessageKey = "threadSafe.help",
+			required = false, confidential = false)
+	public boolean getThreadSafe() {
+		return threadSafe;
+	}
+
+	public void setThreadSafe(boolean threadSafe) {
+		this.threadSafe = threadSafe;
+	}
+
+	@ConfigurationProperty(order = 20, displayMessageKey = "asyncThreads.display",
+			groupMessageKey = "basic.group", helpMessageKey = "asyncThreads.help",
+			required = false, confidential = false)
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+
+	@ConfigurationProperty(order = 21, displayMessageKey = "asyncQueueSize.display",
+			groupMessageKey = "basic.group", helpMessageKey = "asyncQueueSize.help",
+			required = false, confidential = false)
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	@ConfigurationProperty(order = 22, displayMessageKey = "metrics.display",
+			groupMessageKey = "basic.group", helpMessageKey = "metrics.help",
+			required = false, confidential = false)
+	public boolean getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	@ConfigurationProperty(order = 23, displayMessageKey = "recordPrincipals.display",
+			groupMessageKey = "basic.group", helpMessageKey = "recordPrincipals.help",
+			required = false, confidential = false)
+	public boolean getRecordPrincipals() {
+		return recordPrincipals;
+	}
+
+	public void setRecordPrincipals(boolean recordPrincipals) {
+		this.recordPrincipals = recordPrincipals;
+	}
+
+	@ConfigurationProperty(order = 24, displayMessageKey = "syncRetention.display",
+			groupMessageKey = "basic.group", helpMessageKey = "syncRetention.help",
+			required = false, confidential = false)
+	public int getSyncRetention() {
+		return syncRetention;
+	}
+
+	public void setSyncRetention(int syncRetention) {
+		this.syncRetention = syncRetention;
+	}
+
+	@ConfigurationProperty(order = 25, displayMessageKey = "maxConnections.display",
+			groupMessageKey = "basic.group", helpMessageKey = "maxConnections.help",
+			required = false, confidential = false)
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	@ConfigurationProperty(order = 26, displayMessageKey = "maxConnectionsWait.display",
+			groupMessageKey = "basic.group", helpMessageKey = "maxConnectionsWait.help",
+			required = false, confidential = false)
+	public int getMaxConnectionsWait() {
+		return maxConnectionsWait;
+	}
+
+	public void setMaxConnectionsWait(int maxConnectionsWait) {
+		this.maxConnectionsWait = maxConnectionsWait;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -125,5 +449,26 @@ public class KerberosConfiguration extends AbstractConfiguration {
 			throw new IllegalArgumentException("Both password and keytab location cannot be null or empty");
 		}
 		Assertions.blankCheck(principal, "principal");
+		if (searchHandles < 0) {
+			throw new IllegalArgumentException("Number of search handles cannot be negative");
+		}
+		if (searchBufferSize < 0) {
+			throw new IllegalArgumentException("Search buffer size cannot be negative");
+		}
+		if (handlePoolMaxIdle < 0 || handlePoolKeepIdle < 0) {
+			throw new IllegalArgumentException("Handle pool limits cannot be negative");
+		}
+		if (credentialsRenewal < 0) {
+			throw new IllegalArgumentException("Credentials renewal time cannot be negative");
+		}
+		if (asyncThreads < 1 || asyncQueueSize < 1) {
+			throw new IllegalArgumentException("Asynchronous threads and queue size must be positive");
+		}
+		if (maxConnections < 0 || maxConnectionsWait < 0) {
+			throw new IllegalArgumentException("Connection limit and wait time cannot be negative");
+		}
+		if (syncRetention < 0) {
+			throw new IllegalArgumentException("Sync snapshot retention cannot be negative");
+		}
 	}
 }
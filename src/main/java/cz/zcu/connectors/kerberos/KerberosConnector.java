@@ -1,14 +1,34 @@
 package cz.zcu.connectors.kerberos;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorSecurityException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
-import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.AttributeInfo.Flags;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
@@ -16,17 +36,26 @@ import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.PoolableConnector;
 import org.identityconnectors.framework.spi.ConnectorClass;
 import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.identityconnectors.framework.spi.operations.*;
 
+import cz.zcu.connectors.kerberos.exceptions.CredentialsExpiredException;
 import cz.zcu.connectors.kerberos.exceptions.KerberosException;
 
 /**
  * Main implementation of the Kerberos Connector.
+ *
+ * The connector instance is not thread-safe by default: one native kadmin
+ * handle is used by all operations. With
+ * {@link KerberosConfiguration#getThreadSafe()}, the instance can be used by
+ * many threads. Each operation leases a native context: the main one, or an
+ * additional one (with its own login) when the main one is busy. Additional
+ * contexts are kept in the instance for the next concurrent operations.
  */
 @ConnectorClass(
 		displayNameKey = "Kerberos.connector.display",
 		configurationClass = KerberosConfiguration.class)
-public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp, SearchOp<String>, UpdateOp, SchemaOp, TestOp {
+public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp, SearchOp<KerberosQuery>, SyncOp, UpdateOp, UpdateDeltaOp, SchemaOp, TestOp {
 
 	/**
 	 * Setup logging for the {@link KerberosConnector}.
@@ -39,22 +68,196 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 */
 	private KerberosConfiguration configuration;
 
-	private Schema schema = null;
+	private volatile Schema schema = null;
 
-	private long contextPointer;
+	/**
+	 * Main native context, 0 if not connected yet.
+	 */
+	private volatile long contextPointer;
+
+	/**
+	 * Native context used by one operation.
+	 */
+	private static class Lease {
+		long context;
+		/**
+		 * Login time of the additional context.
+		 */
+		long loginTime;
+		/**
+		 * The main context (see {@link KerberosConnector#contextPointer}).
+		 */
+		final boolean primary;
+		/**
+		 * Search buffer of the additional context.
+		 */
+		ByteBuffer buffer = null;
+		/**
+		 * Kadmin call statistics of the additional context.
+		 */
+		long[] stats = null;
+		/**
+		 * Debug trace records of the additional context.
+		 */
+		long[] trace = null;
+		/**
+		 * Operation using the context (for the metrics).
+		 */
+		String operation = null;
+		long started;
+
+		Lease(long context, long loginTime, boolean primary) {
+			this.context = context;
+			this.loginTime = loginTime;
+			this.primary = primary;
+		}
+	}
+
+	/**
+	 * Debug trace records of the JNI library: the kadmin calls, and the
+	 * operations of the JNI library.
+	 */
+	// keep in sync with kerberos.h
+	private static final String[] TRACE_NAMES = {
+		"create", "delete", "modify", "chpasswd", "rename", "get", "list", "renew",
+		"search", "get_stream", "fetch", "batch", "error", "lost"
+	};
+	private static final int TRACE_LOST = 13;
+	private static final int TRACE_SIZE = 256;
+	private static final int TRACE_VALUES = 5;
+
+	/**
+	 * Number of principal operations passed to the JNI library in one call.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+
+	/**
+	 * Idle native kadmin handles, shared by all connector instances.
+	 */
+	private static final KerberosHandlePool handlePool = new KerberosHandlePool();
+
+	/**
+	 * Salt of the password digests in the handle keys.
+	 */
+	private static final byte[] HANDLE_KEY_SALT = new byte[16];
+
+	static {
+		new SecureRandom().nextBytes(HANDLE_KEY_SALT);
+	}
+
+	/**
+	 * Delay (ms) of the next attempt after failed credentials renewal.
+	 */
+	private static final long RENEWAL_RETRY = 60 * 1000;
+
+	/**
+	 * Background credentials renewal, shared by all connector instances
+	 * (created on first use).
+	 */
+	private static ScheduledThreadPoolExecutor renewalExecutor = null;
 
 	/**
 	 * Last connection time.
 	 *
 	 * Used for checking credentials validity.
 	 */
-	private long lastLoginTime = 0;
+	private volatile long lastLoginTime = 0;
 
+	/**
+	 * Principal lists of paged searches of the configuration.
+	 */
+	private KerberosSearchCache searchCache = null;
+
+	/**
+	 * Principal records of the configuration.
+	 */
+	private KerberosPrincipalCache principalCache = null;
+
+	/**
+	 * Key of the pooled handles of the configuration.
+	 */
+	private String handleKey = null;
+
+	/**
+	 * Direct buffer for the packed search results (allocated on first search).
+	 */
+	private ByteBuffer searchBuffer = null;
+
+	/**
+	 * Metrics of the configuration, null if disabled.
+	 */
+	private KerberosMetrics metrics = null;
+
+	/**
+	 * Kadmin call statistics of the main context.
+	 */
+	private long[] primaryStats = null;
+
+	/**
+	 * Debug trace records of the main context.
+	 */
+	private long[] primaryTrace = null;
+
+	/**
+	 * Lock of the native contexts and the background renewal state.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The main context is used by an operation (thread-safe mode).
+	 */
+	private boolean primaryBusy = false;
+
+	/**
+	 * Idle additional contexts (thread-safe mode).
+	 */
+	private final Deque<Lease> spares = new ArrayDeque<Lease>();
+
+	/**
+	 * Number of the additional contexts, leased or idle (thread-safe mode).
+	 */
+	private int additional = 0;
+
+	/**
+	 * Scheduled renewal, null if disabled or disposed.
+	 */
+	private ScheduledFuture<?> renewal = null;
+
+	/**
+	 * Generation of the scheduled renewal (outdated renewals are dropped).
+	 */
+	private int renewalGeneration = 0;
+
+	/**
+	 * Native context with the renewed credentials (not used yet), 0 if none.
+	 */
+	private long renewedContext = 0;
+
+	private long renewedLoginTime = 0;
 
 	public long getContextPointer() {
 		return this.contextPointer;
 	}
 
+	/**
+	 * Get the principal cache (with hit, miss and eviction counters).
+	 *
+	 * @return principal cache of the configuration (shared by its connector instances), null before init
+	 */
+	public KerberosPrincipalCache getPrincipalCache() {
+		return principalCache;
+	}
+
+	/**
+	 * Get the pool of idle kadmin handles (with hit, miss and close counters).
+	 *
+	 * @return handle pool shared by all connector instances
+	 */
+	public static KerberosHandlePool getHandlePool() {
+		return handlePool;
+	}
+
 	/**
 	 * Gets the Configuration context for this connector.
 	 *
@@ -71,12 +274,368 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 * @see org.identityconnectors.framework.spi.Connector#init(org.identityconnectors.framework.spi.Configuration)
 	 */
 	public void init(final Configuration configuration) {
-		long currentTime = System.currentTimeMillis();
-
 		this.configuration = (KerberosConfiguration) configuration;
 		logger.info("Initializing resource with realm {0}", this.configuration.getRealm());
-		krb5_init(GuardedStringAccessor.class);
-		this.lastLoginTime = currentTime;
+		List<KerberosHandlePool.Handle> close = new ArrayList<KerberosHandlePool.Handle>();
+		handleKey = getHandleKey();
+		handlePool.setLimits(handleKey, this.configuration.getHandlePoolMaxIdle(), this.configuration.getHandlePoolKeepIdle(), this.configuration.getHandlePoolIdleTimeout(), close);
+		closeHandles(close);
+		searchCache = KerberosSearchCache.get(getSearchOwner());
+		searchCache.setLimits(this.configuration.getSearchCacheSize(), this.configuration.getSearchCacheTimeout());
+		principalCache = KerberosPrincipalCache.get(getSearchOwner());
+		principalCache.setLimits(this.configuration.getPrincipalCacheSize(), this.configuration.getPrincipalCacheTimeout());
+		metrics = this.configuration.getMetrics() ? KerberosMetrics.get(getSearchOwner()) : null;
+		if (this.configuration.getConnectOnInit()) warmUp();
+	}
+
+	/**
+	 * Log in to kadmind now.
+	 *
+	 * The connector logs in lazily on the first operation. Connector pools
+	 * may use this to have the instances connected in advance (see also
+	 * {@link KerberosConfiguration#getConnectOnInit()}).
+	 */
+	public void warmUp() {
+		release(acquire("connect"));
+	}
+
+	/**
+	 * Lease the native context for the operation.
+	 *
+	 * In the thread-safe mode, the main context is leased exclusively, and
+	 * the additional contexts are used (or opened), when it is busy. Above
+	 * {@link KerberosConfiguration#getMaxConnections()}, the operation waits
+	 * for a released context. Otherwise the main context is always used.
+	 *
+	 * @param operation name of the operation (for the metrics)
+	 * @return leased context, to be released by {@link #release(Lease)}
+	 */
+	private Lease acquire(String operation) {
+		long started = System.nanoTime();
+		Lease lease = acquire();
+
+		lease.operation = operation;
+		lease.started = started;
+		return lease;
+	}
+
+	private Lease acquire() {
+		if (configuration.getThreadSafe()) {
+			Lease lease = null;
+
+			synchronized (lock) {
+				waitForContext();
+				if (primaryBusy) {
+					lease = spares.pollFirst();
+					if (lease == null) {
+						lease = new Lease(0, 0, false);
+						additional++;
+					}
+				} else {
+					primaryBusy = true;
+				}
+			}
+			if (lease != null) {
+				long lifeTime = configuration.getLifeTime();
+				try {
+					if (lease.context != 0 && lifeTime > 0 && System.currentTimeMillis() - lease.loginTime >= lifeTime) {
+						destroy(lease.context);
+						lease.context = 0;
+					}
+					if (lease.context == 0) open(lease);
+				} catch (RuntimeException e) {
+					release(lease);
+					throw e;
+				}
+				return lease;
+			}
+		}
+
+		try {
+			connect();
+		} catch (RuntimeException e) {
+			release(new Lease(0, 0, true));
+			throw e;
+		}
+		return new Lease(contextPointer, 0, true);
+	}
+
+	/**
+	 * Wait until a context can be leased without exceeding the connection
+	 * limit (called with the lock held).
+	 */
+	private void waitForContext() {
+		int max = configuration.getMaxConnections();
+		long deadline = System.currentTimeMillis() + configuration.getMaxConnectionsWait();
+
+		while (max > 0 && primaryBusy && spares.isEmpty() && 1 + additional >= max) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) throw new OperationTimeoutException("All " + max + " kadmin connections are busy");
+			try {
+				lock.wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ConnectorException("Interrupted while waiting for a kadmin connection", e);
+			}
+			if (configuration == null) throw new ConnectorException("Connector disposed");
+		}
+	}
+
+	/**
+	 * Release the leased native context.
+	 *
+	 * @param lease leased context
+	 */
+	private void release(Lease lease) {
+		if (metrics != null && lease.operation != null) {
+			long[] stats = getStats(lease);
+			boolean called = lease.context != 0 && krb5_stats(lease.context, stats);
+			metrics.add(lease.operation, System.nanoTime() - lease.started, called ? stats : null);
+			lease.operation = null;
+		}
+		KerberosConfiguration config = configuration;
+		if (config != null && config.getDebug() && lease.context != 0) logTrace(lease);
+		synchronized (lock) {
+			lock.notify();
+			if (lease.primary) {
+				primaryBusy = false;
+				return;
+			}
+			if (lease.context != 0 && configuration != null) {
+				spares.addFirst(lease);
+				return;
+			}
+			additional--;
+		}
+		destroy(lease.context);
+	}
+
+	/**
+	 * Get the buffer for the kadmin call statistics of the context.
+	 */
+	private long[] getStats(Lease lease) {
+		if (lease.primary) {
+			if (primaryStats == null) primaryStats = new long[KerberosMetrics.STATS_SIZE];
+			return primaryStats;
+		}
+		if (lease.stats == null) lease.stats = new long[KerberosMetrics.STATS_SIZE];
+		return lease.stats;
+	}
+
+	/**
+	 * Pass the debug trace records of the leased context to the log.
+	 *
+	 * The records are read until none is left (a full ring doesn't fit into
+	 * one read with the lost records marker).
+	 */
+	private void logTrace(Lease lease) {
+		long[] values;
+		int n;
+
+		if (lease.primary) {
+			if (primaryTrace == null) primaryTrace = new long[TRACE_SIZE * TRACE_VALUES];
+			values = primaryTrace;
+		} else {
+			if (lease.trace == null) lease.trace = new long[TRACE_SIZE * TRACE_VALUES];
+			values = lease.trace;
+		}
+
+		do {
+			n = krb5_trace(lease.context, values);
+			for (int i = 0; i < n; i++) {
+				int v = i * TRACE_VALUES;
+				int op = (int) values[v + 2];
+				String name = op >= 0 && op < TRACE_NAMES.length ? TRACE_NAMES[op] : String.valueOf(op);
+
+				if (op == TRACE_LOST) {
+					logger.warn("JNI trace: {0} records lost", values[v + 3]);
+				} else {
+					logger.info("JNI {0}: count {1}, code {2,number,#}, {3} us, started {4,time,HH:mm:ss.SSS}",
+							name, values[v + 3], values[v + 4], values[v + 1] / 1000, new Date(values[v] / 1000000));
+				}
+			}
+		} while (n > 0);
+	}
+
+	/**
+	 * Log in with the additional context (thread-safe mode).
+	 */
+	private void open(Lease lease) {
+		long currentTime = System.currentTimeMillis();
+
+		logger.info("Opening additional kadmin handle for concurrent operations");
+		lease.context = open(configuration);
+		lease.loginTime = currentTime;
+	}
+
+	/**
+	 * Log in with the new native context.
+	 */
+	private static long open(KerberosConfiguration config) {
+		KerberosNativeEvent event = beginEvent(config, "open", null, config.getPrincipal());
+		long context = 0;
+
+		try {
+			context = krb5_open(config);
+		} finally {
+			commitEvent(event, context, 0);
+		}
+		return context;
+	}
+
+	/**
+	 * Close the native context.
+	 */
+	private static void destroy(long context) {
+		if (context == 0) return;
+
+		KerberosNativeEvent event = beginEvent(null, "destroy", null, null);
+		try {
+			krb5_destroy(context);
+		} finally {
+			commitEvent(event, 0, 0);
+		}
+	}
+
+	/**
+	 * Start the JFR event of the native call.
+	 *
+	 * The fields are set only if the event is enabled, the principal only
+	 * with {@link KerberosConfiguration#getRecordPrincipals()}.
+	 *
+	 * @param config configuration, null if not known
+	 * @param call native method (without the krb5_ prefix)
+	 * @param lease context of the operation, null if none
+	 * @param principal principal name or query, may be null
+	 * @return the event to finish by {@link #commitEvent(KerberosNativeEvent, long, int)}
+	 */
+	private static KerberosNativeEvent beginEvent(KerberosConfiguration config, String call, Lease lease, String principal) {
+		KerberosNativeEvent event = new KerberosNativeEvent();
+
+		if (event.isEnabled()) {
+			event.call = call;
+			if (lease != null) event.operation = lease.operation;
+			if (config != null && config.getRecordPrincipals()) event.principal = principal;
+			event.begin();
+		}
+		return event;
+	}
+
+	/**
+	 * Finish the JFR event of the native call.
+	 *
+	 * The result code is fetched from the context only for the recorded events.
+	 *
+	 * @param event the event
+	 * @param context native context of the call, 0 if not known
+	 * @param count number of the returned principals
+	 */
+	private static void commitEvent(KerberosNativeEvent event, long context, int count) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.code = krb5_last_code(context);
+			event.count = count;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Log in to kadmind (or use the pooled handle), if not connected yet.
+	 * Otherwise swap in the renewed credentials, if there are any.
+	 */
+	private void connect() {
+		if (contextPointer != 0) {
+			useRenewedContext();
+			return;
+		}
+
+		long currentTime = System.currentTimeMillis();
+		// credentials lifetime 0 means always re-connect
+		if (!handlePool.isEnabled(handleKey) || configuration.getLifeTime() == 0 || !borrowHandle()) {
+			KerberosNativeEvent event = beginEvent(configuration, "init", null, configuration.getPrincipal());
+			try {
+				krb5_init(GuardedStringAccessor.class);
+			} finally {
+				commitEvent(event, contextPointer, 0);
+			}
+			lastLoginTime = currentTime;
+		}
+		scheduleRenewal();
+	}
+
+	/**
+	 * Use the idle kadmin handle from the pool.
+	 *
+	 * The handle is validated by a kadmin call, invalid handles are closed.
+	 * The login time of the handle is kept, so the credentials lifetime
+	 * (see {@link #checkAlive()}) counts from the original login.
+	 *
+	 * @return true, if the pooled handle is used
+	 */
+	private boolean borrowHandle() {
+		List<KerberosHandlePool.Handle> close = new ArrayList<KerberosHandlePool.Handle>();
+
+		try {
+			for (;;) {
+				KerberosHandlePool.Handle handle = handlePool.borrow(handleKey, close);
+				if (handle == null) return false;
+				KerberosNativeEvent event = beginEvent(configuration, "validate", null, configuration.getPrincipal());
+				boolean valid;
+				try {
+					valid = krb5_validate(handle.getContext(), configuration.getPrincipal());
+				} finally {
+					commitEvent(event, handle.getContext(), 0);
+				}
+				if (valid) {
+					logger.info("Using pooled kadmin handle, login time {0}", handle.getLoginTime());
+					contextPointer = handle.getContext();
+					lastLoginTime = handle.getLoginTime();
+					return true;
+				}
+				logger.info("Pooled kadmin handle is not valid");
+				close.add(handle);
+			}
+		} finally {
+			closeHandles(close);
+		}
+	}
+
+	private static void closeHandles(List<KerberosHandlePool.Handle> handles) {
+		for (KerberosHandlePool.Handle handle : handles) destroy(handle.getContext());
+	}
+
+	/**
+	 * Key of the pooled kadmin handles (the password is hashed with the
+	 * random salt of the process).
+	 */
+	private String getHandleKey() {
+		GuardedString password = configuration.getPassword();
+		StringBuilder key = new StringBuilder();
+
+		key.append(configuration.getRealm()).append('\u0000');
+		key.append(configuration.getPrincipal()).append('\u0000');
+		key.append(configuration.getKeytab()).append('\u0000');
+		key.append(configuration.getSearchHandles()).append('\u0000');
+		key.append(configuration.getDebug()).append('\u0000');
+		if (password != null) {
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new KerberosException("Cannot hash the password", e);
+			}
+			digest.update(HANDLE_KEY_SALT);
+			password.access(new GuardedString.Accessor() {
+				public void access(char[] chars) {
+					ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+					digest.update(bytes.duplicate());
+					Arrays.fill(bytes.array(), (byte) 0);
+				}
+			});
+			for (byte b : digest.digest()) key.append(String.format("%02x", b));
+		}
+
+		return key.toString();
 	}
 
 	/**
@@ -86,15 +645,46 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 */
 	public void dispose() {
 		logger.info("Disposing resource");
-		krb5_destroy();
-		configuration = null;
+		if (principalCache != null && principalCache.isEnabled()) {
+			logger.info("Principal cache: {0} hits, {1} misses, {2} evictions", principalCache.getHits(), principalCache.getMisses(), principalCache.getEvictions());
+		}
+		List<Lease> idle;
+		synchronized (lock) {
+			if (renewal != null) renewal.cancel(false);
+			renewal = null;
+			renewalGeneration++;
+			idle = new ArrayList<Lease>(spares);
+			additional -= spares.size();
+			spares.clear();
+		}
+		for (Lease lease : idle) destroy(lease.context);
+		useRenewedContext();
+		if (contextPointer != 0 && handlePool.isEnabled(handleKey) && configuration.getLifeTime() != 0) {
+			// the handle is closed by the pool after the credentials lifetime
+			List<KerberosHandlePool.Handle> close = new ArrayList<KerberosHandlePool.Handle>();
+			handlePool.giveBack(handleKey, contextPointer, lastLoginTime, configuration.getLifeTime(), close);
+			closeHandles(close);
+			logger.info("Handle pool: {0} idle, {1} hits, {2} misses, {3} closed", handlePool.size(), handlePool.getHits(), handlePool.getMisses(), handlePool.getClosed());
+		} else {
+			destroy(contextPointer);
+		}
+		contextPointer = 0;
+		searchBuffer = null;
+		primaryStats = null;
+		primaryTrace = null;
+		metrics = null;
 		lastLoginTime = 0;
+		synchronized (lock) {
+			configuration = null;
+			lock.notifyAll();
+		}
 	}
 
 	/**
 	 * Check the instance connection of {@link KerberosConnector} to be reused.
 	 *
 	 * It only check, if the connection has not been disposed. Otherwise always OK.
+	 * The instance not connected yet is OK.
 	 *
 	 * @see org.identityconnectors.framework.spi.PoolableConnector#checkAlive()
 	 */
@@ -106,23 +696,212 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 			throw new ConnectorException("checkAlive(): No connection re-use with credentials lifetime 0");
 		}
 
+		long loginTime;
+		synchronized (lock) {
+			// the main context cannot be swapped, when used by an operation
+			if (!primaryBusy) useRenewedContext();
+			loginTime = renewedContext != 0 ? renewedLoginTime : lastLoginTime;
+		}
+		if (contextPointer == 0) return;
+
 		long currentTime = System.currentTimeMillis();
-		long sessionTime = currentTime - lastLoginTime;
+		long sessionTime = currentTime - loginTime;
 		if (sessionTime >= configuration.getLifeTime()) {
 			logger.info("Closing session, connection time: {} s, max time: {} s", sessionTime / 1000, configuration.getLifeTime() / 1000);
 			throw new ConnectorException("Credentials lifetime ended");
 		}
 	}
 
+	/**
+	 * Get the renewal executor.
+	 */
+	private static synchronized ScheduledThreadPoolExecutor getRenewalExecutor() {
+		if (renewalExecutor == null) {
+			renewalExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kerberos-renewal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			renewalExecutor.setRemoveOnCancelPolicy(true);
+		}
+		return renewalExecutor;
+	}
+
+	/**
+	 * Schedule the background renewal of the credentials.
+	 *
+	 * The new native context is created before the end of the credentials
+	 * lifetime (see {@link KerberosConfiguration#getCredentialsRenewal()}), and
+	 * it is swapped in by the next operation. The request path doesn't wait
+	 * for the login.
+	 */
+	private void scheduleRenewal() {
+		synchronized (lock) {
+			if (renewal != null) renewal.cancel(false);
+			renewal = null;
+			renewalGeneration++;
+			scheduleRenewal(lastLoginTime);
+		}
+	}
+
+	/**
+	 * Schedule the renewal of the credentials obtained at the login time.
+	 */
+	private void scheduleRenewal(long loginTime) {
+		long lifeTime = configuration.getLifeTime();
+		long before = Math.min(configuration.getCredentialsRenewal(), lifeTime / 2);
+
+		if (lifeTime <= 0 || before <= 0) return;
+		schedule(Math.max(0, loginTime + lifeTime - before - System.currentTimeMillis()));
+	}
+
+	private void schedule(long delay) {
+		final KerberosConfiguration config = configuration;
+		final int generation = renewalGeneration;
+
+		renewal = getRenewalExecutor().schedule(new Runnable() {
+			public void run() {
+				renew(config, generation);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Login in the background.
+	 */
+	private void renew(KerberosConfiguration config, int generation) {
+		long loginTime = System.currentTimeMillis();
+		long context;
+
+		try {
+			context = open(config);
+		} catch (RuntimeException e) {
+			logger.warn("Credentials renewal failed: {0}", e.getMessage());
+			synchronized (lock) {
+				if (generation == renewalGeneration) schedule(RENEWAL_RETRY);
+			}
+			return;
+		}
+
+		long old = 0;
+		synchronized (lock) {
+			if (generation != renewalGeneration) {
+				// disposed or logged in again meanwhile
+				old = context;
+			} else {
+				logger.info("Credentials renewed");
+				old = renewedContext;
+				renewedContext = context;
+				renewedLoginTime = loginTime;
+				scheduleRenewal(loginTime);
+			}
+		}
+		destroy(old);
+	}
+
+	/**
+	 * Swap in the native context with the renewed credentials.
+	 *
+	 * The previous context is closed in the background.
+	 *
+	 * @return true, if the renewed context is used
+	 */
+	private boolean useRenewedContext() {
+		final long old;
+
+		synchronized (lock) {
+			if (renewedContext == 0) return false;
+			old = contextPointer;
+			contextPointer = renewedContext;
+			lastLoginTime = renewedLoginTime;
+			renewedContext = 0;
+		}
+		if (old != 0) {
+			getRenewalExecutor().execute(new Runnable() {
+				public void run() {
+					destroy(old);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Log in again after the expired credentials.
+	 *
+	 * @param e the failure
+	 * @param attempt number of the previous retries
+	 * @param lease the context of the operation (changed to the new one)
+	 * @return true to retry the operation
+	 * @throws ConnectorSecurityException the credentials are valid, the failure
+	 *         has other reason
+	 */
+	private boolean retryExpired(CredentialsExpiredException e, int attempt, Lease lease) {
+		if (attempt > 0) return false;
+		if (!credentialsExpired(lease)) throw new ConnectorSecurityException(e.getMessage(), e);
+
+		login(e, lease);
+		return true;
+	}
+
+	private void login(CredentialsExpiredException e, Lease lease) {
+		logger.info("Credentials expired ({0}), logging in again", e.getMessage());
+		if (!lease.primary) {
+			destroy(lease.context);
+			lease.context = 0;
+			open(lease);
+			return;
+		}
+		if (!useRenewedContext()) {
+			renew(lease);
+			lastLoginTime = System.currentTimeMillis();
+			scheduleRenewal();
+		}
+		lease.context = contextPointer;
+	}
+
+	/**
+	 * Check the credentials after the GSS-API failure.
+	 *
+	 * The failure is usually the expired admin ticket, but it can have other
+	 * reasons too, where the new login doesn't help.
+	 */
+	private boolean credentialsExpired(Lease lease) {
+		return !krb5_validate(lease.context, configuration.getPrincipal());
+	}
+
+	/**
+	 * Log in again with the main context (or the leased additional context).
+	 */
+	private void renew(Lease lease) {
+		long context = lease.primary ? contextPointer : lease.context;
+		KerberosNativeEvent event = beginEvent(configuration, "renew", lease, configuration.getPrincipal());
+
+		try {
+			krb5_renew(context, GuardedStringAccessor.class);
+		} finally {
+			commitEvent(event, context, 0);
+		}
+	}
+
 	private native void krb5_init(Class<GuardedStringAccessor> gsAccessor) throws KerberosException;
-	private native void krb5_destroy();
-	private native void krb5_renew(Class<GuardedStringAccessor> gsAccessor) throws KerberosException;
-	private native void krb5_create(String name, String password, long principalExpiry, long passwordExpiry, int attributes, String policy, long maxTicketLife, long maxRenewableLife, int mask) throws KerberosException;
-	private native void krb5_delete(String name) throws KerberosException;
-	private native void krb5_rename(String name, String newName) throws KerberosException;
-	private native void krb5_chpasswd(String name, String password);
-	private native void krb5_modify(String name, long principalExpiry, long passwordExpiry, int attributes, String policy, long maxTicketLife, long maxRenewableLife, int mask) throws KerberosException;
-	private native KerberosSearchResults krb5_search(String query, int pageSize, int pageOffset);
+	private static native long krb5_open(KerberosConfiguration configuration) throws KerberosException;
+	private static native void krb5_destroy(long context);
+	private static native boolean krb5_validate(long context, String principal);
+	private static native boolean krb5_stats(long context, long[] values);
+	private static native long krb5_last_code(long context);
+	private static native int krb5_trace(long context, long[] values);
+	private native void krb5_renew(long context, Class<GuardedStringAccessor> gsAccessor) throws KerberosException;
+	private native void krb5_create(long context, String name, String password, long principalExpiry, long passwordExpiry, int attributes, String policy, long maxTicketLife, long maxRenewableLife, int mask) throws KerberosException;
+	private native void krb5_delete(long context, String name) throws KerberosException;
+	private native void krb5_update(long context, KerberosOperation op) throws KerberosException;
+	private native void krb5_batch(long context, KerberosOperation[] operations, int count, int parallelism);
+	private native KerberosSearchResults krb5_search(long context, String query, int pageSize, int pageOffset);
+	private native int krb5_search_stream(long context, String query, int pageSize, int pageOffset, int mask, long[] filter, String[] strings, KerberosSearchSink sink);
+	private native String[] krb5_list(long context, String query);
+	private native int krb5_get_stream(long context, String[] names, int offset, int count, int skip, int mask, long[] filter, String[] strings, KerberosSearchSink sink);
 
 	/******************
 	 * SPI Operations
@@ -136,51 +915,25 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 */
 	public Uid create(final ObjectClass objectClass, final Set<Attribute> createAttributes, final OperationOptions options) {
 		if (KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
-			AttributesAccessor attributesAccessor = new AttributesAccessor(createAttributes);
-			Name name = AttributeUtil.getNameFromAttributes(createAttributes);
-			GuardedString password = AttributeUtil.getPasswordValue(createAttributes);
-
-			if (name == null)
-				throw new InvalidAttributeValueException("Name attribute is required");
-
-			//In case of creating a principal, it's necessary to set its name
-			int mask = KerberosPrincipal.MASK_PRINCIPAL;
-
-			KerberosPrincipal record = new KerberosPrincipal(createAttributes);
-			KerberosFlags attributes = record.getAttributes();
-			mask = (mask | record.getUpdateMask());
-
-			// set of principal flags to set
-			Set<String> flags = KerberosFlags.selectFlagAttributes(attributesAccessor.listAttributeNames());
-			// modify principal attributes
-			for (String flag : flags) {
-				attributes.setFlag(flag, attributesAccessor.findBoolean(flag));
-				mask |= KerberosPrincipal.MASK_ATTRIBUTES;
-			}
-			// enable/disable principal using "allowTix" flag
-			if (attributesAccessor.hasAttribute(OperationalAttributes.ENABLE_NAME)) {
-				boolean enable = attributesAccessor.findBoolean(OperationalAttributes.ENABLE_NAME);
-				attributes.setFlag(KerberosPrincipal.ATTR_ALLOW_TIX, enable);
-				mask |= KerberosPrincipal.MASK_ATTRIBUTES;
-			}
+			KerberosOperation op = KerberosOperation.create(createAttributes);
 
-			String guardedPassword = null;
-			if (password != null)
-				guardedPassword = GuardedStringAccessor.getString(password);
+			logger.info("Creating Kerberos principal {0}, update mask {1}", op.getName(), op.getMask());
+			principalCache.remove(op.getName());
+			Lease lease = acquire("create");
+			try {
+				for (int attempt = 0; ; attempt++) {
+					try {
+						createPrincipal(lease, op);
+						break;
+					} catch (CredentialsExpiredException e) {
+						if (!retryExpired(e, attempt, lease)) throw e;
+					}
+				}
+			} finally {
+				release(lease);
+			}
 
-			logger.info("Creating Kerberos principal {0}, update mask {1}", name.getNameValue(), mask);
-			krb5_create(
-					name.getNameValue(),
-					guardedPassword,
-					record.getPrincExpiry(),
-					record.getPwdExpiry(),
-					attributes.getAttributes(),
-					record.getPolicy(),
-					record.getMaxTicketLife(),
-					record.getMaxRenewableLife(),
-					mask);
-
-			return new Uid(AttributeUtil.getStringValue(name));
+			return op.getUid();
 		} else {
 			logger.warn("Create of type {0} is not supported",
 					configuration.getConnectorMessages().format(objectClass.getDisplayNameKey(), objectClass.getObjectClassValue()));
@@ -194,7 +947,20 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	public void delete(final ObjectClass objectClass, final Uid uid, final OperationOptions options) {
 		if (KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
 			logger.info("Deleting Kerberos principal {0}", uid.getUidValue());
-			krb5_delete(uid.getUidValue());
+			Lease lease = acquire("delete");
+			try {
+				for (int attempt = 0; ; attempt++) {
+					try {
+						deletePrincipal(lease, uid.getUidValue());
+						break;
+					} catch (CredentialsExpiredException e) {
+						if (!retryExpired(e, attempt, lease)) throw e;
+					}
+				}
+			} finally {
+				release(lease);
+				principalCache.remove(uid.getUidValue());
+			}
 		} else {
 			logger.warn("Delete of type {0} is not supported",
 					configuration.getConnectorMessages().format(objectClass.getDisplayNameKey(), objectClass.getObjectClassValue()));
@@ -202,129 +968,647 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 		}
 	}
 
+	private void createPrincipal(Lease lease, KerberosOperation op) {
+		KerberosNativeEvent event = beginEvent(configuration, "create", lease, op.name);
+
+		try {
+			krb5_create(
+					lease.context,
+					op.name,
+					op.password,
+					op.princExpiry,
+					op.pwdExpiry,
+					op.attributes,
+					op.policy,
+					op.maxTicketLife,
+					op.maxRenewableLife,
+					op.mask);
+		} finally {
+			commitEvent(event, lease.context, 0);
+		}
+	}
+
+	private void deletePrincipal(Lease lease, String name) {
+		KerberosNativeEvent event = beginEvent(configuration, "delete", lease, name);
+
+		try {
+			krb5_delete(lease.context, name);
+		} finally {
+			commitEvent(event, lease.context, 0);
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
-	public FilterTranslator<String> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+	public FilterTranslator<KerberosQuery> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
 		return new KerberosFilterTranslator();
 	}
 
 	/**
 	 * {@inheritDoc}
+	 *
+	 * The principal name of the query is used for listing, the filter on other
+	 * attributes is evaluated by the JNI library. The set of exact names is
+	 * fetched directly without listing.
 	 */
-	public void executeQuery(ObjectClass objectClass, String query, ResultsHandler handler, OperationOptions options) {
-		int remaining = 0;
+	public void executeQuery(ObjectClass objectClass, KerberosQuery query, ResultsHandler handler, OperationOptions options) {
+		Lease lease = acquire("search");
+		try {
+			executeQuery(query, handler, options, lease, 0);
+		} finally {
+			release(lease);
+		}
+	}
 
-		logger.info("Executing query: {0}, options {1}", query, options);
-		if (options.getPageSize() != null && 0 < options.getPageSize()) {
-			logger.info("Paged search was requested. Offset: {0}. Page size: {1}", options.getPagedResultsOffset(), options.getPageSize());
+	/**
+	 * Execute the query, it is retried on expired credentials, if no
+	 * principals have been passed to the handler.
+	 */
+	private void executeQuery(KerberosQuery query, ResultsHandler handler, OperationOptions options, Lease lease, int attempt) {
+		String name = query != null ? query.getName() : null;
+		String[] nameSet = query != null ? query.getNames() : null;
+		long[] filter = query != null ? query.getProgram() : null;
+		String[] strings = query != null ? query.getStrings() : null;
+		boolean exact = name != null && name.indexOf('*') == -1;
+		int returnMask = KerberosPrincipal.getReturnMask(options.getAttributesToGet());
+		int mask = KerberosPrincipal.getFetchMask(returnMask);
+		// exact searches fetch complete principals for the cache (the same kadmin call)
+		if (exact && filter == null && principalCache.isEnabled()) mask = KerberosPrincipal.MASK_ALL;
+		KerberosSearchSink sink = new KerberosSearchSink(handler, mask, returnMask);
+		// only exact lookups are cached, listings would evict them
+		if (exact) sink.setCache(principalCache, principalCache.begin());
+		sink.setBuffer(getSearchBuffer(lease));
 
-			KerberosSearchResults results;
-			int offset = 0;
+		try {
+			logger.info("Executing query: {0}, options {1}, fetch mask {2}", query, options, sink.getMask());
+			if (options.getPageSize() != null && 0 < options.getPageSize()) {
+				logger.info("Paged search was requested. Offset: {0}. Page size: {1}. Cookie: {2}", options.getPagedResultsOffset(), options.getPageSize(), options.getPagedResultsCookie());
 
-			if (options.getPagedResultsOffset() != null) {
-				offset = options.getPagedResultsOffset();
-				if (offset < 1) throw new KerberosException("Page search \"next\" not supported");
-				offset--;
-			}
-			results = krb5_search(query, options.getPageSize(), offset);
+				int remaining;
+				int offset = 0;
+				String cookie = null;
 
-			if (results != null) {
-				remaining = results.remaining;
-				for (KerberosPrincipal principal : results.principals) {
-					if (!handler.handle(principal.toConnectorObject())) {
-						//Stop iterating because the handler stopped processing
+				if (options.getPagedResultsOffset() != null) {
+					offset = options.getPagedResultsOffset();
+					if (offset < 1) throw new KerberosException("Page search \"next\" not supported");
+					offset--;
+				}
+				if (exact) {
+					// exact query - principals are passed to the handler as they are fetched, -1 if the handler stopped the search
+					if (offset == 0 && filter == null && searchCached(name, sink)) remaining = 0;
+					else remaining = searchStream(lease, name, options.getPageSize(), offset, filter, strings, sink);
+				} else {
+					String id = null;
+					String[] names = nameSet;
+					String resumed = null;
+					int skip = 0;
+
+					if (options.getPagedResultsCookie() != null && options.getPagedResultsOffset() == null) {
+						// continue from the cookie
+						resumed = options.getPagedResultsCookie();
+						String[] parts = resumed.split(":");
+						if (parts.length != 2) throw new KerberosException("Invalid paged results cookie " + resumed);
+						try {
+							offset = Integer.parseInt(parts[1]);
+						} catch (NumberFormatException e) {
+							throw new KerberosException("Invalid paged results cookie " + resumed);
+						}
+						if (nameSet == null) {
+							id = parts[0];
+							names = searchCache.getNames(id);
+						}
+					} else if (offset > 0) {
+						// next pages of the offset based paging
+						if (nameSet == null) {
+							id = searchCache.find(name);
+							if (id != null) names = searchCache.getNames(id);
+						}
+						// offset counts only the principals matching the filter
+						if (filter != null) {
+							skip = offset;
+							offset = 0;
+						}
+					}
+					if (names == null) {
+						logger.info("Listing principals of query {0}", name);
+						names = list(lease, name);
+						id = null;
+					}
+					if (resumed != null && (offset < 0 || offset > names.length))
+						throw new KerberosException("Invalid paged results cookie " + resumed);
+
+					int next;
+					if (filter != null) {
+						next = getStream(lease, names, offset, options.getPageSize(), skip, filter, strings, sink);
+					} else {
+						int count = Math.max(0, Math.min(options.getPageSize(), names.length - offset));
+						// listed names exist, the set of names needs to be fetched
+						if (sink.namesOnly() && nameSet == null) next = sink.handleNames(names, offset, count);
+						else next = getStream(lease, names, offset, count, 0, null, null, sink);
+					}
+					if (next == -1) {
 						remaining = -1;
-						break;
+						if (id != null) searchCache.remove(id);
+					} else {
+						remaining = Math.max(0, names.length - next);
+						if (remaining > 0) {
+							if (nameSet != null) cookie = "names:" + next;
+							else if (id == null) id = searchCache.put(name, names);
+							if (id != null) cookie = id + ":" + next;
+						} else if (id != null) {
+							searchCache.remove(id);
+						}
 					}
 				}
-			}
 
-			if (handler instanceof SearchResultsHandler) {
-				logger.info("Page search remaining: {0}", remaining);
-				((SearchResultsHandler)handler).handleResult(new SearchResult("NO_COOKIE", remaining));
-			}
-		} else {
-			logger.info("Full search was requested.");
-			KerberosSearchResults results = krb5_search(query, 0, 0);
-			if (results != null) {
-				for (KerberosPrincipal principal : results.principals) {
-					if (!handler.handle(principal.toConnectorObject())) {
-						//Stop iterating because the handler stopped processing
-						break;
-					}
+				if (handler instanceof SearchResultsHandler) {
+					logger.info("Page search remaining: {0}", remaining);
+					((SearchResultsHandler)handler).handleResult(new SearchResult(cookie, remaining));
+				}
+			} else {
+				logger.info("Full search was requested.");
+				if (nameSet != null) {
+					getStream(lease, nameSet, 0, nameSet.length, 0, filter, strings, sink);
+				} else if (sink.namesOnly() && !exact && filter == null) {
+					// only names - no need to fetch the principals
+					String[] names = list(lease, name);
+					sink.handleNames(names, 0, names.length);
+				} else if (!exact || filter != null || !searchCached(name, sink)) {
+					searchStream(lease, name, 0, 0, filter, strings, sink);
 				}
 			}
+		} catch (CredentialsExpiredException e) {
+			if (sink.getCount() > 0 || !retryExpired(e, attempt, lease)) throw e;
+			executeQuery(query, handler, options, lease, attempt + 1);
+			return;
+		} finally {
+			if (exact) principalCache.end();
+		}
+		logger.info("Search handled {0} principals", sink.getCount());
+	}
+
+	private int searchStream(Lease lease, String query, int pageSize, int pageOffset, long[] filter, String[] strings, KerberosSearchSink sink) {
+		KerberosNativeEvent event = beginEvent(configuration, "search_stream", lease, query);
+		int count = sink.getCount();
+
+		event.pageSize = pageSize;
+		event.pageOffset = pageOffset;
+		try {
+			return krb5_search_stream(lease.context, query, pageSize, pageOffset, sink.getMask(), filter, strings, sink);
+		} finally {
+			commitEvent(event, lease.context, sink.getCount() - count);
+		}
+	}
+
+	private String[] list(Lease lease, String query) {
+		KerberosNativeEvent event = beginEvent(configuration, "list", lease, query);
+		String[] names = null;
+
+		try {
+			return names = krb5_list(lease.context, query);
+		} finally {
+			commitEvent(event, lease.context, names != null ? names.length : 0);
+		}
+	}
+
+	private int getStream(Lease lease, String[] names, int offset, int count, int skip, long[] filter, String[] strings, KerberosSearchSink sink) {
+		KerberosNativeEvent event = beginEvent(configuration, "get_stream", lease, names.length == 1 ? names[0] : null);
+		int handled = sink.getCount();
+
+		event.pageSize = count;
+		event.pageOffset = offset + skip;
+		try {
+			return krb5_get_stream(lease.context, names, offset, count, skip, sink.getMask(), filter, strings, sink);
+		} finally {
+			commitEvent(event, lease.context, sink.getCount() - handled);
 		}
 	}
 
+	/**
+	 * Pass the cached principal to the sink.
+	 *
+	 * @return true, if the principal has been found in the cache
+	 */
+	private boolean searchCached(String name, KerberosSearchSink sink) {
+		KerberosPrincipal principal = principalCache.getPrincipal(name);
+		if (principal == null) return false;
+
+		logger.info("Principal {0} found in the cache", name);
+		sink.handle(principal);
+		return true;
+	}
+
+	/**
+	 * Get the direct buffer for the packed search results.
+	 *
+	 * Each native context has its own buffer.
+	 *
+	 * @return buffer, null to pass the principals one by one
+	 */
+	private ByteBuffer getSearchBuffer(Lease lease) {
+		int size = configuration.getSearchBufferSize();
+		ByteBuffer buffer = lease.primary ? searchBuffer : lease.buffer;
+
+		if (size <= 0) return null;
+		if (buffer == null || buffer.capacity() != size) {
+			buffer = ByteBuffer.allocateDirect(size);
+			if (lease.primary) searchBuffer = buffer;
+			else lease.buffer = buffer;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Identity of the configuration for the shared caches.
+	 */
+	private String getSearchOwner() {
+		return configuration.getPrincipal() + " " + configuration.getRealm();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
-	public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
-		Uid returnUid = uid;
-		if (KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
-			AttributesAccessor attributesAccessor = new AttributesAccessor(replaceAttributes);
-			KerberosPrincipal record = new KerberosPrincipal(replaceAttributes);
-			KerberosFlags attributes = record.getAttributes();
-			int mask = record.getUpdateMask();
-
-			// set of principal flags to set
-			Set<String> flags = KerberosFlags.selectFlagAttributes(attributesAccessor.listAttributeNames());
-			// get current attributes if needed - when setting some flags or enable/disable
-			if (!attributesAccessor.hasAttribute("attributes") && (!flags.isEmpty() || attributesAccessor.hasAttribute(OperationalAttributes.ENABLE_NAME))) {
-				logger.info("Getting principal {0} to get current attributes", uid.getUidValue());
-				KerberosSearchResults results = krb5_search(uid.getUidValue(), 0, 0);
-				if (results.principals == null || results.principals.length != 1)
-					throw new UnknownUidException("Modified principal " + uid.getUidValue() + " not found!");
-
-				attributes = results.principals[0].getAttributes();
-				mask |= KerberosPrincipal.MASK_ATTRIBUTES;
-			}
-			// modify principal attributes
-			for (String flag : flags) {
-				attributes.setFlag(flag, attributesAccessor.findBoolean(flag));
-				mask |= KerberosPrincipal.MASK_ATTRIBUTES;
+	public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+		if (!KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
+			throw new UnsupportedOperationException("Sync of type" + objectClass.getObjectClassValue() + " is not supported");
+		}
+
+		File dir = getSyncDirectory();
+		String owner = getSearchOwner();
+		long generation = KerberosSyncSnapshot.latestGeneration(dir, owner);
+		KerberosSyncSnapshot latest = KerberosSyncSnapshot.load(dir, owner, generation);
+		final KerberosSyncSnapshot current = new KerberosSyncSnapshot(generation + 1);
+
+		KerberosSearchSink sink = new KerberosSearchSink(null, KerberosPrincipal.MASK_ALL, KerberosPrincipal.RETURN_ALL) {
+			@Override
+			boolean handle(KerberosPrincipal principal) {
+				current.put(principal);
+				return true;
 			}
-			// enable/disable principal using "allowTix" flag
-			if (attributesAccessor.hasAttribute(OperationalAttributes.ENABLE_NAME)) {
-				boolean enable = attributesAccessor.findBoolean(OperationalAttributes.ENABLE_NAME);
-				attributes.setFlag(KerberosPrincipal.ATTR_ALLOW_TIX, enable);
-				mask |= KerberosPrincipal.MASK_ATTRIBUTES;
+		};
+		searchAll(sink);
+		if (latest != null && latest.sameRecords(current)) {
+			logger.info("Latest sync token {0} (no changes)", generation);
+			return new SyncToken(generation);
+		}
+
+		current.save(dir, owner, configuration.getSyncRetention());
+		logger.info("Latest sync token {0}, {1} principals", current.getGeneration(), current.size());
+		return new SyncToken(current.getGeneration());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * All principals are compared with the snapshot of the token. Only the
+	 * created, changed, and deleted principals are passed to the handler.
+	 *
+	 * The deltas carry the token of the compared snapshot, the new token is
+	 * passed to the handler only after its snapshot is stored. Without the
+	 * token, an empty snapshot is stored first for the deltas.
+	 */
+	public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		if (!KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
+			throw new UnsupportedOperationException("Sync of type" + objectClass.getObjectClassValue() + " is not supported");
+		}
+
+		File dir = getSyncDirectory();
+		String owner = getSearchOwner();
+		final KerberosSyncSnapshot base;
+		final List<KerberosPrincipal> changed = new ArrayList<KerberosPrincipal>();
+		final Set<String> seen = new HashSet<String>();
+		int returnMask = KerberosPrincipal.getReturnMask(options != null ? options.getAttributesToGet() : null);
+
+		if (token != null) {
+			long generation;
+			try {
+				generation = Long.parseLong(token.getValue().toString());
+			} catch (NumberFormatException e) {
+				throw new ConnectorException("Invalid sync token " + token.getValue());
 			}
+			base = KerberosSyncSnapshot.load(dir, owner, generation);
+			// the deletions since the token would be lost by the full synchronization
+			if (base == null) throw new ConnectorException("Sync snapshot " + generation + " not found, full reconciliation is needed");
+		} else {
+			base = null;
+		}
 
-			if (mask != 0) {
-				if ((mask & KerberosPrincipal.MASK_ATTRIBUTES) != 0) {
-					logger.info("New Kerberos principal attributes of {0}: {1}", uid.getUidValue(), attributes.getAttributes());
-				}
-				logger.info("Modifying Kerberos principal {0}, update mask {1}", uid.getUidValue(), mask);
-				krb5_modify(
-					uid.getUidValue(),
-					record.getPrincExpiry(),
-					record.getPwdExpiry(),
-					attributes.getAttributes(),
-					record.getPolicy(),
-					record.getMaxTicketLife(),
-					record.getMaxRenewableLife(),
-					mask);
+		// compare pass - only the changed principals are kept
+		KerberosSearchSink sink = new KerberosSearchSink(null, KerberosPrincipal.MASK_ALL, KerberosPrincipal.RETURN_ALL) {
+			@Override
+			boolean handle(KerberosPrincipal principal) {
+				seen.add(principal.getName());
+				if (base == null || base.changed(principal)) changed.add(principal);
+				return true;
+			}
+		};
+		searchAll(sink);
+		List<String> deleted = new ArrayList<String>();
+		if (base != null) {
+			for (String name : base.names()) {
+				if (!seen.contains(name)) deleted.add(name);
 			}
+		}
+		logger.info("Sync from token {0}: {1} changed, {2} deleted", token != null ? token.getValue() : null, changed.size(), deleted.size());
 
-			if (attributesAccessor.hasAttribute(OperationalAttributes.PASSWORD_NAME)) {
-				logger.info("Changing password of Kerberos principal {0}", uid.getUidValue());
-				krb5_chpasswd(uid.getUidValue(), GuardedStringAccessor.getString(attributesAccessor.getPassword()));
+		if (changed.isEmpty() && deleted.isEmpty()) {
+			if (token != null && handler instanceof SyncTokenResultsHandler) {
+				((SyncTokenResultsHandler) handler).handleResult(token);
 			}
+			return;
+		}
+
+		// new snapshot contains only the changes passed to the handler
+		long generation = Math.max(KerberosSyncSnapshot.latestGeneration(dir, owner), base != null ? base.getGeneration() : 0) + 1;
+		SyncToken baseToken = token;
+		if (base == null) {
+			KerberosSyncSnapshot empty = new KerberosSyncSnapshot(generation++);
+			empty.save(dir, owner, configuration.getSyncRetention());
+			baseToken = new SyncToken(empty.getGeneration());
+		}
+		KerberosSyncSnapshot next = base != null ? new KerberosSyncSnapshot(base, generation) : new KerberosSyncSnapshot(generation);
+		SyncToken nextToken = new SyncToken(generation);
+		boolean more = true;
+
+		for (KerberosPrincipal principal : changed) {
+			SyncDeltaType type;
+			// empty snapshot is only stored for the synchronization without token
+			if (base == null || base.size() == 0) type = SyncDeltaType.CREATE_OR_UPDATE;
+			else if (base.contains(principal.getName())) type = SyncDeltaType.UPDATE;
+			else type = SyncDeltaType.CREATE;
 
-			if (attributesAccessor.hasAttribute(Name.NAME)) {
-				returnUid = new Uid(attributesAccessor.getName().getNameValue());
-				logger.info("Renaming Kerberos principal {0} to {1}", uid.getUidValue(), returnUid.getUidValue());
-				krb5_rename(uid.getUidValue(), attributesAccessor.getName().getNameValue());
+			next.put(principal);
+			SyncDeltaBuilder builder = new SyncDeltaBuilder();
+			builder.setDeltaType(type);
+			builder.setToken(baseToken);
+			builder.setObject(principal.toConnectorObject(returnMask));
+			if (!(more = handler.handle(builder.build()))) break;
+		}
+		for (int i = 0; more && i < deleted.size(); i++) {
+			next.remove(deleted.get(i));
+			SyncDeltaBuilder builder = new SyncDeltaBuilder();
+			builder.setDeltaType(SyncDeltaType.DELETE);
+			builder.setToken(baseToken);
+			builder.setObjectClass(KerberosPrincipal.OBJECT_CLASS);
+			builder.setUid(new Uid(deleted.get(i)));
+			more = handler.handle(builder.build());
+		}
+
+		next.save(dir, owner, configuration.getSyncRetention());
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(nextToken);
+		}
+	}
+
+	/**
+	 * Pass all principals to the sink, retried on expired credentials, if no
+	 * principals have been passed.
+	 */
+	private void searchAll(KerberosSearchSink sink) {
+		Lease lease = acquire("sync");
+
+		try {
+			sink.setBuffer(getSearchBuffer(lease));
+			for (int attempt = 0; ; attempt++) {
+				try {
+					searchStream(lease, null, 0, 0, null, null, sink);
+					return;
+				} catch (CredentialsExpiredException e) {
+					if (sink.getCount() > 0 || !retryExpired(e, attempt, lease)) throw e;
+				}
 			}
-		} else {
+		} finally {
+			release(lease);
+		}
+	}
+
+	/**
+	 * Directory of the sync snapshots, required by the synchronization.
+	 */
+	private File getSyncDirectory() {
+		String dir = configuration.getSyncDirectory();
+
+		if (dir == null || dir.isEmpty()) throw new ConfigurationException("Sync directory is required for the synchronization");
+		return new File(dir);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
+		if (!KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
 			logger.warn("Update of type {0} is not supported",
 					configuration.getConnectorMessages().format(objectClass.getDisplayNameKey(), objectClass.getObjectClassValue()));
 			throw new UnsupportedOperationException("Update of type" + objectClass.getObjectClassValue() + " is not supported");
 		}
-		return returnUid;
+		return update(uid, replaceAttributes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * All principal attributes are single-valued, only the replace deltas are
+	 * supported. The changed Uid is returned after rename.
+	 */
+	public Set<AttributeDelta> updateDelta(ObjectClass objectClass, Uid uid, Set<AttributeDelta> modifications, OperationOptions options) {
+		Set<Attribute> replaceAttributes = new HashSet<Attribute>();
+		Set<AttributeDelta> sideEffects = new HashSet<AttributeDelta>();
+
+		if (!KerberosPrincipal.OBJECT_CLASS.equals(objectClass)) {
+			logger.warn("Update of type {0} is not supported",
+					configuration.getConnectorMessages().format(objectClass.getDisplayNameKey(), objectClass.getObjectClassValue()));
+			throw new UnsupportedOperationException("Update of type" + objectClass.getObjectClassValue() + " is not supported");
+		}
+
+		for (AttributeDelta delta : modifications) {
+			if (delta.getValuesToReplace() == null)
+				throw new InvalidAttributeValueException("Attribute " + delta.getName() + " is single-valued, only replace is supported");
+			replaceAttributes.add(AttributeBuilder.build(delta.getName(), delta.getValuesToReplace()));
+		}
+
+		Uid newUid = update(uid, replaceAttributes);
+		if (!newUid.equals(uid)) sideEffects.add(AttributeDeltaBuilder.build(Uid.NAME, newUid.getUidValue()));
+		return sideEffects;
+	}
+
+	/**
+	 * Update the principal.
+	 *
+	 * Modification, password change, and rename are done in one native call
+	 * (in this order). Changed flags (and enable/disable) are passed to the JNI
+	 * library as the bits to set and to clear. They are applied on the current
+	 * principal attributes in the same call, so no search is needed.
+	 *
+	 * On failure, the exception message contains the failed step, and the
+	 * previous steps have been done. On expired credentials the update is
+	 * retried from the failed step.
+	 */
+	private Uid update(Uid uid, Set<Attribute> replaceAttributes) {
+		KerberosOperation op = KerberosOperation.update(uid, replaceAttributes);
+		boolean flags = op.getAttributesSet() != 0 || op.getAttributesClear() != 0;
+
+		if ((op.getMask() & KerberosPrincipal.MASK_ATTRIBUTES) != 0) {
+			logger.info("New Kerberos principal attributes of {0}: {1}", uid.getUidValue(), (op.attributes | op.getAttributesSet()) & ~op.getAttributesClear());
+		} else if (flags) {
+			logger.info("Changing Kerberos principal attributes of {0}: set {1}, clear {2}", uid.getUidValue(), op.getAttributesSet(), op.getAttributesClear());
+		}
+		if (op.getMask() != 0 || flags) {
+			logger.info("Modifying Kerberos principal {0}, update mask {1}", uid.getUidValue(), op.getMask());
+		}
+		if (op.hasPassword()) {
+			logger.info("Changing password of Kerberos principal {0}", uid.getUidValue());
+		}
+		if (op.getNewName() != null) {
+			logger.info("Renaming Kerberos principal {0} to {1}", uid.getUidValue(), op.getNewName());
+		}
+
+		Lease lease = acquire("update");
+		try {
+			for (int attempt = 0; ; attempt++) {
+				try {
+					updatePrincipal(lease, op);
+					break;
+				} catch (CredentialsExpiredException e) {
+					if (!retryExpired(e, attempt, lease)) throw e;
+				}
+			}
+		} finally {
+			release(lease);
+			invalidate(op);
+		}
+		return op.getUid();
+	}
+
+	private void updatePrincipal(Lease lease, KerberosOperation op) {
+		KerberosNativeEvent event = beginEvent(configuration, "update", lease, op.name);
+
+		try {
+			krb5_update(lease.context, op);
+		} finally {
+			commitEvent(event, lease.context, 0);
+		}
+	}
+
+	/**
+	 * Run the principal operations in batches.
+	 *
+	 * Each batch is passed to the JNI library in one call, the operations are
+	 * spread over the main and the search handles (see
+	 * {@link KerberosConfiguration#getSearchHandles()}). The results are passed
+	 * to the handler in the order of the operations, as each batch finishes.
+	 * Failed operations have the error set, they don't stop the other ones.
+	 *
+	 * Operations run in parallel may be done in any order, so a batch ends
+	 * before the operation on the principal already used in the batch (by
+	 * name or new name). Operations on the same principal are done in the
+	 * given order. Operations failed on expired credentials are run again
+	 * after the login (updates from the failed step).
+	 *
+	 * @param operations principal operations
+	 * @param parallelism maximal number of kadmin handles used in parallel
+	 * @param handler results handler, it can stop the processing by returning false
+	 *        (the rest of the current batch has been done already)
+	 * @return number of done operations
+	 */
+	public int batch(Iterator<KerberosOperation> operations, int parallelism, KerberosOperation.Handler handler) {
+		KerberosOperation[] ops = new KerberosOperation[BATCH_SIZE];
+		Set<String> names = new HashSet<String>();
+		KerberosOperation next = null;
+		int total = 0, failed = 0;
+		boolean more = true;
+
+		logger.info("Batch of principal operations, parallelism {0}", parallelism);
+		Lease lease = acquire("batch");
+		try {
+			while (more && (next != null || operations.hasNext())) {
+				int n = 0;
+				names.clear();
+				while (n < ops.length && (next != null || operations.hasNext())) {
+					KerberosOperation op = next != null ? next : operations.next();
+					next = null;
+					if (!addNames(names, op)) {
+						next = op;
+						break;
+					}
+					ops[n++] = op;
+				}
+
+				try {
+					batch(ops, n, parallelism, lease);
+					retryExpired(ops, n, parallelism, lease);
+				} finally {
+					for (int i = 0; i < n; i++) {
+						ops[i].clearPassword();
+						invalidate(ops[i]);
+					}
+				}
+				total += n;
+				for (int i = 0; i < n; i++) {
+					if (ops[i].getError() != null) failed++;
+				}
+				for (int i = 0; more && i < n; i++) more = handler.handle(ops[i]);
+				Arrays.fill(ops, null);
+			}
+		} finally {
+			release(lease);
+		}
+		logger.info("Batch finished: {0} operations, {1} failed", total, failed);
+
+		return total;
+	}
+
+	/**
+	 * Add the principal names of the operation to the names of the batch.
+	 *
+	 * @return false if the principal is already used in the batch
+	 */
+	private static boolean addNames(Set<String> names, KerberosOperation op) {
+		String newName = op.getNewName();
+
+		if (names.contains(op.getName()) || (newName != null && names.contains(newName))) return false;
+		names.add(op.getName());
+		if (newName != null) names.add(newName);
+		return true;
+	}
+
+	/**
+	 * Run again the batch operations failed on expired credentials.
+	 */
+	private void retryExpired(KerberosOperation[] ops, int n, int parallelism, Lease lease) {
+		List<KerberosOperation> expired = new ArrayList<KerberosOperation>();
+
+		for (int i = 0; i < n; i++) {
+			if (ops[i].error instanceof CredentialsExpiredException) expired.add(ops[i]);
+		}
+		if (expired.isEmpty()) return;
+		if (!credentialsExpired(lease)) {
+			for (KerberosOperation op : expired) op.error = new ConnectorSecurityException(op.error.getMessage(), op.error);
+			return;
+		}
+		login((CredentialsExpiredException) expired.get(0).error, lease);
+
+		for (KerberosOperation op : expired) op.error = null;
+		batch(expired.toArray(new KerberosOperation[expired.size()]), expired.size(), parallelism, lease);
+	}
+
+	private void batch(KerberosOperation[] ops, int n, int parallelism, Lease lease) {
+		KerberosNativeEvent event = beginEvent(configuration, "batch", lease, null);
+
+		event.pageSize = n;
+		try {
+			krb5_batch(lease.context, ops, n, parallelism);
+		} finally {
+			commitEvent(event, lease.context, n);
+		}
+	}
+
+	/**
+	 * Invalidate the cached principal after the operation.
+	 */
+	private void invalidate(KerberosOperation op) {
+		principalCache.remove(op.getName());
+		if (op.getNewName() != null) principalCache.remove(op.getNewName());
 	}
 
 
@@ -333,7 +1617,21 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 */
 	public void test() {
 		logger.info("Testing connection and credentials");
-		krb5_renew(GuardedStringAccessor.class);
+		boolean connected = contextPointer != 0;
+		Lease lease = acquire("test");
+		try {
+			// just logged in
+			if (lease.primary && !connected) return;
+			renew(lease);
+			if (lease.primary) {
+				lastLoginTime = System.currentTimeMillis();
+				scheduleRenewal();
+			} else {
+				lease.loginTime = System.currentTimeMillis();
+			}
+		} finally {
+			release(lease);
+		}
 	}
 
 
@@ -342,10 +1640,12 @@ public class KerberosConnector implements PoolableConnector, CreateOp, DeleteOp,
 	 */
 	public Schema schema() {
 		logger.info("schema()");
-		if (schema == null) {
-			schema = buildSchema();
+		Schema result = schema;
+		if (result == null) {
+			// concurrent builds create the same schema
+			schema = result = buildSchema();
 		}
-		return schema;
+		return result;
 	}
 
 
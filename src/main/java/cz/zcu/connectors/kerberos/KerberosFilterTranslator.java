@@ -1,8 +1,17 @@
 package cz.zcu.connectors.kerberos;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.*;
 
@@ -16,29 +25,85 @@ import org.identityconnectors.framework.common.objects.filter.*;
  * which will (strictly) reapply all filters specified after the connector does the initial
  * filtering.
  * <p>
- * Note: The generic query type is most commonly a String, but does not have to be.
+ * Principal name is passed to Kadm5 library (exact name or wildcard expression).
+ * OR of exact names is passed as the set of names fetched directly.
+ * Filters on other principal attributes are evaluated by the JNI library on each
+ * fetched principal (see {@link KerberosQuery}).
  */
-public class KerberosFilterTranslator extends AbstractFilterTranslator<String> {
+public class KerberosFilterTranslator extends AbstractFilterTranslator<KerberosQuery> {
+	/**
+	 * Numeric attributes (dates and times in milliseconds).
+	 */
+	private static final Map<String, Integer> NUMERIC_FIELDS = new HashMap<String, Integer>();
+	/**
+	 * String attributes.
+	 */
+	private static final Map<String, Integer> STRING_FIELDS = new HashMap<String, Integer>();
+
+	static {
+		NUMERIC_FIELDS.put(OperationalAttributes.DISABLE_DATE_NAME, KerberosPrincipal.MASK_PRINC_EXPIRE_TIME);
+		NUMERIC_FIELDS.put(OperationalAttributes.PASSWORD_EXPIRATION_DATE_NAME, KerberosPrincipal.MASK_PW_EXPIRATION);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_PASSWORD_CHANGE_DATE, KerberosPrincipal.MASK_LAST_PWD_CHANGE);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_MODIFY_DATE, KerberosPrincipal.MASK_MOD_TIME);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_LAST_LOGIN_DATE, KerberosPrincipal.MASK_LAST_SUCCESS);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_LAST_FAILED_DATE, KerberosPrincipal.MASK_LAST_FAILED);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_MAX_TICKET_LIFE, KerberosPrincipal.MASK_MAX_LIFE);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_MAX_RENEWABLE_LIFE, KerberosPrincipal.MASK_MAX_RLIFE);
+		NUMERIC_FIELDS.put(KerberosPrincipal.ATTR_ATTRIBUTES, KerberosPrincipal.MASK_ATTRIBUTES);
+
+		STRING_FIELDS.put(KerberosPrincipal.ATTR_POLICY, KerberosPrincipal.MASK_POLICY);
+		STRING_FIELDS.put(KerberosPrincipal.ATTR_MODIFY_PRINCIPAL, KerberosPrincipal.MASK_MOD_NAME);
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected String createContainsExpression(ContainsFilter filter, boolean not) {
-		if (filter.getAttribute().is(Name.NAME) ||
-			filter.getAttribute().is(Uid.NAME)) {
-			String value = AttributeUtil.getAsStringValue(filter.getAttribute());
-			if (StringUtil.isBlank(value)) {
-				return null;
-			} else if (not) {
-				//It's not possible to create a not filter
-				return null;
-			} else {
-				return "*" + value + "*";
-			}
+	protected KerberosQuery createAndExpression(KerberosQuery left, KerberosQuery right) {
+		// only one name expression for Kadm5 (the cheapest one), the other one is evaluated natively
+		KerberosQuery main = cost(right) < cost(left) ? right : left;
+		KerberosQuery other = main == left ? right : left;
+		KerberosQuery.Node filter = KerberosQuery.and(KerberosQuery.and(left.getFilter(), right.getFilter()), nameNode(other));
+
+		if (main.getNames() != null) return new KerberosQuery(main.getNames(), filter);
+		return new KerberosQuery(main.getName(), filter);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createOrExpression(KerberosQuery left, KerberosQuery right) {
+		String lname = left.getName(), rname = right.getName();
+		String[] lnames = left.getExactNames(), rnames = right.getExactNames();
+
+		if (left.getFilter() == null && right.getFilter() == null && lnames != null && rnames != null) {
+			// set of exact names - principals are fetched directly without listing
+			Set<String> names = new LinkedHashSet<String>(Arrays.asList(lnames));
+			names.addAll(Arrays.asList(rnames));
+			return new KerberosQuery(names.toArray(new String[names.size()]), null);
+		}
+		if (left.getNames() == null && right.getNames() == null && (lname == null ? rname == null : lname.equals(rname))) {
+			return new KerberosQuery(lname, KerberosQuery.or(left.getFilter(), right.getFilter()));
+		}
+		// different names - separate queries are cheaper than fetching all principals
+		if (cost(left) < Integer.MAX_VALUE && cost(right) < Integer.MAX_VALUE) return null;
+
+		// all principals
+		KerberosQuery.Node lnode = KerberosQuery.and(nameNode(left), left.getFilter());
+		KerberosQuery.Node rnode = KerberosQuery.and(nameNode(right), right.getFilter());
+		return new KerberosQuery((String) null, KerberosQuery.or(lnode, rnode));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createContainsExpression(ContainsFilter filter, boolean not) {
+		if (isName(filter)) {
+			return nameQuery(filter, "*", "*", not);
 		} else {
-			//It's not possible to filter by different attributes
-			return null;
+			return stringQuery(filter, KerberosQuery.CMP_CONTAINS, not);
 		}
 	}
 
@@ -46,21 +111,11 @@ public class KerberosFilterTranslator extends AbstractFilterTranslator<String> {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected String createEndsWithExpression(EndsWithFilter filter, boolean not) {
-		if (filter.getAttribute().is(Name.NAME) ||
-				filter.getAttribute().is(Uid.NAME)) {
-			String value = AttributeUtil.getAsStringValue(filter.getAttribute());
-			if (StringUtil.isBlank(value)) {
-				return null;
-			} else if (not) {
-				//It's not possible to create a not filter
-				return null;
-			} else {
-				return "*" + value;
-			}
+	protected KerberosQuery createEndsWithExpression(EndsWithFilter filter, boolean not) {
+		if (isName(filter)) {
+			return nameQuery(filter, "*", "", not);
 		} else {
-			//It's not possible to filter by different attributes
-			return null;
+			return stringQuery(filter, KerberosQuery.CMP_ENDS, not);
 		}
 	}
 
@@ -68,21 +123,35 @@ public class KerberosFilterTranslator extends AbstractFilterTranslator<String> {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected String createStartsWithExpression(StartsWithFilter filter, boolean not) {
-		if (filter.getAttribute().is(Name.NAME) ||
-				filter.getAttribute().is(Uid.NAME)) {
-			String value = AttributeUtil.getAsStringValue(filter.getAttribute());
-			if (StringUtil.isBlank(value)) {
-				return null;
-			} else if (not) {
-				//It's not possible to create a not filter
-				return null;
-			} else {
-				return value + "*";
-			}
+	protected KerberosQuery createStartsWithExpression(StartsWithFilter filter, boolean not) {
+		if (isName(filter)) {
+			return nameQuery(filter, "", "*", not);
 		} else {
-			//It's not possible to filter by different attributes
-			return null;
+			return stringQuery(filter, KerberosQuery.CMP_STARTS, not);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createEqualsExpression(EqualsFilter filter, boolean not) {
+		Attribute attr = filter.getAttribute();
+
+		if (isName(filter)) {
+			return nameQuery(filter, "", "", not);
+		} else if (attr.is(OperationalAttributes.ENABLE_NAME) || KerberosFlags.FLAGS.contains(attr.getName())) {
+			String flag = attr.is(OperationalAttributes.ENABLE_NAME) ? KerberosPrincipal.ATTR_ALLOW_TIX : attr.getName();
+			Object value = singleValue(attr);
+			if (!(value instanceof Boolean)) return null;
+
+			boolean set = KerberosFlags.isInvertedFlag(flag) ? !(Boolean) value : (Boolean) value;
+			return filterQuery(new KerberosQuery.Compare(KerberosPrincipal.MASK_ATTRIBUTES,
+					set ? KerberosQuery.CMP_ALL_SET : KerberosQuery.CMP_ALL_CLEAR, KerberosFlags.getFlagMask(flag)), not);
+		} else if (STRING_FIELDS.containsKey(attr.getName())) {
+			return stringQuery(filter, KerberosQuery.CMP_EQ, not);
+		} else {
+			return numericQuery(filter, KerberosQuery.CMP_EQ, not);
 		}
 	}
 
@@ -90,21 +159,113 @@ public class KerberosFilterTranslator extends AbstractFilterTranslator<String> {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-		if (filter.getAttribute().is(Name.NAME) ||
-				filter.getAttribute().is(Uid.NAME)) {
-			String value = AttributeUtil.getAsStringValue(filter.getAttribute());
-			if (StringUtil.isBlank(value)) {
-				return null;
-			} else if (not) {
-				//It's not possible to create a not filter
-				return null;
-			} else {
-				return value;
+	protected KerberosQuery createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+		return numericQuery(filter, KerberosQuery.CMP_GT, not);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter, boolean not) {
+		return numericQuery(filter, KerberosQuery.CMP_GE, not);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createLessThanExpression(LessThanFilter filter, boolean not) {
+		return numericQuery(filter, KerberosQuery.CMP_LT, not);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected KerberosQuery createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+		return numericQuery(filter, KerberosQuery.CMP_LE, not);
+	}
+
+	private static boolean isName(AttributeFilter filter) {
+		return filter.getAttribute().is(Name.NAME) || filter.getAttribute().is(Uid.NAME);
+	}
+
+	private static Object singleValue(Attribute attr) {
+		List<Object> values = attr.getValue();
+		if (values == null || values.size() != 1) return null;
+		return values.get(0);
+	}
+
+	private static KerberosQuery.Node nameNode(String name) {
+		return new KerberosQuery.StringCompare(KerberosPrincipal.MASK_PRINCIPAL, KerberosQuery.CMP_MATCH, name);
+	}
+
+	/**
+	 * Name expression of the query as the filter.
+	 *
+	 * @return filter node, null for all principals
+	 */
+	private static KerberosQuery.Node nameNode(KerberosQuery query) {
+		KerberosQuery.Node node = null;
+
+		if (query.getNames() != null) {
+			for (String name : query.getNames()) {
+				node = node == null ? nameNode(name) : new KerberosQuery.Logical(KerberosQuery.OP_OR, node, nameNode(name));
 			}
+			return node;
+		}
+		return query.getName() != null ? nameNode(query.getName()) : null;
+	}
+
+	/**
+	 * Estimated number of principals fetched for the name expression of the query.
+	 */
+	private static int cost(KerberosQuery query) {
+		if (query.getNames() != null) return query.getNames().length;
+		if (query.isExact()) return 1;
+		if (query.getName() != null) return Integer.MAX_VALUE - 1;
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Query using Kadm5 name expression.
+	 */
+	private static KerberosQuery nameQuery(AttributeFilter filter, String prefix, String suffix, boolean not) {
+		String value = AttributeUtil.getAsStringValue(filter.getAttribute());
+		if (StringUtil.isBlank(value)) {
+			return null;
+		} else if (not) {
+			// negation can't be listed - evaluated natively on all principals
+			return new KerberosQuery((String) null, new KerberosQuery.Not(nameNode(prefix + value + suffix)));
 		} else {
+			return new KerberosQuery(prefix + value + suffix, null);
+		}
+	}
+
+	private static KerberosQuery filterQuery(KerberosQuery.Node node, boolean not) {
+		return new KerberosQuery((String) null, not ? new KerberosQuery.Not(node) : node);
+	}
+
+	private static KerberosQuery stringQuery(AttributeFilter filter, int cmp, boolean not) {
+		Integer field = STRING_FIELDS.get(filter.getAttribute().getName());
+		Object value = singleValue(filter.getAttribute());
+
+		if (field == null || !(value instanceof String)) {
+			//It's not possible to filter by different attributes
+			return null;
+		}
+		return filterQuery(new KerberosQuery.StringCompare(field, cmp, (String) value), not);
+	}
+
+	private static KerberosQuery numericQuery(AttributeFilter filter, int cmp, boolean not) {
+		Integer field = NUMERIC_FIELDS.get(filter.getAttribute().getName());
+		Object value = singleValue(filter.getAttribute());
+
+		if (field == null || !(value instanceof Number)) {
 			//It's not possible to filter by different attributes
 			return null;
 		}
+		return filterQuery(new KerberosQuery.Compare(field, cmp, ((Number) value).longValue()), not);
 	}
 }
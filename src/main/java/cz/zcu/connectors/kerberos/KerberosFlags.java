@@ -37,6 +37,57 @@ public class KerberosFlags {
 
 	public static final Set<String> FLAGS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(FLAGS_ARRAY)));
 
+	/**
+	 * Change of the principal flags.
+	 *
+	 * The change is kept as the bits to set and the bits to clear, so it can
+	 * be applied by the JNI library on the current principal attributes.
+	 */
+	public static class Change {
+		private int set = 0;
+		private int clear = 0;
+
+		/**
+		 * Change the flag.
+		 *
+		 * @param flag principal flag name
+		 * @param value principal flag value
+		 */
+		public void setFlag(String flag, boolean value) throws KerberosException {
+			int mask = getFlagMask(flag);
+
+			if (isInvertedFlag(flag) ? !value : value) {
+				set |= mask;
+				clear &= ~mask;
+			} else {
+				clear |= mask;
+				set &= ~mask;
+			}
+		}
+
+		public boolean isEmpty() {
+			return set == 0 && clear == 0;
+		}
+
+		public int getSetMask() {
+			return set;
+		}
+
+		public int getClearMask() {
+			return clear;
+		}
+
+		/**
+		 * Apply the change.
+		 *
+		 * @param attributes principal attributes mask
+		 * @return changed principal attributes mask
+		 */
+		public int apply(int attributes) {
+			return (attributes | set) & ~clear;
+		}
+	}
+
 	public KerberosFlags(int attributes) {
 		this.attributes = attributes;
 	}
@@ -61,42 +112,50 @@ public class KerberosFlags {
 	 *  @param value principal flag value
 	 */
 	public void setFlag(String flag, boolean value) throws KerberosException {
-		int mask;
-		boolean set;
+		int mask = getFlagMask(flag);
+		boolean set = isInvertedFlag(flag) ? !value : value;
 
+		if (set)
+				attributes = attributes | mask;
+		else
+				attributes = attributes & ~mask;
+	}
+
+	/**
+	 * Get the bit of the principal flag in principal attributes.
+	 *
+	 * @param flag principal flag name
+	 * @return principal attributes mask
+	 */
+	public static int getFlagMask(String flag) throws KerberosException {
 		switch(flag) {
 		case KerberosPrincipal.ATTR_ALLOW_TIX:
-			mask = MASK_DISALLOW_ALL_TIX;
-			set = !value;
-			break;
+			return MASK_DISALLOW_ALL_TIX;
 		case KerberosPrincipal.ATTR_ALLOW_FORWARDABLE:
-			mask = MASK_DISALLOW_FORWARDABLE;
-			set = !value;
-			break;
+			return MASK_DISALLOW_FORWARDABLE;
 		case KerberosPrincipal.ATTR_ALLOW_RENEWABLE:
-			mask = MASK_DISALLOW_RENEWABLE;
-			set = !value;
-			break;
+			return MASK_DISALLOW_RENEWABLE;
 		case KerberosPrincipal.ATTR_REQUIRES_PREAUTH:
-			mask = MASK_REQUIRES_PREAUTH;
-			set = value;
-			break;
+			return MASK_REQUIRES_PREAUTH;
 		case KerberosPrincipal.ATTR_REQUIRES_HWAUTH:
-			mask = MASK_REQUIRES_HWAUTH;
-			set = value;
-			break;
+			return MASK_REQUIRES_HWAUTH;
 		case KerberosPrincipal.ATTR_REQUIRES_PWCHANGE:
-			mask = MASK_REQUIRES_PWCHANGE;
-			set = value;
-			break;
+			return MASK_REQUIRES_PWCHANGE;
 		default:
 			throw new KerberosException("Unknown kerberos principal flag " + flag);
 		}
+	}
 
-		if (set)
-				attributes = attributes | mask;
-		else
-				attributes = attributes & ~mask;
+	/**
+	 * Check, if the flag is true when its bit is not set ("allow" flags).
+	 *
+	 * @param flag principal flag name
+	 * @return true for inverted flag
+	 */
+	public static boolean isInvertedFlag(String flag) {
+		return KerberosPrincipal.ATTR_ALLOW_TIX.equals(flag)
+				|| KerberosPrincipal.ATTR_ALLOW_FORWARDABLE.equals(flag)
+				|| KerberosPrincipal.ATTR_ALLOW_RENEWABLE.equals(flag);
 	}
 
 	/**
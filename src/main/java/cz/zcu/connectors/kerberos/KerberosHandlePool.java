@@ -0,0 +1,204 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of idle native kadmin handles.
+ *
+ * Each connector instance logs in with its own handle (the JNI context with
+ * the search handles). The handles of the disposed instances are kept here and
+ * reused by the new instances with the same key (realm, principal,
+ * credentials, and number of connections), so they don't need to log in again.
+ *
+ * The pool is shared by all connector instances, the limits are kept for
+ * each key. It only keeps the handles, the native calls are done by the
+ * connector: the pool returns the handles to close.
+ */
+public class KerberosHandlePool {
+	/**
+	 * Idle native handle.
+	 */
+	public static class Handle {
+		private final long context;
+		private final long loginTime;
+		private final long lifeTime;
+		private long idleSince = 0;
+
+		Handle(long context, long loginTime, long lifeTime) {
+			this.context = context;
+			this.loginTime = loginTime;
+			this.lifeTime = lifeTime;
+		}
+
+		public long getContext() {
+			return context;
+		}
+
+		/**
+		 * Time of the login (for the credentials lifetime).
+		 */
+		public long getLoginTime() {
+			return loginTime;
+		}
+	}
+
+	/**
+	 * Limits of the handles of one key.
+	 */
+	private static class Limits {
+		final int maxIdle;
+		final int keepIdle;
+		final long idleTimeout;
+
+		Limits(int maxIdle, int keepIdle, long idleTimeout) {
+			this.maxIdle = maxIdle;
+			this.keepIdle = keepIdle;
+			this.idleTimeout = idleTimeout;
+		}
+	}
+
+	/**
+	 * Idle handles of each key, the most recently returned first.
+	 */
+	private final Map<String, Deque<Handle>> idle = new HashMap<String, Deque<Handle>>();
+
+	/**
+	 * Limits of each key with the enabled pool.
+	 */
+	private final Map<String, Limits> limits = new HashMap<String, Limits>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long closed = 0;
+
+	/**
+	 * Change the pool limits of the key.
+	 *
+	 * @param key handle key
+	 * @param maxIdle maximal number of idle handles of the key (0 disables the pool)
+	 * @param keepIdle number of idle handles kept regardless of the idle timeout (a floor of the eviction, not opened in advance)
+	 * @param idleTimeout idle time (ms) after the handle above the kept ones is closed
+	 * @param close the handles to close (above the new limits)
+	 */
+	public synchronized void setLimits(String key, int maxIdle, int keepIdle, long idleTimeout, List<Handle> close) {
+		if (maxIdle > 0) limits.put(key, new Limits(maxIdle, keepIdle, idleTimeout));
+		else limits.remove(key);
+		evict(System.currentTimeMillis(), close);
+	}
+
+	/**
+	 * Check if the pool is enabled for the key.
+	 *
+	 * @param key handle key
+	 * @return true, if the handles of the key are kept for reuse
+	 */
+	public synchronized boolean isEnabled(String key) {
+		return limits.containsKey(key);
+	}
+
+	/**
+	 * Borrow the idle handle.
+	 *
+	 * Handles with the expired credentials and the handles above the kept ones
+	 * idle for too long (of all keys, each with its limits) are removed from the pool and added to
+	 * the list to close.
+	 *
+	 * @param key handle key
+	 * @param close the handles to close
+	 * @return idle handle, null if there is no handle (the new one is needed)
+	 */
+	public synchronized Handle borrow(String key, List<Handle> close) {
+		Deque<Handle> handles;
+		Handle handle = null;
+
+		evict(System.currentTimeMillis(), close);
+		handles = idle.get(key);
+		if (handles != null) {
+			handle = handles.pollFirst();
+			if (handles.isEmpty()) idle.remove(key);
+		}
+		if (handle == null) misses++;
+		else hits++;
+
+		return handle;
+	}
+
+	/**
+	 * Return the handle to the pool.
+	 *
+	 * @param key handle key
+	 * @param context native context
+	 * @param loginTime time of the login
+	 * @param lifeTime credentials lifetime (ms), -1 for never
+	 * @param close the handles to close (including this one, if not kept)
+	 */
+	public synchronized void giveBack(String key, long context, long loginTime, long lifeTime, List<Handle> close) {
+		long now = System.currentTimeMillis();
+		Handle handle = new Handle(context, loginTime, lifeTime);
+		Deque<Handle> handles = idle.get(key);
+
+		if (handles == null) {
+			handles = new ArrayDeque<Handle>();
+			idle.put(key, handles);
+		}
+		handle.idleSince = now;
+		handles.addFirst(handle);
+		evict(now, close);
+	}
+
+	/**
+	 * Get number of the idle handles.
+	 *
+	 * @return number of the idle handles of all keys
+	 */
+	public synchronized int size() {
+		int n = 0;
+
+		for (Deque<Handle> handles : idle.values()) n += handles.size();
+		return n;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getClosed() {
+		return closed;
+	}
+
+	private void evict(long now, List<Handle> close) {
+		Iterator<Map.Entry<String, Deque<Handle>>> keys = idle.entrySet().iterator();
+
+		while (keys.hasNext()) {
+			Map.Entry<String, Deque<Handle>> entry = keys.next();
+			Deque<Handle> handles = entry.getValue();
+			Limits limit = limits.get(entry.getKey());
+			Iterator<Handle> it = handles.iterator();
+			int n = 0;
+
+			// the least recently returned handles are at the end
+			while (it.hasNext()) {
+				Handle handle = it.next();
+				if (limit == null || n >= limit.maxIdle
+				 || (handle.lifeTime >= 0 && now - handle.loginTime >= handle.lifeTime)
+				 || (n >= limit.keepIdle && now - handle.idleSince >= limit.idleTimeout)) {
+					it.remove();
+					close.add(handle);
+					closed++;
+				} else {
+					n++;
+				}
+			}
+			if (handles.isEmpty()) keys.remove();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package cz.zcu.connectors.kerberos;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Metrics of one connector configuration (realm and principal).
+ *
+ * Kadmin call statistics are collected by the JNI library for each native
+ * context, and they are added here after each connector operation (see
+ * {@link #add(String, long, long[])}). The instance is registered in the
+ * platform MBean server on first use.
+ */
+// keep in sync with kerberos.h
+public class KerberosMetrics implements KerberosMetricsMXBean {
+	private static final Log logger = Log.getLog(KerberosMetrics.class);
+
+	static final String[] CALLS = { "create", "delete", "modify", "chpasswd", "rename", "get", "list", "renew" };
+	static final int BUCKETS = 24;
+	static final int ERROR_CODES = 16;
+	static final int STATS_CALL = 3 + BUCKETS;
+	static final int STATS_SIZE = CALLS.length * STATS_CALL + 2 * ERROR_CODES;
+
+	private static final Map<String, KerberosMetrics> instances = new HashMap<String, KerberosMetrics>();
+
+	/**
+	 * Counters of one kadmin call or connector operation.
+	 */
+	private static class Counter {
+		long count = 0;
+		long errors = 0;
+		long time = 0;
+		long overhead = 0;
+		final long[] histogram = new long[BUCKETS];
+	}
+
+	private final Map<String, Counter> calls = new TreeMap<String, Counter>();
+	private final Map<String, Counter> operations = new TreeMap<String, Counter>();
+	private final Map<Long, Long> errorCodes = new TreeMap<Long, Long>();
+
+	/**
+	 * Get the metrics of the configuration.
+	 *
+	 * @param owner the connector configuration identity
+	 * @return metrics registered over JMX
+	 */
+	public static synchronized KerberosMetrics get(String owner) {
+		KerberosMetrics metrics = instances.get(owner);
+
+		if (metrics == null) {
+			metrics = new KerberosMetrics();
+			instances.put(owner, metrics);
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = getObjectName(owner);
+				if (!server.isRegistered(name)) server.registerMBean(metrics, name);
+			} catch (JMException e) {
+				logger.warn("Cannot register metrics of {0}: {1}", owner, e.getMessage());
+			}
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * Get the JMX name of the metrics.
+	 *
+	 * @param owner the connector configuration identity
+	 * @return object name
+	 */
+	public static ObjectName getObjectName(String owner) throws JMException {
+		return new ObjectName("cz.zcu.connectors.kerberos:type=KerberosMetrics,name=" + ObjectName.quote(owner));
+	}
+
+	/**
+	 * Add the connector operation.
+	 *
+	 * @param operation name of the operation
+	 * @param time time of the operation (ns)
+	 * @param stats kadmin call statistics of the operation from the JNI
+	 *        library, null if there were no calls
+	 */
+	public synchronized void add(String operation, long time, long[] stats) {
+		long rpcTime = 0;
+
+		if (stats != null) {
+			for (int i = 0; i < CALLS.length; i++) {
+				int base = i * STATS_CALL;
+				if (stats[base] == 0) continue;
+
+				Counter counter = counter(calls, CALLS[i]);
+				counter.count += stats[base];
+				counter.errors += stats[base + 1];
+				counter.time += stats[base + 2];
+				for (int j = 0; j < BUCKETS; j++) counter.histogram[j] += stats[base + 3 + j];
+				rpcTime += stats[base + 2];
+			}
+			for (int i = CALLS.length * STATS_CALL; i < STATS_SIZE && stats[i + 1] != 0; i += 2) {
+				Long count = errorCodes.get(stats[i]);
+				errorCodes.put(stats[i], (count != null ? count : 0) + stats[i + 1]);
+			}
+		}
+
+		// parallel calls on the worker handles can take longer than the operation
+		long overhead = Math.max(0, time - rpcTime);
+		Counter counter = counter(operations, operation);
+		counter.count++;
+		counter.time += time;
+		counter.overhead += overhead;
+		counter.histogram[bucket(overhead)]++;
+	}
+
+	private static Counter counter(Map<String, Counter> counters, String name) {
+		Counter counter = counters.get(name);
+
+		if (counter == null) {
+			counter = new Counter();
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	private static int bucket(long time) {
+		long us = time / 1000;
+		int bucket = 0;
+
+		while (bucket < BUCKETS - 1 && us >= (1L << bucket)) bucket++;
+		return bucket;
+	}
+
+	public synchronized Map<String, Long> getCalls() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : calls.entrySet()) result.put(e.getKey(), e.getValue().count);
+		return result;
+	}
+
+	public synchronized Map<String, Long> getErrors() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : calls.entrySet()) result.put(e.getKey(), e.getValue().errors);
+		return result;
+	}
+
+	public synchronized Map<Long, Long> getErrorCodes() {
+		return new TreeMap<Long, Long>(errorCodes);
+	}
+
+	public synchronized Map<String, Long> getRpcTime() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : calls.entrySet()) result.put(e.getKey(), e.getValue().time);
+		return result;
+	}
+
+	public synchronized Map<String, long[]> getRpcHistogram() {
+		Map<String, long[]> result = new TreeMap<String, long[]>();
+		for (Map.Entry<String, Counter> e : calls.entrySet()) result.put(e.getKey(), e.getValue().histogram.clone());
+		return result;
+	}
+
+	public synchronized Map<String, Long> getOperations() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : operations.entrySet()) result.put(e.getKey(), e.getValue().count);
+		return result;
+	}
+
+	public synchronized Map<String, Long> getOperationTime() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : operations.entrySet()) result.put(e.getKey(), e.getValue().time);
+		return result;
+	}
+
+	public synchronized Map<String, Long> getOverheadTime() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> e : operations.entrySet()) result.put(e.getKey(), e.getValue().overhead);
+		return result;
+	}
+
+	public synchronized Map<String, long[]> getOverheadHistogram() {
+		Map<String, long[]> result = new TreeMap<String, long[]>();
+		for (Map.Entry<String, Counter> e : operations.entrySet()) result.put(e.getKey(), e.getValue().histogram.clone());
+		return result;
+	}
+
+	public long[] getHistogramBounds() {
+		long[] bounds = new long[BUCKETS - 1];
+		for (int i = 0; i < bounds.length; i++) bounds[i] = 1L << i;
+		return bounds;
+	}
+
+	public synchronized void reset() {
+		calls.clear();
+		operations.clear();
+		errorCodes.clear();
+	}
+}
@@ -0,0 +1,69 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.Map;
+
+/**
+ * Metrics of the connector configuration, published over JMX.
+ *
+ * Kadmin calls are create, delete, modify, chpasswd, rename, get, list, and
+ * renew (login). Connector operations are the SPI operations (search, create,
+ * update, ...). Histograms count the times under the bounds of
+ * {@link #getHistogramBounds()}, the last bucket is the rest.
+ */
+public interface KerberosMetricsMXBean {
+	/**
+	 * Number of the kadmin calls.
+	 */
+	Map<String, Long> getCalls();
+
+	/**
+	 * Number of the failed kadmin calls.
+	 */
+	Map<String, Long> getErrors();
+
+	/**
+	 * Number of the failures by the kadm5 error code.
+	 */
+	Map<Long, Long> getErrorCodes();
+
+	/**
+	 * Total time (ns) of the kadmin calls (RPC).
+	 */
+	Map<String, Long> getRpcTime();
+
+	/**
+	 * Histogram of the kadmin call times.
+	 */
+	Map<String, long[]> getRpcHistogram();
+
+	/**
+	 * Number of the connector operations.
+	 */
+	Map<String, Long> getOperations();
+
+	/**
+	 * Total time (ns) of the connector operations.
+	 */
+	Map<String, Long> getOperationTime();
+
+	/**
+	 * Total time (ns) of the connector operations outside the kadmin calls
+	 * (JNI, conversions, and the results handlers).
+	 */
+	Map<String, Long> getOverheadTime();
+
+	/**
+	 * Histogram of the connector operation times outside the kadmin calls.
+	 */
+	Map<String, long[]> getOverheadHistogram();
+
+	/**
+	 * Upper bounds (microseconds) of the histogram buckets.
+	 */
+	long[] getHistogramBounds();
+
+	/**
+	 * Reset all counters.
+	 */
+	void reset();
+}
@@ -0,0 +1,45 @@
+package cz.zcu.connectors.kerberos;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event of the native call of the JNI library.
+ *
+ * The fields are set only when the event is enabled in a running recording
+ * (see {@link #isEnabled()}), there is no native call overhead otherwise.
+ */
+@Name("cz.zcu.connectors.kerberos.NativeCall")
+@Label("Kerberos Native Call")
+@Category({ "Kerberos Connector" })
+@Description("Native kadmin call of the Kerberos connector")
+class KerberosNativeEvent extends Event {
+	@Label("Call")
+	@Description("Native method (without the krb5_ prefix)")
+	String call;
+
+	@Label("Operation")
+	@Description("Connector operation of the call")
+	String operation;
+
+	@Label("Principal")
+	@Description("Principal name or query (only with recordPrincipals option)")
+	String principal;
+
+	@Label("Result Code")
+	@Description("Result of the last kadm5 call, 0 on success or when unknown")
+	long code;
+
+	@Label("Page Size")
+	int pageSize;
+
+	@Label("Page Offset")
+	int pageOffset;
+
+	@Label("Principals")
+	@Description("Number of the returned principals")
+	int count;
+}
@@ -0,0 +1,240 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.Set;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributesAccessor;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Principal operation (create, delete, or update) prepared for the JNI
+ * library.
+ *
+ * The connector attributes are converted to the native fields when the
+ * operation is created. Batch operations are read by the JNI library directly
+ * from the fields, and the failure is stored back as the exception.
+ */
+// keep in sync with java_access.h and kerberos.h
+public class KerberosOperation {
+	public static final int CREATE = 1;
+	public static final int DELETE = 2;
+	public static final int UPDATE = 3;
+
+	/*
+	 * steps of the update
+	 */
+	public static final int STEP_MODIFY = 1;
+	public static final int STEP_CHPASS = 2;
+	public static final int STEP_RENAME = 3;
+
+	/**
+	 * Callback for the results of the batch operations.
+	 */
+	public interface Handler {
+		/**
+		 * Handle the finished operation.
+		 *
+		 * @param operation operation with the error set on failure
+		 * @return true to continue with the next operations
+		 */
+		boolean handle(KerberosOperation operation);
+	}
+
+	final int type;
+	final String name;
+	long princExpiry = 0;
+	long pwdExpiry = 0;
+	int attributes = 0;
+	String policy = null;
+	long maxTicketLife = 0;
+	long maxRenewableLife = 0;
+	int mask = 0;
+	int attributesSet = 0;
+	int attributesClear = 0;
+	String password = null;
+	String newName = null;
+
+	/**
+	 * Step to start the update from (0 for all steps). After the failure, it
+	 * is the failed step set by the JNI library, the previous steps are not
+	 * repeated when the operation is run again.
+	 */
+	int step = 0;
+
+	/**
+	 * Failure of the batch operation (set by the JNI library).
+	 */
+	RuntimeException error = null;
+
+	private KerberosOperation(int type, String name) {
+		this.type = type;
+		this.name = name;
+	}
+
+	/**
+	 * Create the principal.
+	 *
+	 * @param createAttributes principal attributes (name is required)
+	 * @return prepared operation
+	 */
+	public static KerberosOperation create(Set<Attribute> createAttributes) {
+		Name name = new AttributesAccessor(createAttributes).getName();
+
+		if (name == null)
+			throw new InvalidAttributeValueException("Name attribute is required");
+
+		KerberosOperation op = new KerberosOperation(CREATE, name.getNameValue());
+		KerberosFlags.Change change = op.setAttributes(createAttributes);
+		// in case of creating a principal, it's necessary to set its name
+		op.mask |= KerberosPrincipal.MASK_PRINCIPAL;
+		if (!change.isEmpty()) {
+			op.attributes = change.apply(op.attributes);
+			op.mask |= KerberosPrincipal.MASK_ATTRIBUTES;
+		}
+		return op;
+	}
+
+	/**
+	 * Delete the principal.
+	 *
+	 * @param uid principal name
+	 * @return prepared operation
+	 */
+	public static KerberosOperation delete(Uid uid) {
+		return new KerberosOperation(DELETE, uid.getUidValue());
+	}
+
+	/**
+	 * Update the principal.
+	 *
+	 * Changed flags are passed as the bits to set and to clear, the name
+	 * attribute renames the principal.
+	 *
+	 * @param uid principal name
+	 * @param replaceAttributes changed attributes
+	 * @return prepared operation
+	 */
+	public static KerberosOperation update(Uid uid, Set<Attribute> replaceAttributes) {
+		KerberosOperation op = new KerberosOperation(UPDATE, uid.getUidValue());
+		KerberosFlags.Change change = op.setAttributes(replaceAttributes);
+		Name name = new AttributesAccessor(replaceAttributes).getName();
+
+		op.attributesSet = change.getSetMask();
+		op.attributesClear = change.getClearMask();
+		if (name != null) op.newName = name.getNameValue();
+		return op;
+	}
+
+	/**
+	 * Convert the principal fields, password and flags.
+	 *
+	 * @return changed flags
+	 */
+	private KerberosFlags.Change setAttributes(Set<Attribute> attrs) {
+		AttributesAccessor attributesAccessor = new AttributesAccessor(attrs);
+		KerberosPrincipal record = new KerberosPrincipal(attrs);
+		KerberosFlags.Change change = new KerberosFlags.Change();
+
+		princExpiry = record.getPrincExpiry();
+		pwdExpiry = record.getPwdExpiry();
+		attributes = record.getAttributesMask();
+		policy = record.getPolicy();
+		maxTicketLife = record.getMaxTicketLife();
+		maxRenewableLife = record.getMaxRenewableLife();
+		mask = record.getUpdateMask();
+
+		// principal flags to change
+		for (String flag : KerberosFlags.selectFlagAttributes(attributesAccessor.listAttributeNames())) {
+			change.setFlag(flag, attributesAccessor.findBoolean(flag));
+		}
+		// enable/disable principal using "allowTix" flag
+		if (attributesAccessor.hasAttribute(OperationalAttributes.ENABLE_NAME)) {
+			change.setFlag(KerberosPrincipal.ATTR_ALLOW_TIX, attributesAccessor.findBoolean(OperationalAttributes.ENABLE_NAME));
+		}
+		password = GuardedStringAccessor.getString(attributesAccessor.getPassword());
+
+		return change;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Get the principal name.
+	 *
+	 * @return name of the principal before the operation
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the new name of the renamed principal.
+	 *
+	 * @return new name, null if the principal is not renamed
+	 */
+	public String getNewName() {
+		return newName;
+	}
+
+	/**
+	 * Get the Uid of the principal after the operation.
+	 *
+	 * @return principal Uid
+	 */
+	public Uid getUid() {
+		return new Uid(newName != null ? newName : name);
+	}
+
+	/**
+	 * Get the mask of the principal fields set by the operation.
+	 *
+	 * @return principal fields mask
+	 */
+	public int getMask() {
+		return mask;
+	}
+
+	public int getAttributesSet() {
+		return attributesSet;
+	}
+
+	public int getAttributesClear() {
+		return attributesClear;
+	}
+
+	/**
+	 * Check, if the operation sets the password.
+	 *
+	 * @return true for the password change
+	 */
+	public boolean hasPassword() {
+		return password != null;
+	}
+
+	/**
+	 * Get the failure of the batch operation.
+	 *
+	 * @return exception, null if the operation succeeded
+	 */
+	public RuntimeException getError() {
+		return error;
+	}
+
+	/**
+	 * Clear the password (after the native call).
+	 */
+	void clearPassword() {
+		password = null;
+	}
+
+	@Override
+	public String toString() {
+		String[] types = { null, "create", "delete", "update" };
+		return types[type] + " " + name + (newName != null ? " -> " + newName : "");
+	}
+}
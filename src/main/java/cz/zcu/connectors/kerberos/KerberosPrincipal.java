@@ -1,5 +1,8 @@
 package cz.zcu.connectors.kerberos;
 
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Set;
 import org.identityconnectors.framework.common.objects.*;
 
@@ -13,10 +16,29 @@ public class KerberosPrincipal {
 	public static final int MASK_LAST_PWD_CHANGE   = 0x0008;
 	public static final int MASK_ATTRIBUTES        = 0x0010;
 	public static final int MASK_MAX_LIFE          = 0x0020;
+	public static final int MASK_MOD_TIME          = 0x0040;
+	public static final int MASK_MOD_NAME          = 0x0080;
 	public static final int MASK_POLICY            = 0x0800;
 	public static final int MASK_MAX_RLIFE         = 0x2000;
 	public static final int MASK_LAST_SUCCESS      = 0x4000;
 	public static final int MASK_LAST_FAILED       = 0x8000;
+	// all principal fields (search)
+	public static final int MASK_ALL = MASK_PRINCIPAL | MASK_PRINC_EXPIRE_TIME | MASK_PW_EXPIRATION | MASK_LAST_PWD_CHANGE
+			| MASK_ATTRIBUTES | MASK_MAX_LIFE | MASK_MOD_TIME | MASK_MOD_NAME | MASK_POLICY | MASK_MAX_RLIFE
+			| MASK_LAST_SUCCESS | MASK_LAST_FAILED;
+
+	// returned attributes computed from the principal attributes (see getReturnMask())
+	public static final int RETURN_ENABLE             = 0x010000;
+	public static final int RETURN_ALLOW_TIX          = 0x020000;
+	public static final int RETURN_ALLOW_FORWARDABLE  = 0x040000;
+	public static final int RETURN_ALLOW_RENEWABLE    = 0x080000;
+	public static final int RETURN_REQUIRES_PREAUTH   = 0x100000;
+	public static final int RETURN_REQUIRES_HWAUTH    = 0x200000;
+	public static final int RETURN_REQUIRES_PWCHANGE  = 0x400000;
+	public static final int RETURN_FLAGS = RETURN_ENABLE | RETURN_ALLOW_TIX | RETURN_ALLOW_FORWARDABLE | RETURN_ALLOW_RENEWABLE
+			| RETURN_REQUIRES_PREAUTH | RETURN_REQUIRES_HWAUTH | RETURN_REQUIRES_PWCHANGE;
+	// all attributes
+	public static final int RETURN_ALL = MASK_ALL | RETURN_FLAGS;
 
 	// principal attributes
 	public static final String ATTR_PASSWORD_CHANGE_DATE = "passwordChangeDate";
@@ -42,7 +64,7 @@ public class KerberosPrincipal {
 	private long pwdChange;
 	private String modifyPrincipal;
 	private long modifyDate;
-	private KerberosFlags attributes;
+	private int attributes;
 	private String policy;
 	private long maxTicketLife;
 	private long maxRenewableLife;
@@ -78,7 +100,7 @@ public class KerberosPrincipal {
 		this.pwdChange = pwdChange;
 		this.modifyPrincipal = modifyPrincipal;
 		this.modifyDate = modifyDate;
-		this.attributes = new KerberosFlags(attributes);
+		this.attributes = attributes;
 		this.policy = policy;
 		this.maxTicketLife = maxTicketLife;
 		this.maxRenewableLife = maxRenewableLife;
@@ -88,6 +110,15 @@ public class KerberosPrincipal {
 		this.updateMask = 0;
 	}
 
+	/**
+	 * Kerberos principal object constructor (only the name is known)
+	 *
+	 * @param name name
+	 */
+	public KerberosPrincipal(String name) {
+		this.name = name;
+	}
+
 	/**
 	 * Kerberos principal object constructor
 	 *
@@ -116,9 +147,9 @@ public class KerberosPrincipal {
 		}
 
 		attr = AttributeUtil.find(ATTR_ATTRIBUTES, attrs);
-		attributes = new KerberosFlags(0);
+		attributes = 0;
 		if (attr != null) {
-			attributes.setAttributes(AttributeUtil.getIntegerValue(attr));
+			attributes = AttributeUtil.getIntegerValue(attr);
 			updateMask |= KerberosPrincipal.MASK_ATTRIBUTES;
 		}
 
@@ -168,7 +199,21 @@ public class KerberosPrincipal {
 		return modifyDate;
 	}
 
+	/**
+	 * Get the principal flags.
+	 *
+	 * @return new flags object (changes are not reflected in the principal)
+	 */
 	public KerberosFlags getAttributes() {
+		return new KerberosFlags(attributes);
+	}
+
+	/**
+	 * Get the principal flags.
+	 *
+	 * @return principal attributes mask
+	 */
+	public int getAttributesMask() {
 		return attributes;
 	}
 
@@ -198,7 +243,7 @@ public class KerberosPrincipal {
 	 * @return true, if enabled
 	 */
 	public boolean enabled() {
-		return attributes.hasAllowTix();
+		return (attributes & KerberosFlags.MASK_DISALLOW_ALL_TIX) == 0;
 	}
 
 	/**
@@ -210,38 +255,194 @@ public class KerberosPrincipal {
 		return updateMask;
 	}
 
+	/**
+	 * Get the mask of the requested attributes.
+	 *
+	 * @param attributesToGet requested attributes (null for the default attributes)
+	 * @return mask of the returned principal fields and RETURN_* attributes
+	 */
+	public static int getReturnMask(String[] attributesToGet) {
+		int mask = MASK_PRINCIPAL;
+
+		if (attributesToGet == null) return RETURN_ALL;
+
+		for (String attr : attributesToGet) {
+			if (OperationalAttributes.ENABLE_NAME.equals(attr))
+				mask |= RETURN_ENABLE;
+			else if (ATTR_ATTRIBUTES.equals(attr))
+				mask |= MASK_ATTRIBUTES;
+			else if (ATTR_ALLOW_TIX.equals(attr))
+				mask |= RETURN_ALLOW_TIX;
+			else if (ATTR_ALLOW_FORWARDABLE.equals(attr))
+				mask |= RETURN_ALLOW_FORWARDABLE;
+			else if (ATTR_ALLOW_RENEWABLE.equals(attr))
+				mask |= RETURN_ALLOW_RENEWABLE;
+			else if (ATTR_REQUIRES_PREAUTH.equals(attr))
+				mask |= RETURN_REQUIRES_PREAUTH;
+			else if (ATTR_REQUIRES_HWAUTH.equals(attr))
+				mask |= RETURN_REQUIRES_HWAUTH;
+			else if (ATTR_REQUIRES_PWCHANGE.equals(attr))
+				mask |= RETURN_REQUIRES_PWCHANGE;
+			else if (OperationalAttributes.PASSWORD_EXPIRATION_DATE_NAME.equals(attr))
+				mask |= MASK_PW_EXPIRATION;
+			else if (OperationalAttributes.DISABLE_DATE_NAME.equals(attr))
+				mask |= MASK_PRINC_EXPIRE_TIME;
+			else if (ATTR_PASSWORD_CHANGE_DATE.equals(attr))
+				mask |= MASK_LAST_PWD_CHANGE;
+			else if (ATTR_MODIFY_PRINCIPAL.equals(attr))
+				mask |= MASK_MOD_NAME;
+			else if (ATTR_MODIFY_DATE.equals(attr))
+				mask |= MASK_MOD_TIME;
+			else if (ATTR_POLICY.equals(attr))
+				mask |= MASK_POLICY;
+			else if (ATTR_MAX_TICKET_LIFE.equals(attr))
+				mask |= MASK_MAX_LIFE;
+			else if (ATTR_MAX_RENEWABLE_LIFE.equals(attr))
+				mask |= MASK_MAX_RLIFE;
+			else if (ATTR_LAST_LOGIN_DATE.equals(attr))
+				mask |= MASK_LAST_SUCCESS;
+			else if (ATTR_LAST_FAILED_DATE.equals(attr))
+				mask |= MASK_LAST_FAILED;
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Get the mask of principal fields needed for the returned attributes.
+	 *
+	 * @param returnMask mask of the returned attributes (see {@link #getReturnMask(String[])})
+	 * @return mask for the native search, MASK_PRINCIPAL if only the name is needed
+	 */
+	public static int getFetchMask(int returnMask) {
+		int mask = (returnMask & MASK_ALL) | MASK_PRINCIPAL;
+
+		if ((returnMask & RETURN_FLAGS) != 0) mask |= MASK_ATTRIBUTES;
+		return mask;
+	}
+
+	/**
+	 * Get the mask of principal fields needed for the requested attributes.
+	 *
+	 * @param attributesToGet requested attributes (null for the default attributes)
+	 * @return mask for the native search, MASK_PRINCIPAL if only the name is needed
+	 */
+	public static int getFetchMask(String[] attributesToGet) {
+		return getFetchMask(getReturnMask(attributesToGet));
+	}
+
 	public ConnectorObject toConnectorObject() {
-		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
-
-		builder.setUid(name);
-		builder.setName(name);
-		builder.addAttribute(OperationalAttributes.ENABLE_NAME, enabled());
-		if (pwdExpiry != 0)
-			builder.addAttribute(OperationalAttributes.PASSWORD_EXPIRATION_DATE_NAME, 1000 * pwdExpiry);
-		if (princExpiry != 0)
-			builder.addAttribute(OperationalAttributes.DISABLE_DATE_NAME, 1000 * princExpiry);
-		if (pwdChange != 0)
-			builder.addAttribute(ATTR_PASSWORD_CHANGE_DATE, 1000 * pwdChange);
-		builder.addAttribute(ATTR_MODIFY_PRINCIPAL, modifyPrincipal);
-		if (modifyDate != 0)
-			builder.addAttribute(ATTR_MODIFY_DATE, 1000 * modifyDate);
-		builder.addAttribute(ATTR_ATTRIBUTES, attributes.getAttributes());
-		builder.addAttribute(ATTR_POLICY, policy);
-
-		builder.addAttribute(ATTR_MAX_TICKET_LIFE, 1000 * maxTicketLife);
-		builder.addAttribute(ATTR_MAX_RENEWABLE_LIFE, 1000 * maxRenewableLife);
-		if (lastLoginDate != 0)
-			builder.addAttribute(ATTR_LAST_LOGIN_DATE, 1000 * lastLoginDate);
-		if (lastFailedDate != 0)
-			builder.addAttribute(ATTR_LAST_FAILED_DATE, 1000 * lastFailedDate);
-
-		builder.addAttribute(ATTR_ALLOW_TIX, attributes.hasAllowTix());
-		builder.addAttribute(ATTR_ALLOW_FORWARDABLE, attributes.hasAllowForwardable());
-		builder.addAttribute(ATTR_ALLOW_RENEWABLE, attributes.hasAllowRenewable());
-		builder.addAttribute(ATTR_REQUIRES_PREAUTH, attributes.hasRequiresPreauth());
-		builder.addAttribute(ATTR_REQUIRES_HWAUTH, attributes.hasRequiresHwauth());
-		builder.addAttribute(ATTR_REQUIRES_PWCHANGE, attributes.hasRequiresPwchange());
-
-		return builder.build();
+		return toConnectorObject(RETURN_ALL);
+	}
+
+	/**
+	 * Convert to connector object.
+	 *
+	 * Attributes are collected directly for the connector object without the
+	 * builder, boolean attributes are shared.
+	 *
+	 * @param mask returned attributes (see {@link #getReturnMask(String[])}), the principal fields must be fetched
+	 * @return connector object
+	 */
+	public ConnectorObject toConnectorObject(int mask) {
+		AttributeArray attrs = new AttributeArray();
+
+		attrs.add(new Uid(name));
+		attrs.add(new Name(name));
+		if ((mask & RETURN_ENABLE) != 0)
+			attrs.add(flag(ENABLE, KerberosFlags.MASK_DISALLOW_ALL_TIX, true));
+		if ((mask & MASK_PW_EXPIRATION) != 0 && pwdExpiry != 0)
+			attrs.add(AttributeBuilder.build(OperationalAttributes.PASSWORD_EXPIRATION_DATE_NAME, 1000 * pwdExpiry));
+		if ((mask & MASK_PRINC_EXPIRE_TIME) != 0 && princExpiry != 0)
+			attrs.add(AttributeBuilder.build(OperationalAttributes.DISABLE_DATE_NAME, 1000 * princExpiry));
+		if ((mask & MASK_LAST_PWD_CHANGE) != 0 && pwdChange != 0)
+			attrs.add(AttributeBuilder.build(ATTR_PASSWORD_CHANGE_DATE, 1000 * pwdChange));
+		if ((mask & MASK_MOD_NAME) != 0)
+			attrs.add(modifyPrincipal != null ? AttributeBuilder.build(ATTR_MODIFY_PRINCIPAL, modifyPrincipal) : EMPTY_MODIFY_PRINCIPAL);
+		if ((mask & MASK_MOD_TIME) != 0 && modifyDate != 0)
+			attrs.add(AttributeBuilder.build(ATTR_MODIFY_DATE, 1000 * modifyDate));
+		if ((mask & MASK_ATTRIBUTES) != 0)
+			attrs.add(AttributeBuilder.build(ATTR_ATTRIBUTES, attributes));
+		if ((mask & MASK_POLICY) != 0)
+			attrs.add(policy != null ? AttributeBuilder.build(ATTR_POLICY, policy) : EMPTY_POLICY);
+
+		if ((mask & MASK_MAX_LIFE) != 0)
+			attrs.add(AttributeBuilder.build(ATTR_MAX_TICKET_LIFE, 1000 * maxTicketLife));
+		if ((mask & MASK_MAX_RLIFE) != 0)
+			attrs.add(AttributeBuilder.build(ATTR_MAX_RENEWABLE_LIFE, 1000 * maxRenewableLife));
+		if ((mask & MASK_LAST_SUCCESS) != 0 && lastLoginDate != 0)
+			attrs.add(AttributeBuilder.build(ATTR_LAST_LOGIN_DATE, 1000 * lastLoginDate));
+		if ((mask & MASK_LAST_FAILED) != 0 && lastFailedDate != 0)
+			attrs.add(AttributeBuilder.build(ATTR_LAST_FAILED_DATE, 1000 * lastFailedDate));
+
+		if ((mask & RETURN_ALLOW_TIX) != 0)
+			attrs.add(flag(ALLOW_TIX, KerberosFlags.MASK_DISALLOW_ALL_TIX, true));
+		if ((mask & RETURN_ALLOW_FORWARDABLE) != 0)
+			attrs.add(flag(ALLOW_FORWARDABLE, KerberosFlags.MASK_DISALLOW_FORWARDABLE, true));
+		if ((mask & RETURN_ALLOW_RENEWABLE) != 0)
+			attrs.add(flag(ALLOW_RENEWABLE, KerberosFlags.MASK_DISALLOW_RENEWABLE, true));
+		if ((mask & RETURN_REQUIRES_PREAUTH) != 0)
+			attrs.add(flag(REQUIRES_PREAUTH, KerberosFlags.MASK_REQUIRES_PREAUTH, false));
+		if ((mask & RETURN_REQUIRES_HWAUTH) != 0)
+			attrs.add(flag(REQUIRES_HWAUTH, KerberosFlags.MASK_REQUIRES_HWAUTH, false));
+		if ((mask & RETURN_REQUIRES_PWCHANGE) != 0)
+			attrs.add(flag(REQUIRES_PWCHANGE, KerberosFlags.MASK_REQUIRES_PWCHANGE, false));
+
+		return new ConnectorObject(OBJECT_CLASS, attrs);
+	}
+
+	/**
+	 * Get the shared boolean attribute of the flag.
+	 *
+	 * @param values attribute with false and true value
+	 * @param bit principal attributes bit
+	 * @param inverted true, if the flag is set when the bit is not set
+	 * @return flag attribute
+	 */
+	private Attribute flag(Attribute[] values, int bit, boolean inverted) {
+		boolean set = (attributes & bit) != 0;
+		return values[set != inverted ? 1 : 0];
+	}
+
+	private static Attribute[] booleanAttributes(String name) {
+		return new Attribute[]{AttributeBuilder.build(name, Boolean.FALSE), AttributeBuilder.build(name, Boolean.TRUE)};
+	}
+
+	// shared immutable attributes
+	private static final Attribute[] ENABLE = booleanAttributes(OperationalAttributes.ENABLE_NAME);
+	private static final Attribute[] ALLOW_TIX = booleanAttributes(ATTR_ALLOW_TIX);
+	private static final Attribute[] ALLOW_FORWARDABLE = booleanAttributes(ATTR_ALLOW_FORWARDABLE);
+	private static final Attribute[] ALLOW_RENEWABLE = booleanAttributes(ATTR_ALLOW_RENEWABLE);
+	private static final Attribute[] REQUIRES_PREAUTH = booleanAttributes(ATTR_REQUIRES_PREAUTH);
+	private static final Attribute[] REQUIRES_HWAUTH = booleanAttributes(ATTR_REQUIRES_HWAUTH);
+	private static final Attribute[] REQUIRES_PWCHANGE = booleanAttributes(ATTR_REQUIRES_PWCHANGE);
+	private static final Attribute EMPTY_MODIFY_PRINCIPAL = AttributeBuilder.build(ATTR_MODIFY_PRINCIPAL, (Object) null);
+	private static final Attribute EMPTY_POLICY = AttributeBuilder.build(ATTR_POLICY, (Object) null);
+
+	/**
+	 * Attributes of the connector object.
+	 *
+	 * Only iterated by the connector object constructor, the attribute names
+	 * are unique, so the array is enough instead of the hash set.
+	 */
+	private static class AttributeArray extends AbstractSet<Attribute> {
+		private final Attribute[] attrs = new Attribute[22];
+		private int size = 0;
+
+		@Override
+		public boolean add(Attribute attr) {
+			attrs[size++] = attr;
+			return true;
+		}
+
+		@Override
+		public Iterator<Attribute> iterator() {
+			return Arrays.asList(attrs).subList(0, size).iterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
 	}
 }
@@ -0,0 +1,223 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of principal records.
+ *
+ * Principals found by exact searches are kept for the configured time, so
+ * repeated lookups of the same principal don't need kadmin calls. Entries are
+ * invalidated on each change of the principal made by the connector.
+ *
+ * A lookup can fetch the principal before a concurrent change, and store it
+ * after the invalidation. Each lookup gets the invalidation generation at the
+ * start (see {@link #begin()}), and the principals invalidated since then are
+ * not stored.
+ *
+ * There is one cache for each owner (the connector configuration identity),
+ * shared by its connector instances.
+ */
+public class KerberosPrincipalCache {
+	private static final Map<String, KerberosPrincipalCache> instances = new HashMap<String, KerberosPrincipalCache>();
+
+	private static class Entry {
+		private final KerberosPrincipal principal;
+		private final long created;
+
+		Entry(KerberosPrincipal principal, long now) {
+			this.principal = principal;
+			this.created = now;
+		}
+	}
+
+	/**
+	 * Cached principals in access order (least recently used first).
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private int maxSize;
+	private long timeout;
+
+	/**
+	 * Invalidation generation of the principals invalidated during the
+	 * running lookups (cleared when no lookup is running).
+	 */
+	private final HashMap<String, Long> invalidated = new HashMap<String, Long>();
+	private long generation = 0;
+	private int lookups = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Create the cache.
+	 *
+	 * @param maxSize maximal number of cached principals (0 disables the cache)
+	 * @param timeout time (ms) after the principal is evicted
+	 */
+	public KerberosPrincipalCache(int maxSize, long timeout) {
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Get the cache of the configuration.
+	 *
+	 * The cache is created disabled, see {@link #setLimits(int, long)}.
+	 *
+	 * @param owner the connector configuration identity
+	 * @return cache of the owner
+	 */
+	public static synchronized KerberosPrincipalCache get(String owner) {
+		KerberosPrincipalCache cache = instances.get(owner);
+
+		if (cache == null) {
+			cache = new KerberosPrincipalCache(0, 0);
+			instances.put(owner, cache);
+		}
+
+		return cache;
+	}
+
+	/**
+	 * Change the cache limits.
+	 *
+	 * @param maxSize maximal number of cached principals (0 disables the cache)
+	 * @param timeout time (ms) after the principal is evicted
+	 */
+	public synchronized void setLimits(int maxSize, long timeout) {
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+		evict(System.currentTimeMillis());
+	}
+
+	/**
+	 * Check if the cache is enabled.
+	 *
+	 * @return true, if principals are cached
+	 */
+	public synchronized boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Get the cached principal.
+	 *
+	 * @param name principal name
+	 * @return principal, null if not found or expired
+	 */
+	public synchronized KerberosPrincipal getPrincipal(String name) {
+		Entry entry;
+
+		if (maxSize <= 0) return null;
+
+		entry = entries.get(name);
+		if (entry != null && System.currentTimeMillis() - entry.created >= timeout) {
+			entries.remove(name);
+			evictions++;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+
+		return entry.principal;
+	}
+
+	/**
+	 * Start the lookup, the fetched principals can be stored until
+	 * {@link #end()}.
+	 *
+	 * @return invalidation generation for {@link #put(KerberosPrincipal, long)}
+	 */
+	public synchronized long begin() {
+		lookups++;
+		return generation;
+	}
+
+	/**
+	 * Finish the lookup.
+	 */
+	public synchronized void end() {
+		if (--lookups == 0) invalidated.clear();
+	}
+
+	/**
+	 * Store the principal.
+	 *
+	 * The principal is not stored, if it has been invalidated since the start
+	 * of the lookup (it can be fetched before the change).
+	 *
+	 * @param principal fetched principal (with all fields)
+	 * @param generation invalidation generation from the start of the lookup
+	 */
+	public synchronized void put(KerberosPrincipal principal, long generation) {
+		long now = System.currentTimeMillis();
+		Long removed;
+
+		if (maxSize <= 0) return;
+		removed = invalidated.get(principal.getName());
+		if (removed != null && removed > generation) return;
+
+		entries.put(principal.getName(), new Entry(principal, now));
+		// only the least recently used entries are removed here, expired entries are removed on access
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() > maxSize && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Invalidate the principal.
+	 *
+	 * @param name principal name
+	 */
+	public synchronized void remove(String name) {
+		entries.remove(name);
+		generation++;
+		if (lookups > 0) invalidated.put(name, generation);
+	}
+
+	/**
+	 * Get number of the cached principals.
+	 *
+	 * @return number of the cached principals
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private void evict(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		int n = entries.size();
+
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (n > maxSize || now - entry.created >= timeout) {
+				it.remove();
+				evictions++;
+				n--;
+			}
+		}
+	}
+}
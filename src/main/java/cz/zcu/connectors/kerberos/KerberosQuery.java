@@ -0,0 +1,284 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Native search query.
+ *
+ * The query consists of the principal name (exact name or kadm5 wildcard
+ * expression used for listing) or the set of exact principal names (fetched
+ * directly without listing), and the filter evaluated by the JNI library
+ * on each fetched principal. Only the principals matching the filter are
+ * passed to Java.
+ *
+ * The filter is compiled to a program for a simple stack machine: each
+ * instruction has {@link #INSN_SIZE} items (operation, field, comparison,
+ * value). String values are passed in the separate array, the value of the
+ * string instruction is the index to this array.
+ */
+// keep in sync with kerberos.h
+public class KerberosQuery {
+	public static final int INSN_SIZE = 4;
+
+	// operations
+	public static final int OP_AND  = 1;
+	public static final int OP_OR   = 2;
+	public static final int OP_NOT  = 3;
+	public static final int OP_CMP  = 4;
+	public static final int OP_STR  = 5;
+	public static final int OP_BITS = 6;
+
+	// comparisons
+	public static final int CMP_EQ        = 1;
+	public static final int CMP_LT        = 2;
+	public static final int CMP_LE        = 3;
+	public static final int CMP_GT        = 4;
+	public static final int CMP_GE        = 5;
+	public static final int CMP_STARTS    = 6;
+	public static final int CMP_ENDS      = 7;
+	public static final int CMP_CONTAINS  = 8;
+	public static final int CMP_MATCH     = 9;
+	public static final int CMP_ALL_SET   = 10;
+	public static final int CMP_ALL_CLEAR = 11;
+
+	/**
+	 * Filter expression.
+	 */
+	public static abstract class Node {
+		abstract void compile(List<Long> program, List<String> strings);
+	}
+
+	/**
+	 * AND, OR expression.
+	 */
+	public static class Logical extends Node {
+		private final int op;
+		private final Node left, right;
+
+		public Logical(int op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		void compile(List<Long> program, List<String> strings) {
+			left.compile(program, strings);
+			right.compile(program, strings);
+			insn(program, op, 0, 0, 0);
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + (op == OP_AND ? " & " : " | ") + right + ")";
+		}
+	}
+
+	/**
+	 * NOT expression.
+	 */
+	public static class Not extends Node {
+		private final Node node;
+
+		public Not(Node node) {
+			this.node = node;
+		}
+
+		void compile(List<Long> program, List<String> strings) {
+			node.compile(program, strings);
+			insn(program, OP_NOT, 0, 0, 0);
+		}
+
+		@Override
+		public String toString() {
+			return "!" + node;
+		}
+	}
+
+	/**
+	 * Comparison of the principal field with the value.
+	 *
+	 * Date and time fields are compared in milliseconds (like the connector
+	 * attributes). Fields with zero date are missing, and they don't match any
+	 * comparison.
+	 */
+	public static class Compare extends Node {
+		private final int field;
+		private final int cmp;
+		private final long value;
+
+		public Compare(int field, int cmp, long value) {
+			this.field = field;
+			this.cmp = cmp;
+			this.value = value;
+		}
+
+		void compile(List<Long> program, List<String> strings) {
+			insn(program, cmp == CMP_ALL_SET || cmp == CMP_ALL_CLEAR ? OP_BITS : OP_CMP, field, cmp, value);
+		}
+
+		@Override
+		public String toString() {
+			return "0x" + Integer.toHexString(field) + " cmp" + cmp + " " + value;
+		}
+	}
+
+	/**
+	 * Comparison of the principal string field with the value.
+	 *
+	 * Missing strings don't match any comparison. The name field can be
+	 * matched by kadm5 wildcard expression ({@link #CMP_MATCH}).
+	 */
+	public static class StringCompare extends Node {
+		private final int field;
+		private final int cmp;
+		private final String value;
+
+		public StringCompare(int field, int cmp, String value) {
+			this.field = field;
+			this.cmp = cmp;
+			this.value = value;
+		}
+
+		void compile(List<Long> program, List<String> strings) {
+			strings.add(value);
+			insn(program, OP_STR, field, cmp, strings.size() - 1);
+		}
+
+		@Override
+		public String toString() {
+			return "0x" + Integer.toHexString(field) + " cmp" + cmp + " \"" + value + "\"";
+		}
+	}
+
+	private final String name;
+	private final String[] names;
+	private final Node filter;
+
+	private long[] program = null;
+	private String[] strings = null;
+
+	/**
+	 * Create the query.
+	 *
+	 * @param name principal name or kadm5 wildcard expression, null for all principals
+	 * @param filter filter evaluated natively, null for no filter
+	 */
+	public KerberosQuery(String name, Node filter) {
+		this.name = name;
+		this.names = null;
+		this.filter = filter;
+	}
+
+	/**
+	 * Create the query for the set of exact principal names.
+	 *
+	 * @param names principal names
+	 * @param filter filter evaluated natively, null for no filter
+	 */
+	public KerberosQuery(String[] names, Node filter) {
+		this.name = null;
+		this.names = names;
+		this.filter = filter;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the set of exact principal names.
+	 *
+	 * @return principal names, null if the query is not for the set of names
+	 */
+	public String[] getNames() {
+		return names;
+	}
+
+	/**
+	 * Get the exact principal names of the query.
+	 *
+	 * @return principal names, null for wildcard query or query for all principals
+	 */
+	public String[] getExactNames() {
+		if (names != null) return names;
+		if (isExact()) return new String[]{name};
+		return null;
+	}
+
+	public Node getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Check, if the query is for one exact principal name.
+	 *
+	 * @return true for exact name
+	 */
+	public boolean isExact() {
+		return name != null && name.indexOf('*') == -1;
+	}
+
+	/**
+	 * Get the compiled filter for the JNI library.
+	 *
+	 * @return program, null if there is no filter
+	 */
+	public long[] getProgram() {
+		compile();
+		return program;
+	}
+
+	/**
+	 * Get the string values of the compiled filter.
+	 *
+	 * @return string values, null if there is no filter
+	 */
+	public String[] getStrings() {
+		compile();
+		return strings;
+	}
+
+	private synchronized void compile() {
+		if (filter == null || program != null) return;
+
+		List<Long> p = new ArrayList<Long>();
+		List<String> s = new ArrayList<String>();
+		filter.compile(p, s);
+		program = new long[p.size()];
+		for (int i = 0; i < program.length; i++) program[i] = p.get(i);
+		strings = s.toArray(new String[s.size()]);
+	}
+
+	private static void insn(List<Long> program, int op, int field, int cmp, long value) {
+		program.add((long) op);
+		program.add((long) field);
+		program.add((long) cmp);
+		program.add(value);
+	}
+
+	/**
+	 * Combine the filters using AND (null filter means all principals).
+	 */
+	public static Node and(Node left, Node right) {
+		if (left == null) return right;
+		if (right == null) return left;
+		return new Logical(OP_AND, left, right);
+	}
+
+	/**
+	 * Combine the filters using OR (null filter means all principals).
+	 */
+	public static Node or(Node left, Node right) {
+		if (left == null || right == null) return null;
+		return new Logical(OP_OR, left, right);
+	}
+
+	@Override
+	public String toString() {
+		String s = names != null ? Arrays.toString(names) : name;
+		if (filter == null) return s;
+		return s + " " + filter;
+	}
+}
@@ -0,0 +1,180 @@
+package cz.zcu.connectors.kerberos;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cache of principal name lists for paged searches.
+ *
+ * The list of matching principals is kept between the pages, so only the
+ * principals of the requested page are fetched for the next pages. Lists
+ * are identified by the paged results cookie, or by the query for the offset
+ * based paging.
+ *
+ * There is one cache for each owner (the connector configuration identity),
+ * shared by its connector instances.
+ */
+public class KerberosSearchCache {
+	private static final Map<String, KerberosSearchCache> instances = new HashMap<String, KerberosSearchCache>();
+
+	private static class Entry {
+		private final String query;
+		private final String[] names;
+		private long lastAccess;
+
+		Entry(String query, String[] names, long now) {
+			this.query = query;
+			this.names = names;
+			this.lastAccess = now;
+		}
+
+		boolean matches(String query) {
+			return this.query == null ? query == null : this.query.equals(query);
+		}
+	}
+
+	/**
+	 * Cached lists in access order (least recently used first).
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private int maxSize;
+	private long timeout;
+
+	/**
+	 * Create the cache.
+	 *
+	 * @param maxSize maximal number of cached lists (0 disables the cache)
+	 * @param timeout idle time (ms) after the list is evicted
+	 */
+	public KerberosSearchCache(int maxSize, long timeout) {
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Get the cache of the configuration.
+	 *
+	 * The cache is created disabled, see {@link #setLimits(int, long)}.
+	 *
+	 * @param owner the connector configuration identity
+	 * @return cache of the owner
+	 */
+	public static synchronized KerberosSearchCache get(String owner) {
+		KerberosSearchCache cache = instances.get(owner);
+
+		if (cache == null) {
+			cache = new KerberosSearchCache(0, 0);
+			instances.put(owner, cache);
+		}
+
+		return cache;
+	}
+
+	/**
+	 * Change the cache limits.
+	 *
+	 * @param maxSize maximal number of cached lists (0 disables the cache)
+	 * @param timeout idle time (ms) after the list is evicted
+	 */
+	public synchronized void setLimits(int maxSize, long timeout) {
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+		evict(System.currentTimeMillis());
+	}
+
+	/**
+	 * Store the name list.
+	 *
+	 * Previous list of the same query is replaced.
+	 *
+	 * @param query search query
+	 * @param names principal names
+	 * @return identifier of the list, null if the cache is disabled
+	 */
+	public synchronized String put(String query, String[] names) {
+		long now = System.currentTimeMillis();
+
+		if (maxSize <= 0) return null;
+
+		removeQuery(query);
+		String id = UUID.randomUUID().toString();
+		entries.put(id, new Entry(query, names, now));
+		evict(now);
+
+		return id;
+	}
+
+	/**
+	 * Get the name list using the identifier.
+	 *
+	 * @param id identifier of the list
+	 * @return principal names, null if not found or expired
+	 */
+	public synchronized String[] getNames(String id) {
+		long now = System.currentTimeMillis();
+
+		evict(now);
+		Entry entry = entries.get(id);
+		if (entry == null) return null;
+		entry.lastAccess = now;
+
+		return entry.names;
+	}
+
+	/**
+	 * Find the identifier of the name list using the query.
+	 *
+	 * @param query search query
+	 * @return identifier of the list, null if not found or expired
+	 */
+	public synchronized String find(String query) {
+		evict(System.currentTimeMillis());
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getValue().matches(query)) return e.getKey();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove the name list.
+	 *
+	 * @param id identifier of the list
+	 */
+	public synchronized void remove(String id) {
+		entries.remove(id);
+	}
+
+	/**
+	 * Get number of the cached lists.
+	 *
+	 * @return number of the cached lists
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void removeQuery(String query) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().matches(query)) it.remove();
+		}
+	}
+
+	private void evict(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		int n = entries.size();
+
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (n > maxSize || now - entry.lastAccess >= timeout) {
+				it.remove();
+				n--;
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package cz.zcu.connectors.kerberos;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Receiver of the streamed search results.
+ *
+ * The same sink object is passed to the JNI library for the whole search,
+ * and it is called for each principal as soon as it is fetched.
+ *
+ * With the buffer, the JNI library packs the principals into it and passes
+ * them in bulk (see {@link #handleBuffer(int)}).
+ */
+// keep in sync with java_access.h
+public class KerberosSearchSink {
+	private ResultsHandler handler;
+	private int mask;
+	private int returnMask;
+	private int count;
+	private KerberosPrincipalCache cache;
+	private long generation;
+	/**
+	 * Direct buffer for the packed principals, null to pass the principals one by one.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Number of shared strings kept during the search.
+	 */
+	private static final int SHARED_STRINGS = 16;
+	/**
+	 * Maximal length (in bytes) of the shared string.
+	 */
+	private static final int SHARED_MAX_LENGTH = 256;
+	/**
+	 * Recently decoded values of the repeated fields (modify principal,
+	 * policy), reused for the next principals of the same search.
+	 */
+	private final String[] shared = new String[SHARED_STRINGS];
+	private final byte[][] sharedBytes = new byte[SHARED_STRINGS][];
+	private int sharedNext = 0;
+
+	/**
+	 * Create the sink.
+	 *
+	 * @param handler results handler
+	 * @param mask fetched principal fields
+	 * @param returnMask returned attributes (see {@link KerberosPrincipal#getReturnMask(String[])})
+	 */
+	KerberosSearchSink(ResultsHandler handler, int mask, int returnMask) {
+		this.handler = handler;
+		this.mask = mask;
+		this.returnMask = returnMask;
+		this.count = 0;
+	}
+
+	/**
+	 * Store the fetched principals to the cache.
+	 *
+	 * Only complete principals (all fields fetched) are stored.
+	 *
+	 * @param cache principal cache
+	 * @param generation invalidation generation from the start of the search
+	 *        (see {@link KerberosPrincipalCache#begin()})
+	 */
+	void setCache(KerberosPrincipalCache cache, long generation) {
+		this.cache = cache;
+		this.generation = generation;
+	}
+
+	/**
+	 * Pass the principals in bulk through the buffer.
+	 *
+	 * @param buffer direct buffer, null to pass the principals one by one
+	 */
+	void setBuffer(ByteBuffer buffer) {
+		if (buffer != null) buffer.order(ByteOrder.nativeOrder());
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Get the mask of fetched principal fields.
+	 *
+	 * @return mask of fetched principal fields
+	 */
+	int getMask() {
+		return mask;
+	}
+
+	/**
+	 * Check, if only principal names are needed.
+	 *
+	 * @return true, if principals don't need to be fetched
+	 */
+	boolean namesOnly() {
+		return mask == KerberosPrincipal.MASK_PRINCIPAL;
+	}
+
+	/**
+	 * Pass the fetched principal to the results handler.
+	 *
+	 * @param principal fetched principal
+	 * @return false to stop the search
+	 */
+	boolean handle(KerberosPrincipal principal) {
+		if (cache != null && mask == KerberosPrincipal.MASK_ALL) cache.put(principal, generation);
+		count++;
+		return handler.handle(principal.toConnectorObject(returnMask));
+	}
+
+	/**
+	 * Unpack the principals from the buffer and pass them to the results handler.
+	 *
+	 * Called by the JNI library, when the buffer is full or at the end.
+	 *
+	 * @param n number of principals in the buffer
+	 * @return false to stop the search
+	 */
+	boolean handleBuffer(int n) {
+		buffer.clear();
+		for (int i = 0; i < n; i++) {
+			KerberosPrincipal principal = new KerberosPrincipal(getString(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+					getSharedString(), buffer.getLong(), buffer.getInt(), getSharedString(),
+					buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+			if (!handle(principal)) return false;
+		}
+		return true;
+	}
+
+	private String getString() {
+		int len = buffer.getInt();
+		if (len < 0) return null;
+
+		byte[] bytes = new byte[len];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decode the string with only a few distinct values in the realm.
+	 *
+	 * Bytes in the buffer are compared with the recently decoded values
+	 * first, so the repeated values are neither allocated nor decoded again.
+	 */
+	private String getSharedString() {
+		int len = buffer.getInt();
+		int pos = buffer.position();
+		if (len < 0) return null;
+
+		for (int i = 0; i < SHARED_STRINGS && sharedBytes[i] != null; i++) {
+			if (sameBytes(sharedBytes[i], pos, len)) {
+				buffer.position(pos + len);
+				return shared[i];
+			}
+		}
+
+		byte[] bytes = new byte[len];
+		buffer.get(bytes);
+		String s = new String(bytes, StandardCharsets.UTF_8);
+		if (len <= SHARED_MAX_LENGTH) {
+			sharedBytes[sharedNext] = bytes;
+			shared[sharedNext] = s;
+			sharedNext = (sharedNext + 1) % SHARED_STRINGS;
+		}
+		return s;
+	}
+
+	private boolean sameBytes(byte[] bytes, int pos, int len) {
+		if (bytes.length != len) return false;
+		for (int i = 0; i < len; i++) {
+			if (buffer.get(pos + i) != bytes[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Pass the principal names to the results handler without fetching the principals.
+	 *
+	 * @param names principal names
+	 * @param offset first name
+	 * @param n number of names
+	 * @return position after the last name, -1 if the search has been stopped
+	 */
+	int handleNames(String[] names, int offset, int n) {
+		for (int i = offset; i < offset + n; i++) {
+			if (!handle(new KerberosPrincipal(names[i]))) return -1;
+		}
+		return offset + n;
+	}
+
+	/**
+	 * Get number of the principals passed to the results handler.
+	 *
+	 * @return number of handled principals
+	 */
+	int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,296 @@
+package cz.zcu.connectors.kerberos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Snapshot of the principals for the synchronization.
+ *
+ * Only the fields needed to detect the changes are kept for each principal.
+ * Snapshots are stored in the sync directory as numbered generations, the
+ * generation number is used as the sync token. The current and the previous
+ * generations are always kept, the older ones until they are unused for the
+ * retention time (loading the snapshot refreshes its modification time).
+ *
+ * New sync directory and the snapshots are accessible only by the owner.
+ */
+public class KerberosSyncSnapshot {
+	private static final int MAGIC = 0x4b524253;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".snapshot";
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+	/**
+	 * Compared fields of the principal.
+	 */
+	static class Record {
+		private final long modifyDate;
+		private final int attributes;
+		private final String policy;
+		private final long princExpiry;
+		private final long pwdExpiry;
+
+		Record(long modifyDate, int attributes, String policy, long princExpiry, long pwdExpiry) {
+			this.modifyDate = modifyDate;
+			this.attributes = attributes;
+			this.policy = policy;
+			this.princExpiry = princExpiry;
+			this.pwdExpiry = pwdExpiry;
+		}
+
+		Record(KerberosPrincipal principal) {
+			this(principal.getModifyDate(), principal.getAttributesMask(), principal.getPolicy(),
+					principal.getPrincExpiry(), principal.getPwdExpiry());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Record)) return false;
+			Record r = (Record) o;
+			return modifyDate == r.modifyDate && attributes == r.attributes && princExpiry == r.princExpiry
+					&& pwdExpiry == r.pwdExpiry && (policy == null ? r.policy == null : policy.equals(r.policy));
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (modifyDate ^ (modifyDate >>> 32)) ^ attributes;
+		}
+	}
+
+	private final long generation;
+	private final Map<String, Record> records;
+
+	/**
+	 * Create empty snapshot.
+	 *
+	 * @param generation generation of the snapshot
+	 */
+	public KerberosSyncSnapshot(long generation) {
+		this.generation = generation;
+		this.records = new HashMap<String, Record>();
+	}
+
+	/**
+	 * Create a copy of the snapshot as new generation.
+	 *
+	 * @param snapshot original snapshot
+	 * @param generation generation of the new snapshot
+	 */
+	public KerberosSyncSnapshot(KerberosSyncSnapshot snapshot, long generation) {
+		this.generation = generation;
+		this.records = new HashMap<String, Record>(snapshot.records);
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	public boolean contains(String name) {
+		return records.containsKey(name);
+	}
+
+	public Iterable<String> names() {
+		return records.keySet();
+	}
+
+	/**
+	 * Check, if the principal is new or changed against this snapshot.
+	 *
+	 * @param principal fetched principal
+	 * @return true, if the principal is not in the snapshot or it differs
+	 */
+	public boolean changed(KerberosPrincipal principal) {
+		Record record = records.get(principal.getName());
+		return record == null || !record.equals(new Record(principal));
+	}
+
+	public void put(KerberosPrincipal principal) {
+		records.put(principal.getName(), new Record(principal));
+	}
+
+	public void remove(String name) {
+		records.remove(name);
+	}
+
+	/**
+	 * Check, if the snapshots contain the same principals.
+	 *
+	 * @param snapshot other snapshot
+	 * @return true, if the records are the same
+	 */
+	public boolean sameRecords(KerberosSyncSnapshot snapshot) {
+		return records.equals(snapshot.records);
+	}
+
+	/**
+	 * Get the generation of the latest stored snapshot.
+	 *
+	 * @param dir sync directory
+	 * @param owner the connector configuration identity
+	 * @return the latest generation, 0 if there is no snapshot
+	 */
+	public static long latestGeneration(File dir, String owner) {
+		String prefix = prefix(owner);
+		long latest = 0;
+		String[] files = dir.list();
+
+		if (files == null) return 0;
+		for (String file : files) {
+			if (file.startsWith(prefix) && file.endsWith(SUFFIX)) {
+				try {
+					latest = Math.max(latest, Long.parseLong(file.substring(prefix.length(), file.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not a snapshot
+				}
+			}
+		}
+
+		return latest;
+	}
+
+	/**
+	 * Load the snapshot.
+	 *
+	 * @param dir sync directory
+	 * @param owner the connector configuration identity
+	 * @param generation generation of the snapshot
+	 * @return snapshot, null if not found
+	 */
+	public static KerberosSyncSnapshot load(File dir, String owner, long generation) {
+		File file = new File(dir, prefix(owner) + generation + SUFFIX);
+		DataInputStream in;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			throw new ConnectorIOException("Cannot read sync snapshot " + file, e);
+		}
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != generation)
+				throw new ConnectorIOException("Invalid sync snapshot " + file);
+
+			KerberosSyncSnapshot snapshot = new KerberosSyncSnapshot(generation);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				long modifyDate = in.readLong();
+				int attributes = in.readInt();
+				String policy = in.readBoolean() ? in.readUTF() : null;
+				long princExpiry = in.readLong();
+				long pwdExpiry = in.readLong();
+				snapshot.records.put(name, new Record(modifyDate, attributes, policy, princExpiry, pwdExpiry));
+			}
+
+			// still referenced by a token
+			file.setLastModified(System.currentTimeMillis());
+			return snapshot;
+		} catch (IOException e) {
+			throw new ConnectorIOException("Cannot read sync snapshot " + file, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Store the snapshot and remove the expired older generations.
+	 *
+	 * @param dir sync directory
+	 * @param owner the connector configuration identity
+	 * @param retention time (ms) after the unused older generation is removed
+	 */
+	public void save(File dir, String owner, long retention) {
+		String prefix = prefix(owner);
+		File file = new File(dir, prefix + generation + SUFFIX);
+		File tmp = new File(dir, prefix + generation + SUFFIX + ".tmp");
+
+		try {
+			if (!dir.isDirectory()) Files.createDirectories(dir.toPath(), ownerOnly("rwx------"));
+		} catch (IOException e) {
+			throw new ConnectorIOException("Cannot create sync directory " + dir, e);
+		}
+
+		try {
+			Files.deleteIfExists(tmp.toPath());
+			Files.createFile(tmp.toPath(), ownerOnly("rw-------"));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(generation);
+				out.writeInt(records.size());
+				for (Map.Entry<String, Record> e : records.entrySet()) {
+					Record r = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(r.modifyDate);
+					out.writeInt(r.attributes);
+					out.writeBoolean(r.policy != null);
+					if (r.policy != null) out.writeUTF(r.policy);
+					out.writeLong(r.princExpiry);
+					out.writeLong(r.pwdExpiry);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw new ConnectorIOException("Cannot write sync snapshot " + file, e);
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new ConnectorIOException("Cannot write sync snapshot " + file);
+		}
+
+		// other consumers may still use the older tokens
+		String[] files = dir.list();
+		long expired = System.currentTimeMillis() - retention;
+		if (files == null) return;
+		for (String name : files) {
+			if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+				try {
+					long g = Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+					File old = new File(dir, name);
+					if (g < generation - 1 && old.lastModified() < expired) old.delete();
+				} catch (NumberFormatException e) {
+					// not a snapshot
+				}
+			}
+		}
+	}
+
+	private static FileAttribute<?>[] ownerOnly(String permissions) {
+		if (!POSIX) return new FileAttribute<?>[0];
+		return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+	}
+
+	private static String prefix(String owner) {
+		return "krb5-" + owner.replaceAll("[^A-Za-z0-9.@-]", "_") + "-";
+	}
+}
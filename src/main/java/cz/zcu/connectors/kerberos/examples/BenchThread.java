@@ -0,0 +1,93 @@
+package cz.zcu.connectors.kerberos.examples;
+
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import cz.zcu.connectors.kerberos.KerberosConnector;
+import cz.zcu.connectors.kerberos.KerberosPrincipal;
+import cz.zcu.connectors.kerberos.KerberosQuery;
+
+import static cz.zcu.connectors.kerberos.examples.KerberosAdminApp.config;
+
+/**
+ * Native call overhead measurement.
+ *
+ * Each thread uses its own connector. Measured are exact lookups (the search
+ * path with one principal passed to Java) and deletes of unknown principal
+ * (the exception path).
+ */
+public class BenchThread implements Runnable {
+	private static final int WARMUP = 1000;
+
+	private final int calls;
+	private long lookupTime;
+	private long errorTime;
+
+	public BenchThread(int calls) {
+		this.calls = calls;
+	}
+
+	@Override
+	public void run() {
+		KerberosConnector connector = new KerberosConnector();
+		connector.init(config);
+
+		OperationOptions op = new OperationOptionsBuilder().setAttributesToGet(Name.NAME).build();
+		KerberosQuery query = new KerberosQuery(config.getPrincipal(), null);
+		ResultsHandler handler = new ResultsHandler() {
+			public boolean handle(ConnectorObject connectorObject) {
+				return true;
+			}
+		};
+
+		for (int i = 0; i < WARMUP; i++) {
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, query, handler, op);
+			delete(connector);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, query, handler, op);
+		}
+		lookupTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			delete(connector);
+		}
+		errorTime = System.nanoTime() - start;
+
+		connector.dispose();
+	}
+
+	private static void delete(KerberosConnector connector) {
+		try {
+			connector.delete(KerberosPrincipal.OBJECT_CLASS, new Uid("bench-non-existent"), null);
+		} catch (UnknownUidException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Average time of the lookup call.
+	 *
+	 * @return nanoseconds
+	 */
+	public long getLookupTime() {
+		return lookupTime / calls;
+	}
+
+	/**
+	 * Average time of the failing call.
+	 *
+	 * @return nanoseconds
+	 */
+	public long getErrorTime() {
+		return errorTime / calls;
+	}
+}
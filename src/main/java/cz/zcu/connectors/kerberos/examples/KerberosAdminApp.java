@@ -2,18 +2,34 @@ package cz.zcu.connectors.kerberos.examples;
 
 import org.apache.commons.cli.*;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.Uid;
 
 import cz.zcu.connectors.kerberos.KerberosConfiguration;
 import cz.zcu.connectors.kerberos.KerberosConnector;
+import cz.zcu.connectors.kerberos.KerberosOperation;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 
 
 public class KerberosAdminApp {
+	private static final int BENCH_CALLS = 100000;
+	private static final int BENCH_THREADS = 4;
+	private static final int BATCH_PARALLELISM = 4;
+
 	static KerberosConnector connector = new KerberosConnector();
 	static KerberosConfiguration config = new KerberosConfiguration();
 
@@ -21,11 +37,15 @@ public class KerberosAdminApp {
 		System.out.println("KerberosAdminApp [OPTIONS] COMMAND");
 		System.out.println("OPTIONS are:");
 		System.out.println("  -h, --help ...... " + options.getOption("h").getDescription());
+		System.out.println("  -j, --jobs ...... " + options.getOption("j").getDescription());
 		System.out.println("  -k, --keytab .... " + options.getOption("k").getDescription());
 		System.out.println("  -p, --password .. " + options.getOption("p").getDescription());
 		System.out.println("  -r, --realm ..... " + options.getOption("r").getDescription());
 		System.out.println("  -u, --user ...... " + options.getOption("u").getDescription());
 		System.out.println("COMMAND is:");
+		System.out.println("  batch .... principal operations from stdin, one per line:");
+		System.out.println("             create NAME [PASSWORD], delete NAME, enable NAME, disable NAME");
+		System.out.println("  bench .... native call overhead (single and concurrent connectors)");
 		System.out.println("  search ... paged search example");
 		System.out.println("  test ..... test connection");
 	}
@@ -35,8 +55,10 @@ public class KerberosAdminApp {
 		CommandLineParser parser = new DefaultParser();
 		Options options = new Options();
 		List<String> commands;
+		int parallelism = BATCH_PARALLELISM;
 
 		options.addOption("h", "help", false, "usage message");
+		options.addOption("j", "jobs", true, "parallel kadmin handles for batch (default " + BATCH_PARALLELISM + ")");
 		options.addOption("k", "keytab", true, "admin keytab");
 		options.addOption("r", "realm", true, "kerberos realm");
 		options.addOption("p", "password", true, "admin password");
@@ -49,6 +71,9 @@ public class KerberosAdminApp {
 				usage(options);
 				return;
 			}
+			if(line.hasOption("j")) {
+				parallelism = Integer.parseInt(line.getOptionValue("j"));
+			}
 			if(line.hasOption("k")) {
 				config.setKeytab(line.getOptionValue("k"));
 				System.out.println("Keytab: " + config.getKeytab());
@@ -67,6 +92,8 @@ public class KerberosAdminApp {
 			}
 
 			commands = line.getArgList();
+			// additional kadmin handles for the batch
+			if (commands.contains("batch")) config.setSearchHandles(parallelism - 1);
 		}
 		catch(ParseException exp) {
 			System.out.println("Invalid arguments: " + exp.getMessage());
@@ -80,6 +107,7 @@ public class KerberosAdminApp {
 		}
 
 		connector.init(config);
+		connector.warmUp();
 		System.out.println(Long.toHexString(connector.getContextPointer()));
 
 		for (String command : commands) {
@@ -113,6 +141,37 @@ public class KerberosAdminApp {
 					}
 				}
 
+				System.out.println();
+			} else if ("bench".equals(command)) {
+				System.out.println("Command: bench");
+				// no connector logging in the measured calls
+				java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+				for (int n : new int[]{1, BENCH_THREADS}) {
+					BenchThread[] benches = new BenchThread[n];
+					Thread[] thrs = new Thread[n];
+					for (int i = 0; i < n; i++) {
+						benches[i] = new BenchThread(BENCH_CALLS);
+						thrs[i] = new Thread(benches[i]);
+						thrs[i].start();
+					}
+
+					long lookup = 0, error = 0;
+					for (int i = 0; i < n; i++) {
+						try {
+							thrs[i].join();
+						} catch (InterruptedException e) {
+							System.out.println(e.getMessage());
+						}
+						lookup += benches[i].getLookupTime();
+						error += benches[i].getErrorTime();
+					}
+					System.out.println("Connectors: " + n + ", lookup: " + lookup / n + " ns, error: " + error / n + " ns");
+				}
+				System.out.println();
+			} else if ("batch".equals(command)) {
+				System.out.println("Command: batch");
+				java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+				batch(parallelism);
 				System.out.println();
 			} else if ("test".equals(command)) {
 				System.out.println("Command: test");
@@ -123,4 +182,74 @@ public class KerberosAdminApp {
 
 		connector.dispose();
 	}
+
+	/**
+	 * Run the principal operations read from stdin, print the result of each
+	 * operation and the throughput.
+	 */
+	private static void batch(int parallelism) {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		final int[] failed = new int[1];
+		Iterator<KerberosOperation> operations = new Iterator<KerberosOperation>() {
+			private KerberosOperation next = read();
+
+			private KerberosOperation read() {
+				String line;
+
+				try {
+					while ((line = in.readLine()) != null) {
+						String[] items = line.trim().split("\\s+");
+						Set<Attribute> attrs = new HashSet<Attribute>();
+
+						if (items.length < 2) continue;
+						if ("create".equals(items[0])) {
+							attrs.add(new Name(items[1]));
+							if (items.length > 2) attrs.add(AttributeBuilder.buildPassword(items[2].toCharArray()));
+							return KerberosOperation.create(attrs);
+						} else if ("delete".equals(items[0])) {
+							return KerberosOperation.delete(new Uid(items[1]));
+						} else if ("enable".equals(items[0]) || "disable".equals(items[0])) {
+							attrs.add(AttributeBuilder.buildEnabled("enable".equals(items[0])));
+							return KerberosOperation.update(new Uid(items[1]), attrs);
+						}
+						System.out.println("Unknown operation: " + line);
+					}
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public KerberosOperation next() {
+				KerberosOperation op = next;
+				next = read();
+				return op;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		long start = System.nanoTime();
+		int count = connector.batch(operations, parallelism, new KerberosOperation.Handler() {
+			public boolean handle(KerberosOperation operation) {
+				if (operation.getError() != null) {
+					failed[0]++;
+					System.out.println("FAIL " + operation + ": " + operation.getError().getMessage());
+				} else {
+					System.out.println("OK " + operation);
+				}
+				return true;
+			}
+		});
+		long time = System.nanoTime() - start;
+
+		System.out.println("Operations: " + count + ", failed: " + failed[0] + ", parallelism: " + parallelism
+				+ ", time: " + time / 1000000 + " ms, " + (time > 0 ? count * 1000000000L / time : 0) + " ops/s");
+	}
 }
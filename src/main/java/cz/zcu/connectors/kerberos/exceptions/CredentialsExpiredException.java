@@ -0,0 +1,20 @@
+package cz.zcu.connectors.kerberos.exceptions;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorSecurityException;
+
+/**
+ * Kadmin call failed on GSS-API error, usually the expired admin ticket.
+ *
+ * The connector logs in again and retries the operation once.
+ */
+public class CredentialsExpiredException extends ConnectorSecurityException {
+	private static final long serialVersionUID = 3478541905723311985L;
+
+	public CredentialsExpiredException(String message) {
+		super(message);
+	}
+
+	public CredentialsExpiredException(String message, Throwable throwable) {
+		super(message, throwable);
+	}
+}
@@ -1,16 +1,45 @@
 package cz.zcu.connectors.kerberos;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.APIConfiguration;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidPasswordException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
 import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
@@ -21,7 +50,12 @@ import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.SearchResult;
 import org.identityconnectors.framework.common.objects.Schema;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.identityconnectors.framework.impl.api.local.LocalConnectorFacadeImpl;
 import org.identityconnectors.framework.spi.Connector;
@@ -187,7 +221,7 @@ public class KerberosConnectorTests {
 
 		final ResultsHandler handler = new ToListResultsHandler();
 		SearchResult result = facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.equalTo(new Name(principal)), handler, builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 1);
 
 		final ResultsHandler handler2 = new ToListResultsHandler();
@@ -210,7 +244,7 @@ public class KerberosConnectorTests {
 		SearchResult result =
 				facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.startsWith(new Name("user")), handler,
 						builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 3);
 	}
 
@@ -226,14 +260,14 @@ public class KerberosConnectorTests {
 		SearchResult result =
 				facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.endsWith(new Name("3")), handler,
 						builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 1);
 
 		handler = new ToListResultsHandler();
 		result =
 				facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.endsWith(new Name("3@" + realm)), handler,
 						builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 1);
 	}
 
@@ -248,7 +282,7 @@ public class KerberosConnectorTests {
 		SearchResult result =
 				facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.contains(new Name("earch-tes")), handler,
 						builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 1);
 	}
 
@@ -267,10 +301,509 @@ public class KerberosConnectorTests {
 		SearchResult result =
 				facade.search(KerberosPrincipal.OBJECT_CLASS, null, handler,
 						builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNotNull(result.getPagedResultsCookie());
 		Assert.assertTrue(((ToListResultsHandler) handler).getObjects().size() > 1);
 	}
 
+	@Test
+	public void searchCookieTest() {
+		logger.info("Running Paged Search with Cookies Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final ToListResultsHandler allHandler = new ToListResultsHandler();
+		final Set<String> names = new HashSet<String>();
+		String cookie = null;
+		int pages = 0;
+
+		facade.search(KerberosPrincipal.OBJECT_CLASS, null, allHandler, null);
+		do {
+			final OperationOptionsBuilder builder = new OperationOptionsBuilder();
+			final ToListResultsHandler handler = new ToListResultsHandler();
+			builder.setPageSize(3);
+			if (cookie != null) builder.setPagedResultsCookie(cookie);
+
+			SearchResult result = facade.search(KerberosPrincipal.OBJECT_CLASS, null, handler, builder.build());
+			Assert.assertTrue(handler.getObjects().size() <= 3);
+			for (ConnectorObject co : handler.getObjects()) {
+				Assert.assertTrue(names.add(co.getName().getNameValue()));
+			}
+			cookie = result.getPagedResultsCookie();
+			if (cookie != null) Assert.assertTrue(result.getRemainingPagedResults() > 0);
+			pages++;
+		} while (cookie != null && pages < 100);
+
+		Assert.assertNull(cookie);
+		Assert.assertEquals(names.size(), allHandler.getObjects().size());
+	}
+
+	@Test
+	public void searchBadCookieTest() {
+		logger.info("Running Paged Search with Bad Cookies Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+
+		for (String cookie : new String[]{"names", "names:x", "names:-1", "names:1000000"}) {
+			final OperationOptionsBuilder builder = new OperationOptionsBuilder();
+			builder.setPageSize(3);
+			builder.setPagedResultsCookie(cookie);
+			try {
+				facade.search(KerberosPrincipal.OBJECT_CLASS, null, new ToListResultsHandler(), builder.build());
+				Assert.fail("Cookie " + cookie + " accepted");
+			} catch (ConnectorException e) {
+				Assert.assertTrue(e.getMessage().startsWith("Invalid paged results cookie"), e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void searchStopTest() {
+		logger.info("Running Stopped Search Test");
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final OperationOptionsBuilder builder = new OperationOptionsBuilder();
+		final List<ConnectorObject> objects = new ArrayList<ConnectorObject>();
+		builder.setPageSize(10);
+
+		SearchResult result = facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.startsWith(new Name("user")), new ResultsHandler() {
+			public boolean handle(ConnectorObject co) {
+				objects.add(co);
+				return false;
+			}
+		}, builder.build());
+		Assert.assertEquals(objects.size(), 1);
+		Assert.assertEquals(result.getRemainingPagedResults(), -1);
+	}
+
+	@Test
+	public void searchParallelTest() {
+		logger.info("Running Parallel Search Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final ToListResultsHandler handler = new ToListResultsHandler();
+		final ToListResultsHandler parallelHandler = new ToListResultsHandler();
+		KerberosConfiguration config = newConfiguration();
+		config.setSearchHandles(3);
+		final ConnectorFacade parallelFacade = getFacade(config);
+
+		try {
+			facade.search(KerberosPrincipal.OBJECT_CLASS, null, handler, null);
+			parallelFacade.search(KerberosPrincipal.OBJECT_CLASS, null, parallelHandler, null);
+			Assert.assertEquals(parallelHandler.getObjects().size(), handler.getObjects().size());
+			for (int i = 0; i < handler.getObjects().size(); i++) {
+				Assert.assertEquals(parallelHandler.getObjects().get(i).getName(), handler.getObjects().get(i).getName());
+			}
+		} finally {
+			((LocalConnectorFacadeImpl) parallelFacade).dispose();
+		}
+	}
+
+	@Test
+	public void searchAttributesToGetTest() {
+		logger.info("Running Search with Attributes To Get Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final ToListResultsHandler allHandler = new ToListResultsHandler();
+		final ToListResultsHandler namesHandler = new ToListResultsHandler();
+		final ToListResultsHandler policyHandler = new ToListResultsHandler();
+		OperationOptionsBuilder builder;
+
+		facade.search(KerberosPrincipal.OBJECT_CLASS, null, allHandler, null);
+
+		builder = new OperationOptionsBuilder();
+		builder.setAttributesToGet(Name.NAME);
+		facade.search(KerberosPrincipal.OBJECT_CLASS, null, namesHandler, builder.build());
+		Assert.assertEquals(namesHandler.getObjects().size(), allHandler.getObjects().size());
+		for (ConnectorObject co : namesHandler.getObjects()) {
+			Assert.assertNotNull(co.getName());
+			Assert.assertNull(co.getAttributeByName(KerberosPrincipal.ATTR_POLICY));
+			Assert.assertNull(co.getAttributeByName(KerberosPrincipal.ATTR_MAX_TICKET_LIFE));
+		}
+
+		builder = new OperationOptionsBuilder();
+		builder.setAttributesToGet(KerberosPrincipal.ATTR_POLICY);
+		builder.setPageSize(5);
+		facade.search(KerberosPrincipal.OBJECT_CLASS, null, policyHandler, builder.build());
+		Assert.assertTrue(policyHandler.getObjects().size() > 0);
+		for (ConnectorObject co : policyHandler.getObjects()) {
+			Assert.assertNotNull(co.getAttributeByName(KerberosPrincipal.ATTR_POLICY));
+			Assert.assertNull(co.getAttributeByName(KerberosPrincipal.ATTR_MAX_TICKET_LIFE));
+		}
+	}
+
+	@Test
+	public void searchFilterTest() {
+		logger.info("Running Search with Native Filter Test");
+
+		final String principal = "filter-test@" + realm;
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final ToListResultsHandler allHandler = new ToListResultsHandler();
+		final ToListResultsHandler policyHandler = new ToListResultsHandler();
+		final ToListResultsHandler notHandler = new ToListResultsHandler();
+		final List<String> preauth = new ArrayList<String>();
+		final List<String> paged = new ArrayList<String>();
+
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		attrs.add(new Name(principal));
+		attrs.add(AttributeBuilder.build(KerberosPrincipal.ATTR_POLICY, "default_nohistory"));
+		attrs.add(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PREAUTH, false));
+		facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+		try {
+			facade.search(KerberosPrincipal.OBJECT_CLASS, null, allHandler, null);
+			for (ConnectorObject co : allHandler.getObjects()) {
+				if (AttributeUtil.getBooleanValue(co.getAttributeByName(KerberosPrincipal.ATTR_REQUIRES_PREAUTH)))
+					preauth.add(co.getName().getNameValue());
+			}
+
+			facade.search(KerberosPrincipal.OBJECT_CLASS,
+					FilterBuilder.and(FilterBuilder.equalTo(AttributeBuilder.build(KerberosPrincipal.ATTR_POLICY, "default_nohistory")),
+					                  FilterBuilder.equalTo(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PREAUTH, false))),
+					policyHandler, null);
+			Assert.assertEquals(policyHandler.getObjects().size(), 1);
+			Assert.assertEquals(policyHandler.getObjects().get(0).getName().getNameValue(), principal);
+
+			facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.not(FilterBuilder.startsWith(new Name("user"))), notHandler, null);
+			Assert.assertTrue(notHandler.getObjects().size() > 0);
+			for (ConnectorObject co : notHandler.getObjects()) {
+				Assert.assertFalse(co.getName().getNameValue().startsWith("user"));
+			}
+
+			// offsets count only the matching principals
+			for (int offset = 1; offset <= preauth.size(); offset += 3) {
+				OperationOptionsBuilder builder = new OperationOptionsBuilder();
+				ToListResultsHandler handler = new ToListResultsHandler();
+				builder.setPageSize(3);
+				builder.setPagedResultsOffset(offset);
+				facade.search(KerberosPrincipal.OBJECT_CLASS,
+						FilterBuilder.equalTo(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PREAUTH, true)), handler, builder.build());
+				for (ConnectorObject co : handler.getObjects()) paged.add(co.getName().getNameValue());
+			}
+			Assert.assertEquals(paged, preauth);
+		} finally {
+			facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+		}
+	}
+
+	@Test
+	public void searchNameSetTest() {
+		logger.info("Running Search of Name Set Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final ToListResultsHandler handler = new ToListResultsHandler();
+		final List<String> paged = new ArrayList<String>();
+		final Filter filter = FilterBuilder.or(FilterBuilder.or(FilterBuilder.equalTo(new Uid("user@" + realm)),
+				FilterBuilder.equalTo(new Uid("non-existant-user@" + realm))), FilterBuilder.equalTo(new Name("user2@" + realm)));
+
+		List<KerberosQuery> queries = new KerberosFilterTranslator().translate(filter);
+		Assert.assertEquals(queries.size(), 1);
+		Assert.assertEquals(queries.get(0).getNames().length, 3);
+
+		facade.search(KerberosPrincipal.OBJECT_CLASS, filter, handler, null);
+		Assert.assertEquals(handler.getObjects().size(), 2);
+		Assert.assertEquals(handler.getObjects().get(0).getName().getNameValue(), "user@" + realm);
+		Assert.assertEquals(handler.getObjects().get(1).getName().getNameValue(), "user2@" + realm);
+
+		String cookie = null;
+		do {
+			OperationOptionsBuilder builder = new OperationOptionsBuilder();
+			ToListResultsHandler pageHandler = new ToListResultsHandler();
+			builder.setPageSize(1);
+			if (cookie != null) builder.setPagedResultsCookie(cookie);
+			SearchResult result = facade.search(KerberosPrincipal.OBJECT_CLASS, filter, pageHandler, builder.build());
+			for (ConnectorObject co : pageHandler.getObjects()) paged.add(co.getName().getNameValue());
+			cookie = result.getPagedResultsCookie();
+		} while (cookie != null);
+		Assert.assertEquals(paged.size(), 2);
+	}
+
+	@Test
+	public void searchBufferTest() {
+		logger.info("Running Search Buffer Test");
+
+		final int[] sizes = new int[]{0, 64 * 1024, 200, 40};
+		final List<ConnectorFacade> facades = new ArrayList<ConnectorFacade>();
+		List<ConnectorObject> expected = null;
+
+		try {
+			// no buffer, default, one principal per buffer, too small buffer
+			for (int size : sizes) {
+				KerberosConfiguration config = newConfiguration();
+				config.setSearchBufferSize(size);
+				facades.add(getFacade(config));
+			}
+			for (int i = 0; i < sizes.length; i++) {
+				ToListResultsHandler handler = new ToListResultsHandler();
+
+				facades.get(i).search(KerberosPrincipal.OBJECT_CLASS, null, handler, null);
+				if (expected == null) {
+					expected = handler.getObjects();
+					Assert.assertTrue(expected.size() > 1);
+				} else {
+					Assert.assertEquals(handler.getObjects(), expected, "buffer size " + sizes[i]);
+				}
+			}
+		} finally {
+			for (ConnectorFacade facade : facades) ((LocalConnectorFacadeImpl) facade).dispose();
+		}
+	}
+
+	@Test
+	public void searchBufferSharedStringsTest() {
+		logger.info("Running Search Buffer Shared Strings Test");
+
+		final ToListResultsHandler handler = new ToListResultsHandler();
+		KerberosSearchSink sink = new KerberosSearchSink(handler, KerberosPrincipal.MASK_ALL, KerberosPrincipal.RETURN_ALL);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+		sink.setBuffer(buffer);
+		for (String name : new String[]{"user@" + realm, "user2@" + realm}) {
+			putString(buffer, name);
+			buffer.putLong(0).putLong(0).putLong(0);
+			putString(buffer, "admin@" + realm);
+			buffer.putLong(1483225200).putInt(128);
+			putString(buffer, "default");
+			buffer.putLong(0).putLong(0).putLong(0).putLong(0);
+		}
+		Assert.assertTrue(sink.handleBuffer(2));
+
+		Assert.assertEquals(handler.getObjects().size(), 2);
+		ConnectorObject co1 = handler.getObjects().get(0), co2 = handler.getObjects().get(1);
+		Assert.assertEquals(co2.getName().getNameValue(), "user2@" + realm);
+		Assert.assertEquals(AttributeUtil.getStringValue(co1.getAttributeByName(KerberosPrincipal.ATTR_MODIFY_PRINCIPAL)), "admin@" + realm);
+		Assert.assertSame(AttributeUtil.getStringValue(co1.getAttributeByName(KerberosPrincipal.ATTR_MODIFY_PRINCIPAL)),
+				AttributeUtil.getStringValue(co2.getAttributeByName(KerberosPrincipal.ATTR_MODIFY_PRINCIPAL)));
+		Assert.assertSame(AttributeUtil.getStringValue(co1.getAttributeByName(KerberosPrincipal.ATTR_POLICY)),
+				AttributeUtil.getStringValue(co2.getAttributeByName(KerberosPrincipal.ATTR_POLICY)));
+	}
+
+	private static void putString(ByteBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	@Test
+	public void toConnectorObjectTest() {
+		logger.info("Running To Connector Object Test");
+
+		KerberosPrincipal p1 = new KerberosPrincipal("user@" + realm, 0, 0, 0, "admin@" + realm, 1483225200, KerberosFlags.MASK_REQUIRES_PREAUTH,
+				"default", 36000, 0, 0, 0);
+		KerberosPrincipal p2 = new KerberosPrincipal("user2@" + realm, 0, 0, 0, "admin@" + realm, 1483225200, KerberosFlags.MASK_DISALLOW_ALL_TIX,
+				"default", 36000, 0, 0, 0);
+		ConnectorObject co;
+
+		co = p1.toConnectorObject();
+		Assert.assertEquals(co.getUid().getUidValue(), "user@" + realm);
+		Assert.assertEquals(AttributeUtil.getLongValue(co.getAttributeByName(KerberosPrincipal.ATTR_MODIFY_DATE)), (Long) 1483225200000L);
+		Assert.assertEquals(AttributeUtil.getLongValue(co.getAttributeByName(KerberosPrincipal.ATTR_MAX_TICKET_LIFE)), (Long) 36000000L);
+		Assert.assertEquals(AttributeUtil.getIntegerValue(co.getAttributeByName(KerberosPrincipal.ATTR_ATTRIBUTES)), (Integer) KerberosFlags.MASK_REQUIRES_PREAUTH);
+		Assert.assertTrue(AttributeUtil.getBooleanValue(co.getAttributeByName(OperationalAttributes.ENABLE_NAME)));
+		Assert.assertTrue(AttributeUtil.getBooleanValue(co.getAttributeByName(KerberosPrincipal.ATTR_REQUIRES_PREAUTH)));
+		Assert.assertFalse(AttributeUtil.getBooleanValue(co.getAttributeByName(KerberosPrincipal.ATTR_REQUIRES_HWAUTH)));
+		Assert.assertNull(co.getAttributeByName(KerberosPrincipal.ATTR_LAST_LOGIN_DATE));
+		Assert.assertNotNull(p2.toConnectorObject().getAttributeByName(KerberosPrincipal.ATTR_ALLOW_FORWARDABLE));
+		Assert.assertSame(co.getAttributeByName(KerberosPrincipal.ATTR_ALLOW_FORWARDABLE),
+				p2.toConnectorObject().getAttributeByName(KerberosPrincipal.ATTR_ALLOW_FORWARDABLE));
+		Assert.assertFalse(AttributeUtil.getBooleanValue(p2.toConnectorObject().getAttributeByName(OperationalAttributes.ENABLE_NAME)));
+
+		// only the requested flag
+		int returnMask = KerberosPrincipal.getReturnMask(new String[]{KerberosPrincipal.ATTR_REQUIRES_PREAUTH});
+		Assert.assertEquals(KerberosPrincipal.getFetchMask(returnMask), KerberosPrincipal.MASK_PRINCIPAL | KerberosPrincipal.MASK_ATTRIBUTES);
+		co = p1.toConnectorObject(returnMask);
+		Assert.assertEquals(co.getAttributes().size(), 3);
+		Assert.assertTrue(AttributeUtil.getBooleanValue(co.getAttributeByName(KerberosPrincipal.ATTR_REQUIRES_PREAUTH)));
+	}
+
+	@Test
+	public void principalCacheTest() {
+		logger.info("Running Principal Cache Test");
+
+		final String principal = "cached@" + realm;
+		// cache of the configuration (realm and admin principal)
+		final KerberosPrincipalCache cache = KerberosPrincipalCache.get(PROPERTIES.getStringProperty("configuration.principal") + " " + realm);
+		KerberosConfiguration config = newConfiguration();
+		config.setPrincipalCacheSize(100);
+		final ConnectorFacade facade = getFacade(config);
+		ConnectorObject co;
+
+		try {
+			Set<Attribute> attrs = new HashSet<Attribute>();
+			attrs.add(new Name(principal));
+			attrs.add(AttributeBuilder.build("policy", "default"));
+			facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+			long misses = cache.getMisses();
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertEquals(AttributeUtil.getStringValue(co.getAttributeByName("policy")), "default");
+			Assert.assertEquals(cache.getMisses(), misses + 1);
+
+			long hits = cache.getHits();
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertEquals(AttributeUtil.getStringValue(co.getAttributeByName("policy")), "default");
+			Assert.assertEquals(cache.getHits(), hits + 1);
+
+			// listings don't fill the cache
+			int size = cache.size();
+			facade.search(KerberosPrincipal.OBJECT_CLASS, null, new ToListResultsHandler(), null);
+			Assert.assertEquals(cache.size(), size);
+
+			// invalidated by update
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.build("policy", "default_nohistory"));
+			facade.update(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), attrs, null);
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertEquals(AttributeUtil.getStringValue(co.getAttributeByName("policy")), "default_nohistory");
+
+			// invalidated by delete
+			facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertNull(facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null));
+		} finally {
+			((LocalConnectorFacadeImpl) facade).dispose();
+		}
+	}
+
+	@Test
+	public void principalCacheInvalidationTest() {
+		logger.info("Running Principal Cache Invalidation Test");
+
+		final String principal = "cached-race@" + realm;
+		final KerberosPrincipalCache cache = KerberosPrincipalCache.get(PROPERTIES.getStringProperty("configuration.principal") + " " + realm);
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector first = new KerberosConnector();
+		KerberosConnector second = new KerberosConnector();
+		ToListResultsHandler handler;
+
+		// two connector instances sharing the cache
+		config.setPrincipalCacheSize(100);
+		first.init(config);
+		second.init(config);
+		try {
+			Set<Attribute> attrs = new HashSet<Attribute>();
+			attrs.add(new Name(principal));
+			attrs.add(AttributeBuilder.build("policy", "default"));
+			first.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+			first.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(principal, null), new ToListResultsHandler(), new OperationOptionsBuilder().build());
+			KerberosPrincipal fetched = cache.getPrincipal(principal);
+			Assert.assertNotNull(fetched);
+
+			// the lookup of the first instance fetched the principal before the update of the second one
+			long generation = cache.begin();
+			try {
+				attrs = new HashSet<Attribute>();
+				attrs.add(AttributeBuilder.build("policy", "default_nohistory"));
+				second.update(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), attrs, null);
+				cache.put(fetched, generation);
+				Assert.assertNull(cache.getPrincipal(principal));
+			} finally {
+				cache.end();
+			}
+
+			handler = new ToListResultsHandler();
+			first.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(principal, null), handler, new OperationOptionsBuilder().build());
+			Assert.assertEquals(AttributeUtil.getStringValue(handler.getObjects().get(0).getAttributeByName("policy")), "default_nohistory");
+
+			// lookups started after the update are cached again
+			Assert.assertNotNull(cache.getPrincipal(principal));
+		} finally {
+			try {
+				second.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			} finally {
+				first.dispose();
+				second.dispose();
+			}
+		}
+	}
+
+	@Test
+	public void syncTest() throws IOException {
+		logger.info("Running Sync Test");
+
+		final String principal = "synced@" + realm;
+		final File dir = Files.createTempDirectory("krb5-sync").toFile();
+		KerberosConfiguration config = newConfiguration();
+		config.setSyncDirectory(dir.getPath());
+		final ConnectorFacade facade = getFacade(config);
+		final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+		final SyncResultsHandler handler = new SyncResultsHandler() {
+			public boolean handle(SyncDelta delta) {
+				deltas.add(delta);
+				return true;
+			}
+		};
+
+		try {
+			SyncToken token = facade.getLatestSyncToken(KerberosPrincipal.OBJECT_CLASS);
+			final SyncToken first = token;
+			Assert.assertNotNull(token);
+
+			// no changes
+			facade.sync(KerberosPrincipal.OBJECT_CLASS, token, handler, null);
+			Assert.assertEquals(deltas.size(), 0);
+
+			// created
+			Set<Attribute> attrs = new HashSet<Attribute>();
+			attrs.add(new Name(principal));
+			facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+			SyncToken created = facade.sync(KerberosPrincipal.OBJECT_CLASS, token, handler, null);
+			Assert.assertEquals(deltas.size(), 1);
+			Assert.assertEquals(deltas.get(0).getDeltaType(), SyncDeltaType.CREATE);
+			Assert.assertEquals(deltas.get(0).getUid().getUidValue(), principal);
+			// deltas carry the compared token, only the result is the new one
+			Assert.assertEquals(deltas.get(0).getToken(), token);
+			Assert.assertNotEquals(created, token);
+			token = created;
+
+			// changed
+			deltas.clear();
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.build("policy", "default_nohistory"));
+			facade.update(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), attrs, null);
+			token = facade.sync(KerberosPrincipal.OBJECT_CLASS, token, handler, null);
+			Assert.assertEquals(deltas.size(), 1);
+			Assert.assertEquals(deltas.get(0).getDeltaType(), SyncDeltaType.UPDATE);
+			Assert.assertEquals(AttributeUtil.getStringValue(deltas.get(0).getObject().getAttributeByName("policy")), "default_nohistory");
+
+			// deleted
+			deltas.clear();
+			facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			facade.sync(KerberosPrincipal.OBJECT_CLASS, token, handler, null);
+			Assert.assertEquals(deltas.size(), 1);
+			Assert.assertEquals(deltas.get(0).getDeltaType(), SyncDeltaType.DELETE);
+			Assert.assertEquals(deltas.get(0).getUid().getUidValue(), principal);
+
+			// older snapshots are kept for other consumers
+			deltas.clear();
+			facade.sync(KerberosPrincipal.OBJECT_CLASS, first, handler, null);
+			Assert.assertEquals(deltas.size(), 0);
+
+			// unknown snapshots
+			for (Object value : new Object[]{1000000L, "x"}) {
+				try {
+					facade.sync(KerberosPrincipal.OBJECT_CLASS, new SyncToken(value), handler, null);
+					Assert.fail("Sync with unknown token " + value + " should fail");
+				} catch (ConnectorException e) {
+					// expected
+				}
+			}
+
+			// snapshots readable only by the owner
+			for (File file : dir.listFiles()) {
+				Assert.assertEquals(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), "rw-------");
+			}
+		} finally {
+			((LocalConnectorFacadeImpl) facade).dispose();
+		}
+
+		// sync directory is required
+		final ConnectorFacade undirected = getFacade(newConfiguration());
+		try {
+			undirected.getLatestSyncToken(KerberosPrincipal.OBJECT_CLASS);
+			Assert.fail("Sync without sync directory should fail");
+		} catch (ConfigurationException e) {
+			// expected
+		} finally {
+			((LocalConnectorFacadeImpl) undirected).dispose();
+		}
+	}
+
 	@Test
 	public void searchPageOutOfRangeTest() {
 		logger.info("Running \"Page out of range\" Search Test");
@@ -281,7 +814,7 @@ public class KerberosConnectorTests {
 		final ResultsHandler handler = new ToListResultsHandler();
 
 		SearchResult result = facade.search(KerberosPrincipal.OBJECT_CLASS, FilterBuilder.startsWith(new Name("user")), handler, builder.build());
-		Assert.assertEquals(result.getPagedResultsCookie(), "NO_COOKIE");
+		Assert.assertNull(result.getPagedResultsCookie());
 		Assert.assertEquals(((ToListResultsHandler) handler).getObjects().size(), 0);
 	}
 
@@ -525,6 +1058,715 @@ public class KerberosConnectorTests {
 		Assert.assertEquals(co.getAttributeByName("allowTix").getValue().get(0), true);
 	}
 
+	@Test
+	public void updateDeltaTest() {
+		logger.info("Running Update Delta Test");
+
+		final String principal = "delta-test@" + realm;
+		final String renamed = "delta-test2@" + realm;
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		Set<AttributeDelta> deltas;
+		Set<AttributeDelta> sideEffects;
+		ConnectorObject co;
+
+		attrs.add(new Name(principal));
+		attrs.add(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PREAUTH, true));
+		facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+		try {
+			// flags changed on the current attributes (requiresPreauth kept)
+			deltas = new HashSet<AttributeDelta>();
+			deltas.add(AttributeDeltaBuilder.buildEnabled(false));
+			deltas.add(AttributeDeltaBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PWCHANGE, true));
+			sideEffects = facade.updateDelta(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), deltas, null);
+			Assert.assertTrue(sideEffects.isEmpty());
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertEquals(co.getAttributeByName("attributes").getValue().get(0),
+					KerberosFlags.MASK_DISALLOW_ALL_TIX | KerberosFlags.MASK_REQUIRES_PREAUTH | KerberosFlags.MASK_REQUIRES_PWCHANGE);
+
+			// rename returns the new uid
+			deltas = new HashSet<AttributeDelta>();
+			deltas.add(AttributeDeltaBuilder.buildEnabled(true));
+			deltas.add(AttributeDeltaBuilder.build(Name.NAME, renamed));
+			sideEffects = facade.updateDelta(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), deltas, null);
+			Assert.assertEquals(sideEffects.size(), 1);
+			Assert.assertEquals(sideEffects.iterator().next().getValuesToReplace().get(0), renamed);
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(renamed), null);
+			Assert.assertEquals(co.getAttributeByName("attributes").getValue().get(0),
+					KerberosFlags.MASK_REQUIRES_PREAUTH | KerberosFlags.MASK_REQUIRES_PWCHANGE);
+		} finally {
+			try {
+				facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			} catch (UnknownUidException e) {
+				facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(renamed), null);
+			}
+		}
+
+		// unknown principal
+		deltas = new HashSet<AttributeDelta>();
+		deltas.add(AttributeDeltaBuilder.buildEnabled(false));
+		try {
+			facade.updateDelta(KerberosPrincipal.OBJECT_CLASS, new Uid("non-existent@" + realm), deltas, null);
+			Assert.fail("UnknownUidException expected");
+		} catch (UnknownUidException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void updateStepsTest() {
+		logger.info("Running Update Steps Test");
+
+		final String principal = "steps-test@" + realm;
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		ConnectorObject co;
+
+		attrs.add(new Name(principal));
+		facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+		try {
+			// modify and password change done, rename to the existing principal fails
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.build(KerberosPrincipal.ATTR_REQUIRES_PWCHANGE, true));
+			attrs.add(AttributeBuilder.buildPassword("new-password".toCharArray()));
+			attrs.add(new Name("user@" + realm));
+			try {
+				facade.update(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), attrs, null);
+				Assert.fail("AlreadyExistsException expected");
+			} catch (AlreadyExistsException e) {
+				Assert.assertTrue(e.getMessage().startsWith("rename failed: "), e.getMessage());
+			}
+			co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+			Assert.assertNotNull(co);
+			Assert.assertEquals(co.getAttributeByName(KerberosPrincipal.ATTR_REQUIRES_PWCHANGE).getValue().get(0), true);
+
+			// invalid name fails in the first requested step
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.buildPassword("new-password".toCharArray()));
+			try {
+				facade.update(KerberosPrincipal.OBJECT_CLASS, new Uid("steps@malformed@" + realm), attrs, null);
+				Assert.fail("ConnectorException expected");
+			} catch (ConnectorException e) {
+				Assert.assertTrue(e.getMessage().startsWith("password change failed: "), e.getMessage());
+			}
+		} finally {
+			facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid(principal), null);
+		}
+	}
+
+	@Test
+	public void batchTest() {
+		logger.info("Running Batch Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final List<KerberosOperation> results = new ArrayList<KerberosOperation>();
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		List<KerberosOperation> ops = new ArrayList<KerberosOperation>();
+		KerberosOperation.Handler handler = new KerberosOperation.Handler() {
+			public boolean handle(KerberosOperation operation) {
+				results.add(operation);
+				return true;
+			}
+		};
+		Set<Attribute> attrs;
+
+		config.setSearchHandles(3);
+		connector.init(config);
+		try {
+			for (int i = 0; i < 10; i++) {
+				attrs = new HashSet<Attribute>();
+				attrs.add(new Name("batch" + i + "@" + realm));
+				attrs.add(AttributeBuilder.buildPassword("password".toCharArray()));
+				if (i % 2 == 1) attrs.add(AttributeBuilder.buildEnabled(false));
+				ops.add(KerberosOperation.create(attrs));
+			}
+			// existing principal
+			attrs = new HashSet<Attribute>();
+			attrs.add(new Name("user@" + realm));
+			ops.add(KerberosOperation.create(attrs));
+
+			Assert.assertEquals(connector.batch(ops.iterator(), 4, handler), ops.size());
+			Assert.assertEquals(results, ops);
+			for (int i = 0; i < 10; i++) {
+				Assert.assertNull(results.get(i).getError(), String.valueOf(results.get(i).getError()));
+				Assert.assertEquals(results.get(i).getUid().getUidValue(), "batch" + i + "@" + realm);
+				ConnectorObject co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, results.get(i).getUid(), null);
+				Assert.assertNotNull(co);
+				Assert.assertEquals(co.getAttributeByName(OperationalAttributes.ENABLE_NAME).getValue().get(0), i % 2 == 0);
+			}
+			Assert.assertTrue(results.get(10).getError() instanceof AlreadyExistsException);
+
+			// deletes, one of the unknown principal
+			ops.clear();
+			results.clear();
+			for (int i = 0; i < 10; i++) ops.add(KerberosOperation.delete(new Uid("batch" + i + "@" + realm)));
+			ops.add(KerberosOperation.delete(new Uid("batch-none@" + realm)));
+			Assert.assertEquals(connector.batch(ops.iterator(), 4, handler), ops.size());
+			for (int i = 0; i < 10; i++) {
+				Assert.assertNull(results.get(i).getError(), String.valueOf(results.get(i).getError()));
+				Assert.assertNull(facade.getObject(KerberosPrincipal.OBJECT_CLASS, results.get(i).getUid(), null));
+			}
+			Assert.assertTrue(results.get(10).getError() instanceof UnknownUidException);
+		} finally {
+			connector.dispose();
+		}
+	}
+
+	@Test
+	public void batchOrderTest() {
+		logger.info("Running Batch Order Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final List<KerberosOperation> results = new ArrayList<KerberosOperation>();
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		List<KerberosOperation> ops = new ArrayList<KerberosOperation>();
+		KerberosOperation.Handler handler = new KerberosOperation.Handler() {
+			public boolean handle(KerberosOperation operation) {
+				results.add(operation);
+				return true;
+			}
+		};
+		Set<Attribute> attrs;
+
+		config.setSearchHandles(3);
+		connector.init(config);
+		try {
+			// create and update of the same principal in one batch
+			for (int i = 0; i < 100; i++) {
+				attrs = new HashSet<Attribute>();
+				attrs.add(new Name("batch-order" + i + "@" + realm));
+				ops.add(KerberosOperation.create(attrs));
+				attrs = new HashSet<Attribute>();
+				attrs.add(AttributeBuilder.buildEnabled(false));
+				ops.add(KerberosOperation.update(new Uid("batch-order" + i + "@" + realm), attrs));
+			}
+
+			Assert.assertEquals(connector.batch(ops.iterator(), 4, handler), ops.size());
+			Assert.assertEquals(results, ops);
+			for (int i = 0; i < ops.size(); i++) {
+				Assert.assertNull(results.get(i).getError(), String.valueOf(results.get(i).getError()));
+			}
+			for (int i = 0; i < 100; i++) {
+				ConnectorObject co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid("batch-order" + i + "@" + realm), null);
+				Assert.assertNotNull(co);
+				Assert.assertEquals(co.getAttributeByName(OperationalAttributes.ENABLE_NAME).getValue().get(0), false);
+			}
+		} finally {
+			connector.dispose();
+			for (int i = 0; i < 100; i++) {
+				try {
+					facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid("batch-order" + i + "@" + realm), null);
+				} catch (UnknownUidException e) {
+					// not created
+				}
+			}
+		}
+	}
+
+	@Test
+	public void updateResumeTest() {
+		logger.info("Running Update Resume Test");
+
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		final List<KerberosOperation> results = new ArrayList<KerberosOperation>();
+		KerberosConnector connector = new KerberosConnector();
+		KerberosOperation.Handler handler = new KerberosOperation.Handler() {
+			public boolean handle(KerberosOperation operation) {
+				results.add(operation);
+				return true;
+			}
+		};
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		KerberosOperation op;
+
+		attrs.add(new Name("resume@" + realm));
+		attrs.add(AttributeBuilder.build("maxTicketLife", 3600000L));
+		facade.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+		connector.init(newConfiguration());
+		try {
+			// the failed step is kept for the retry
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.buildPassword("password".toCharArray()));
+			attrs.add(new Name("resume-new@" + realm));
+			op = KerberosOperation.update(new Uid("resume-none@" + realm), attrs);
+			connector.batch(Collections.singleton(op).iterator(), 1, handler);
+			Assert.assertTrue(op.getError() instanceof UnknownUidException);
+			Assert.assertEquals(op.step, KerberosOperation.STEP_CHPASS);
+
+			// the steps before are not repeated
+			attrs = new HashSet<Attribute>();
+			attrs.add(AttributeBuilder.build("maxTicketLife", 7200000L));
+			attrs.add(new Name("resume-new@" + realm));
+			op = KerberosOperation.update(new Uid("resume@" + realm), attrs);
+			op.step = KerberosOperation.STEP_RENAME;
+			connector.batch(Collections.singleton(op).iterator(), 1, handler);
+			Assert.assertNull(op.getError(), String.valueOf(op.getError()));
+			Assert.assertEquals(op.step, 0);
+			Assert.assertNull(facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid("resume@" + realm), null));
+			ConnectorObject co = facade.getObject(KerberosPrincipal.OBJECT_CLASS, new Uid("resume-new@" + realm), null);
+			Assert.assertNotNull(co);
+			Assert.assertEquals(co.getAttributeByName("maxTicketLife").getValue().get(0), 3600000L);
+		} finally {
+			connector.dispose();
+			facade.delete(KerberosPrincipal.OBJECT_CLASS, new Uid("resume-new@" + realm), null);
+		}
+	}
+
+	@Test
+	public void handlePoolTest() {
+		logger.info("Running Handle Pool Test");
+
+		KerberosHandlePool pool = KerberosConnector.getHandlePool();
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		long context;
+
+		config.setSearchHandles(1);
+		config.setHandlePoolMaxIdle(2);
+
+		try {
+			connector.init(config);
+			Assert.assertEquals(connector.getContextPointer(), 0L);
+			connector.warmUp();
+			context = connector.getContextPointer();
+			connector.dispose();
+			Assert.assertEquals(pool.size(), 1);
+
+			// limits of other configurations don't apply
+			KerberosConfiguration other = newConfiguration();
+			KerberosConnector unpooled = new KerberosConnector();
+			unpooled.init(other);
+			unpooled.dispose();
+			Assert.assertEquals(pool.size(), 1);
+
+			// the same handle is reused
+			long hits = pool.getHits();
+			connector.init(config);
+			connector.warmUp();
+			Assert.assertEquals(connector.getContextPointer(), context);
+			Assert.assertEquals(pool.getHits(), hits + 1);
+			Assert.assertEquals(pool.size(), 0);
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("user@" + realm, null), new ToListResultsHandler(), new OperationOptionsBuilder().build());
+			connector.dispose();
+
+			// different credentials need another handle
+			config.setPassword(new GuardedString("password2".toCharArray()));
+			try {
+				connector.init(config);
+				connector.warmUp();
+				Assert.fail("InvalidPasswordException expected");
+			} catch (InvalidPasswordException e) {
+				// expected
+			}
+			connector.dispose();
+			Assert.assertEquals(pool.size(), 1);
+
+			// no reuse with credentials lifetime 0
+			config.setPassword(PROPERTIES.getProperty("configuration.password", GuardedString.class));
+			config.setLifeTime(0);
+			connector.init(config);
+			connector.warmUp();
+			Assert.assertNotEquals(connector.getContextPointer(), context);
+			connector.dispose();
+			Assert.assertEquals(pool.size(), 1);
+		} finally {
+			// the pooled handles are closed
+			config.setHandlePoolMaxIdle(0);
+			config.setLifeTime(-1);
+			connector.init(config);
+			connector.dispose();
+			Assert.assertEquals(pool.size(), 0);
+		}
+	}
+
+	@Test
+	public void lazyConnectTest() {
+		logger.info("Running Lazy Connect Test");
+
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		ToListResultsHandler handler = new ToListResultsHandler();
+
+		config.setPassword(new GuardedString("password2".toCharArray()));
+
+		// no login without operations
+		connector.init(config);
+		Assert.assertNotNull(connector.schema());
+		connector.checkAlive();
+		Assert.assertEquals(connector.getContextPointer(), 0L);
+		try {
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("user@" + realm, null), handler, new OperationOptionsBuilder().build());
+			Assert.fail("InvalidPasswordException expected");
+		} catch (InvalidPasswordException e) {
+			// expected
+		}
+		connector.dispose();
+
+		config.setPassword(PROPERTIES.getProperty("configuration.password", GuardedString.class));
+		connector.init(config);
+		connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("user@" + realm, null), handler, new OperationOptionsBuilder().build());
+		Assert.assertNotEquals(connector.getContextPointer(), 0L);
+		Assert.assertEquals(handler.getObjects().size(), 1);
+		connector.dispose();
+	}
+
+	@Test
+	public void credentialsRenewalTest() throws InterruptedException {
+		logger.info("Running Credentials Renewal Test");
+
+		final Uid admin = new Uid(PROPERTIES.getStringProperty("configuration.principal"));
+		final ConnectorFacade facade = getFacade(KerberosConnector.class, null);
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		ToListResultsHandler handler;
+		long context;
+
+		config.setSearchHandles(1);
+
+		// the admin ticket expires after 1 second, the operations log in again
+		facade.update(KerberosPrincipal.OBJECT_CLASS, admin, Collections.singleton(AttributeBuilder.build("maxTicketLife", 1000L)), null);
+		try {
+			connector.init(config);
+			connector.warmUp();
+			waitForTicketExpiry();
+			handler = new ToListResultsHandler();
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("user@" + realm, null), handler, new OperationOptionsBuilder().build());
+			Assert.assertEquals(handler.getObjects().size(), 1);
+			waitForTicketExpiry();
+			try {
+				connector.delete(KerberosPrincipal.OBJECT_CLASS, new Uid("non-existent@" + realm), null);
+				Assert.fail("UnknownUidException expected");
+			} catch (UnknownUidException e) {
+				// expected
+			}
+			connector.dispose();
+		} finally {
+			facade.update(KerberosPrincipal.OBJECT_CLASS, admin, Collections.singleton(AttributeBuilder.build("maxTicketLife", 0L)), null);
+		}
+
+		// new credentials are obtained in the background in the half of the lifetime
+		config.setLifeTime(2000);
+		config.setCredentialsRenewal(1000);
+		config.setConnectOnInit(true);
+		connector.init(config);
+		context = connector.getContextPointer();
+		long deadline = System.currentTimeMillis() + 10 * 1000;
+		do {
+			Thread.sleep(10);
+			connector.checkAlive();
+		} while (connector.getContextPointer() == context && System.currentTimeMillis() < deadline);
+		Assert.assertNotEquals(connector.getContextPointer(), context);
+		handler = new ToListResultsHandler();
+		connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("user@" + realm, null), handler, new OperationOptionsBuilder().build());
+		Assert.assertEquals(handler.getObjects().size(), 1);
+		connector.dispose();
+	}
+
+	/**
+	 * Wait for the expiration of the admin ticket with the lifetime of 1 second
+	 * obtained before (the fake kadm5 counts whole seconds).
+	 */
+	private static void waitForTicketExpiry() throws InterruptedException {
+		long expiry = (System.currentTimeMillis() / 1000 + 1) * 1000;
+		long now;
+
+		while ((now = System.currentTimeMillis()) < expiry) Thread.sleep(expiry - now);
+	}
+
+	@Test
+	public void threadSafeTest() throws InterruptedException {
+		logger.info("Running Thread-safe Connector Test");
+
+		final KerberosConfiguration config = newConfiguration();
+		final KerberosConnector connector = new KerberosConnector();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[8];
+
+		config.setThreadSafe(true);
+		config.setMaxConnections(3);
+		connector.init(config);
+
+		// concurrent operations on one connector instance (waiting above the limit)
+		for (int i = 0; i < threads.length; i++) {
+			final String name = "thread-safe-" + i + "@" + realm;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							Set<Attribute> attrs = new HashSet<Attribute>();
+							attrs.add(new Name(name));
+							Uid uid = connector.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+
+							ToListResultsHandler handler = new ToListResultsHandler();
+							connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(name, null), handler, new OperationOptionsBuilder().build());
+							Assert.assertEquals(handler.getObjects().size(), 1);
+							Assert.assertEquals(handler.getObjects().get(0).getName().getNameValue(), name);
+
+							connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		connector.test();
+		connector.dispose();
+
+		Assert.assertEquals(failures, Collections.emptyList());
+
+		// the only connection held by a search, fail without waiting
+		final CountDownLatch searching = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		config.setMaxConnections(1);
+		config.setMaxConnectionsWait(0);
+		connector.init(config);
+		Thread search = new Thread(new Runnable() {
+			public void run() {
+				connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, null, new ResultsHandler() {
+					public boolean handle(ConnectorObject object) {
+						searching.countDown();
+						try {
+							finish.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return false;
+					}
+				}, new OperationOptionsBuilder().build());
+			}
+		});
+		search.start();
+		Assert.assertTrue(searching.await(10, TimeUnit.SECONDS));
+		try {
+			connector.test();
+			Assert.fail("Operation above the connection limit should fail");
+		} catch (OperationTimeoutException e) {
+			// expected
+		} finally {
+			finish.countDown();
+			search.join();
+		}
+		connector.test();
+		connector.dispose();
+	}
+
+	@Test
+	public void asyncTest() throws Exception {
+		logger.info("Running Asynchronous Operations Test");
+
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		List<CompletableFuture<Uid>> created = new ArrayList<CompletableFuture<Uid>>();
+		List<CompletableFuture<Void>> deleted = new ArrayList<CompletableFuture<Void>>();
+
+		config.setThreadSafe(true);
+		config.setAsyncThreads(4);
+		connector.init(config);
+		KerberosAsyncConnector async = new KerberosAsyncConnector(connector);
+
+		try {
+			for (int i = 0; i < 20; i++) {
+				Set<Attribute> attrs = new HashSet<Attribute>();
+				attrs.add(new Name("async-" + i + "@" + realm));
+				created.add(async.createAsync(attrs, null));
+			}
+			for (int i = 0; i < created.size(); i++) {
+				Assert.assertEquals(created.get(i).get().getUidValue(), "async-" + i + "@" + realm);
+			}
+
+			Assert.assertEquals(async.searchAsync(new KerberosQuery("async-*", null), null).get().size(), 20);
+			ConnectorObject co = async.getAsync(new Uid("async-5@" + realm), null).get();
+			Assert.assertNotNull(co);
+			Assert.assertEquals(co.getName().getNameValue(), "async-5@" + realm);
+			Assert.assertNull(async.getAsync(new Uid("async-none@" + realm), null).get());
+
+			for (int i = 0; i < created.size(); i++) {
+				deleted.add(async.deleteAsync(new Uid("async-" + i + "@" + realm), null));
+			}
+			CompletableFuture.allOf(deleted.toArray(new CompletableFuture<?>[deleted.size()])).get();
+			Assert.assertEquals(async.searchAsync(new KerberosQuery("async-*", null), null).get().size(), 0);
+
+			// the failure is passed by the future
+			try {
+				async.deleteAsync(new Uid("async-none@" + realm), null).get();
+				Assert.fail("ExecutionException expected");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof UnknownUidException);
+			}
+			Assert.assertEquals(async.getQueueDepth(), 0);
+		} finally {
+			connector.dispose();
+		}
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+		logger.info("Running Metrics Test");
+
+		final String principal = PROPERTIES.getStringProperty("configuration.principal");
+		final String name = "metrics-test@" + realm;
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		KerberosMetrics metrics = KerberosMetrics.get(principal + " " + realm);
+
+		connector.init(config);
+		metrics.reset();
+
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		attrs.add(new Name(name));
+		Uid uid = connector.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+		attrs = new HashSet<Attribute>();
+		attrs.add(AttributeBuilder.buildPassword("password".toCharArray()));
+		connector.update(KerberosPrincipal.OBJECT_CLASS, uid, attrs, null);
+		connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery(name, null), new ToListResultsHandler(), new OperationOptionsBuilder().build());
+		connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+		try {
+			connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+			Assert.fail("UnknownUidException expected");
+		} catch (UnknownUidException e) {
+			// expected
+		}
+		connector.dispose();
+
+		Assert.assertEquals(metrics.getCalls().get("renew"), Long.valueOf(1));
+		Assert.assertEquals(metrics.getCalls().get("create"), Long.valueOf(1));
+		Assert.assertEquals(metrics.getCalls().get("chpasswd"), Long.valueOf(1));
+		Assert.assertEquals(metrics.getCalls().get("get"), Long.valueOf(1));
+		Assert.assertEquals(metrics.getCalls().get("delete"), Long.valueOf(2));
+		Assert.assertEquals(metrics.getErrors().get("delete"), Long.valueOf(1));
+		Assert.assertEquals(metrics.getErrorCodes().size(), 1);
+		Assert.assertEquals(metrics.getOperations().get("delete"), Long.valueOf(2));
+		Assert.assertEquals(metrics.getOperations().get("search"), Long.valueOf(1));
+		long histogram = 0;
+		for (long count : metrics.getRpcHistogram().get("delete")) histogram += count;
+		Assert.assertEquals(histogram, 2);
+		Assert.assertTrue(metrics.getOperationTime().get("create") >= metrics.getOverheadTime().get("create"));
+
+		// published over JMX
+		Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(KerberosMetrics.getObjectName(principal + " " + realm)));
+		Assert.assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(KerberosMetrics.getObjectName(principal + " " + realm), "Calls"));
+	}
+
+	@Test
+	public void nativeEventTest() throws Exception {
+		logger.info("Running Native Event Test");
+
+		final String name = "jfr-test@" + realm;
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		Recording recording = new Recording();
+		File file = File.createTempFile("kerberos-test", ".jfr");
+
+		config.setRecordPrincipals(true);
+		connector.init(config);
+
+		recording.enable("cz.zcu.connectors.kerberos.NativeCall").withThreshold(Duration.ZERO);
+		recording.start();
+		Set<Attribute> attrs = new HashSet<Attribute>();
+		attrs.add(new Name(name));
+		Uid uid = connector.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+		// failed before any kadm5 call
+		try {
+			connector.delete(KerberosPrincipal.OBJECT_CLASS, new Uid("jfr@malformed@" + realm), null);
+			Assert.fail("ConnectorException expected");
+		} catch (ConnectorException e) {
+			// expected
+		}
+		ToListResultsHandler handler = new ToListResultsHandler();
+		connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("jfr-test*", null), handler, new OperationOptionsBuilder().setPageSize(10).setPagedResultsOffset(1).build());
+		Assert.assertEquals(handler.getObjects().size(), 1);
+		connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+		try {
+			connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+			Assert.fail("UnknownUidException expected");
+		} catch (UnknownUidException e) {
+			// expected
+		}
+		recording.stop();
+		connector.dispose();
+
+		List<RecordedEvent> events;
+		try {
+			recording.dump(file.toPath());
+			events = RecordingFile.readAllEvents(file.toPath());
+		} finally {
+			recording.close();
+			file.delete();
+		}
+
+		List<String> calls = new ArrayList<String>();
+		for (RecordedEvent event : events) {
+			String call = event.getString("call");
+			calls.add(call);
+			if ("create".equals(call)) {
+				Assert.assertEquals(event.getString("principal"), name);
+				Assert.assertEquals(event.getLong("code"), 0);
+			} else if ("list".equals(call)) {
+				Assert.assertEquals(event.getString("operation"), "search");
+				Assert.assertEquals(event.getString("principal"), "jfr-test*");
+				Assert.assertEquals(event.getInt("count"), 1);
+			} else if ("get_stream".equals(call)) {
+				Assert.assertEquals(event.getInt("pageSize"), 1);
+				Assert.assertEquals(event.getInt("count"), 1);
+			}
+		}
+		Assert.assertEquals(calls.subList(0, 5), Arrays.asList("init", "create", "delete", "list", "get_stream"));
+		Assert.assertEquals(Collections.frequency(calls, "delete"), 3);
+		Assert.assertNotEquals(events.get(calls.indexOf("delete")).getLong("code"), 0L);
+		Assert.assertNotEquals(events.get(calls.lastIndexOf("delete")).getLong("code"), 0L);
+	}
+
+	@Test
+	public void debugTraceTest() throws Exception {
+		logger.info("Running Debug Trace Test");
+
+		final String name = "trace-test@" + realm;
+		KerberosConfiguration config = newConfiguration();
+		KerberosConnector connector = new KerberosConnector();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream out = System.out, err = System.err;
+
+		config.setDebug(true);
+		connector.init(config);
+
+		// the log goes to the standard output (StdOutLogger)
+		System.setOut(new PrintStream(output, true));
+		System.setErr(new PrintStream(output, true));
+		try {
+			Set<Attribute> attrs = new HashSet<Attribute>();
+			attrs.add(new Name(name));
+			Uid uid = connector.create(KerberosPrincipal.OBJECT_CLASS, attrs, null);
+			connector.executeQuery(KerberosPrincipal.OBJECT_CLASS, new KerberosQuery("trace-test*", null), new ToListResultsHandler(), new OperationOptionsBuilder().build());
+			connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+			try {
+				connector.delete(KerberosPrincipal.OBJECT_CLASS, uid, null);
+				Assert.fail("UnknownUidException expected");
+			} catch (UnknownUidException e) {
+				// expected
+			}
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+			connector.dispose();
+		}
+
+		String log = output.toString("UTF-8");
+		Assert.assertTrue(log.contains("JNI renew: count 0, code 0,"), log);
+		Assert.assertTrue(log.contains("JNI create: count 0, code 0,"), log);
+		Assert.assertTrue(log.contains("JNI list: count 0, code 0,"), log);
+		Assert.assertTrue(log.contains("JNI search: count 1, code 0,"), log);
+		Assert.assertTrue(log.contains("JNI delete: count 0, code 0,"), log);
+		Assert.assertTrue(log.matches("(?s).*JNI delete: count 0, code [1-9][0-9]*,.*"), log);
+		Assert.assertTrue(log.matches("(?s).*JNI error: count 0, code [1-9][0-9]*,.*"), log);
+	}
+
 	@Test
 	public void changePasswordTest() {
 		logger.info("Running Change Password Test");
@@ -566,6 +1808,18 @@ public class KerberosConnectorTests {
 		Assert.assertTrue(name);
 	}
 
+	/**
+	 * Configuration of the tested realm with the admin credentials.
+	 */
+	private static KerberosConfiguration newConfiguration() {
+		KerberosConfiguration config = new KerberosConfiguration();
+
+		config.setRealm(realm);
+		config.setPrincipal(PROPERTIES.getStringProperty("configuration.principal"));
+		config.setPassword(PROPERTIES.getProperty("configuration.password", GuardedString.class));
+		return config;
+	}
+
 	protected ConnectorFacade getFacade(KerberosConfiguration config) {
 		ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
 		// **test only**